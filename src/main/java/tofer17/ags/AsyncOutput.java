@@ -0,0 +1,291 @@
+package tofer17.ags;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking (Servlet 3.1) writes to an async response: chunks are queued and written only while the stream
+ * {@link ServletOutputStream#isReady() is ready}, the rest goes out from {@link #onWritePossible()}. Nobody ever
+ * blocks on a slow client-- a full TCP window only holds up that client's own queue. Time spent waiting on the
+ * client (stalled) is tracked per connection and overall.
+ *
+ * @author cmetyko
+ *
+ */
+public final class AsyncOutput implements WriteListener {
+
+	private static final Logger logger = LoggerFactory.getLogger( AsyncOutput.class );
+
+	private static final AtomicLong totalStalls = new AtomicLong();
+
+	private static final AtomicLong totalStallNanos = new AtomicLong();
+
+	private static final AtomicInteger stalledNow = new AtomicInteger();
+
+	private final String name;
+
+	private final ServletOutputStream out;
+
+	// Called (off the lock) when a stalled queue empties, e.g. to feed it more
+	private final Runnable onDrained;
+
+	private final Consumer<Throwable> onError;
+
+	private final ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+
+	// Handed to the container, which may hold on to it until the stream's ready again
+	private Chunk written = null;
+
+	private int pendingBytes = 0;
+
+	// Written but not flushed
+	private boolean dirty = false;
+
+	private long stallStart = 0L;
+
+	private long stalls = 0L;
+
+	private long stallNanos = 0L;
+
+	private long maxStallNanos = 0L;
+
+	// Runs once everything is out, after close()
+	private Runnable closer = null;
+
+	private volatile Throwable failure = null;
+
+	public AsyncOutput ( String name, ServletOutputStream out, Runnable onDrained, Consumer<Throwable> onError ) {
+		this.name = name;
+		this.out = out;
+		this.onDrained = onDrained;
+		this.onError = onError;
+	}
+
+	/**
+	 * Switches the stream to non-blocking; the request must already be async.
+	 */
+	public AsyncOutput start () {
+		out.setWriteListener( this );
+		return this;
+	}
+
+	/**
+	 * Queues bytes (not copied; hands off) and writes as much as the client will take right now.
+	 *
+	 * @throws IOException if the connection already failed or fails now
+	 */
+	public void write ( byte[] bytes ) throws IOException {
+		write( bytes, bytes.length, null );
+	}
+
+	/**
+	 * Queues the first length bytes of an array (handed off) and writes as much as the client will take right now.
+	 *
+	 * @param pool where the array goes back to once written (or dropped); null if it isn't pooled
+	 * @throws IOException if the connection already failed or fails now
+	 */
+	public void write ( byte[] bytes, int length, BufferPool pool ) throws IOException {
+		final Throwable t = failure;
+		if ( t != null ) {
+			if ( pool != null ) {
+				pool.release( bytes );
+			}
+			throw t instanceof IOException ? (IOException) t : new IOException( t );
+		}
+		final boolean drained;
+		synchronized ( this ) {
+			pending.add( new Chunk( bytes, length, pool ) );
+			pendingBytes += length;
+			drained = drain();
+		}
+		if ( drained ) {
+			finish( false );
+		}
+	}
+
+	/**
+	 * @return bytes queued but not yet handed to the container.
+	 */
+	public synchronized int backlog () {
+		return pendingBytes;
+	}
+
+	/**
+	 * Runs then once everything queued is out (right away if the connection failed).
+	 */
+	public void close ( Runnable then ) {
+		boolean now = failure != null;
+		synchronized ( this ) {
+			closer = then;
+			if ( !now ) {
+				try {
+					now = drain();
+				} catch ( IOException | IllegalStateException ex ) {
+					failure = ex;
+					now = true;
+				}
+			}
+			if ( now ) {
+				closer = null;
+			}
+		}
+		if ( now ) {
+			endStall();
+			then.run();
+		}
+	}
+
+	@Override
+	public void onWritePossible () throws IOException {
+		final boolean drained;
+		synchronized ( this ) {
+			drained = drain();
+		}
+		if ( drained ) {
+			finish( true );
+		}
+	}
+
+	@Override
+	public void onError ( Throwable t ) {
+		failure = t;
+		synchronized ( this ) {
+			// Not going anywhere now; the container may still have the last one written, so that's left to the GC
+			Chunk chunk;
+			while ( ( chunk = pending.poll() ) != null ) {
+				chunk.recycle();
+			}
+			pendingBytes = 0;
+			written = null;
+		}
+		endStall();
+		logger.info( "Write to '{}' failed: {}", name, t.toString() );
+		onError.accept( t );
+	}
+
+	/**
+	 * Writes while the stream is ready. Call with the lock held.
+	 *
+	 * @return true if everything's out (and flushed).
+	 */
+	private boolean drain () throws IOException {
+		while ( out.isReady() ) {
+			if ( stallStart != 0L ) {
+				endStall();
+			}
+			// Ready again, so the container's done with the last one
+			if ( written != null ) {
+				written.recycle();
+				written = null;
+			}
+			final Chunk next = pending.poll();
+			if ( next == null ) {
+				if ( dirty ) {
+					dirty = false;
+					out.flush();
+					continue;
+				}
+				return true;
+			}
+			pendingBytes -= next.length;
+			out.write( next.bytes, 0, next.length );
+			written = next;
+			dirty = true;
+		}
+		// The container calls onWritePossible() once the client catches up
+		if ( stallStart == 0L ) {
+			stallStart = System.nanoTime();
+			stalls++;
+			totalStalls.incrementAndGet();
+			stalledNow.incrementAndGet();
+		}
+		return false;
+	}
+
+	private synchronized void endStall () {
+		if ( stallStart != 0L ) {
+			final long stalled = System.nanoTime() - stallStart;
+			stallStart = 0L;
+			stallNanos += stalled;
+			maxStallNanos = Math.max( maxStallNanos, stalled );
+			totalStallNanos.addAndGet( stalled );
+			stalledNow.decrementAndGet();
+		}
+	}
+
+	private void finish ( boolean resumed ) {
+		final Runnable then;
+		synchronized ( this ) {
+			then = closer;
+			closer = null;
+		}
+		if ( then != null ) {
+			if ( stalls > 0 ) {
+				logger.info( "{}", this );
+			}
+			then.run();
+		} else if ( resumed ) {
+			onDrained.run();
+		}
+	}
+
+	/**
+	 * Times any connection had to wait for its client, since startup.
+	 */
+	public static long totalStalls () {
+		return totalStalls.get();
+	}
+
+	public static long totalStallMillis () {
+		return TimeUnit.NANOSECONDS.toMillis( totalStallNanos.get() );
+	}
+
+	/**
+	 * Connections waiting on their client right now.
+	 */
+	public static int stalledNow () {
+		return stalledNow.get();
+	}
+
+	/**
+	 * Queued bytes, and the pool their array goes back to.
+	 */
+	private static final class Chunk {
+
+		public final byte[] bytes;
+
+		public final int length;
+
+		public final BufferPool pool;
+
+		public Chunk ( byte[] bytes, int length, BufferPool pool ) {
+			this.bytes = bytes;
+			this.length = length;
+			this.pool = pool;
+		}
+
+		public void recycle () {
+			if ( pool != null ) {
+				pool.release( bytes );
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString () {
+		return String.format( "Output to '%s': %s bytes queued, stalled %s times for %s ms (longest %s ms)", name,
+			pendingBytes, stalls, TimeUnit.NANOSECONDS.toMillis( stallNanos ),
+			TimeUnit.NANOSECONDS.toMillis( maxStallNanos ) );
+	}
+
+}
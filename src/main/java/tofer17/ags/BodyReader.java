@@ -0,0 +1,172 @@
+package tofer17.ags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a raw (non-form) request body with a Servlet 3.1 {@link ReadListener}: nothing blocks while a slow client
+ * uploads, and the bytes land straight in one pooled array instead of being parsed into parameters first. The handler
+ * runs once the whole body is in; the request is completed after it returns.
+ *
+ * @author cmetyko
+ *
+ */
+public final class BodyReader implements ReadListener {
+
+	private static final Logger logger = LoggerFactory.getLogger( BodyReader.class );
+
+	private static final int INITIAL = 8 * 1024;
+
+	/**
+	 * Gets the body once it's all read.
+	 */
+	public interface Handler {
+
+		/**
+		 * @param body only valid during the call (it goes back to the pool afterwards)
+		 */
+		void onBody ( HttpServletRequest request, HttpServletResponse response, byte[] body, int length )
+			throws IOException;
+	}
+
+	private final AsyncContext ac;
+
+	private final ServletInputStream in;
+
+	private final BufferPool pool;
+
+	private final int max;
+
+	private final Handler handler;
+
+	private byte[] buf;
+
+	private int length = 0;
+
+	private boolean done = false;
+
+	private BodyReader ( AsyncContext ac, ServletInputStream in, BufferPool pool, int max, Handler handler,
+		int expected ) {
+		this.ac = ac;
+		this.in = in;
+		this.pool = pool;
+		this.max = max;
+		this.handler = handler;
+		this.buf = pool.acquire( expected > 0 ? expected : Math.min( INITIAL, max ) );
+	}
+
+	/**
+	 * @return true if the request has a body meant to be read raw (JSON or binary) rather than as form parameters.
+	 */
+	public static boolean isRaw ( HttpServletRequest request ) {
+		final String type = request.getContentType();
+		return type != null && ( type.startsWith( "application/json" ) || isBinary( request ) );
+	}
+
+	public static boolean isBinary ( HttpServletRequest request ) {
+		final String type = request.getContentType();
+		return type != null && type.startsWith( "application/octet-stream" );
+	}
+
+	/**
+	 * The body as text: UTF-8 as is, binary as Base64 (so it can sit inside JSON).
+	 */
+	public static String toText ( HttpServletRequest request, byte[] body, int length ) {
+		if ( isBinary( request ) ) {
+			final byte[] b64 = Base64.getEncoder().encode( ByteBuffer.wrap( body, 0, length ) ).array();
+			return new String( b64, StandardCharsets.US_ASCII );
+		}
+		return new String( body, 0, length, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Goes async and reads the body; anything over max bytes gets a 413 without being read.
+	 */
+	public static void read ( HttpServletRequest request, HttpServletResponse response, BufferPool pool, int max,
+		Handler handler ) throws IOException {
+		final long expected = request.getContentLengthLong();
+		if ( expected > max ) {
+			response.sendError( 413, "nocando" );
+			return;
+		}
+		final AsyncContext ac = request.startAsync( request, response );
+		ac.setTimeout( 60 * 1000 );
+		final ServletInputStream in = request.getInputStream();
+		in.setReadListener( new BodyReader( ac, in, pool, max, handler, (int) expected ) );
+	}
+
+	@Override
+	public void onDataAvailable () throws IOException {
+		while ( !done && in.isReady() && !in.isFinished() ) {
+			if ( length > max ) {
+				// Lied about (or never sent) its length
+				fail( 413 );
+				return;
+			}
+			if ( length == buf.length ) {
+				final byte[] bigger = pool.acquire( Math.min( max + 1, length * 2 ) );
+				System.arraycopy( buf, 0, bigger, 0, length );
+				pool.release( buf );
+				buf = bigger;
+			}
+			final int n = in.read( buf, length, Math.min( buf.length, max + 1 ) - length );
+			if ( n < 0 ) {
+				break;
+			}
+			length += n;
+		}
+	}
+
+	@Override
+	public void onAllDataRead () throws IOException {
+		if ( length > max ) {
+			fail( 413 );
+			return;
+		}
+		if ( done ) {
+			return;
+		}
+		done = true;
+		try {
+			handler.onBody( (HttpServletRequest) ac.getRequest(), (HttpServletResponse) ac.getResponse(), buf,
+				length );
+		} finally {
+			pool.release( buf );
+			buf = null;
+			ac.complete();
+		}
+	}
+
+	@Override
+	public void onError ( Throwable t ) {
+		logger.info( "Body read failed after {} bytes: {}", length, t.toString() );
+		fail( 400 );
+	}
+
+	private void fail ( int status ) {
+		if ( done ) {
+			return;
+		}
+		done = true;
+		pool.release( buf );
+		buf = null;
+		try {
+			( (HttpServletResponse) ac.getResponse() ).sendError( status, "nocando" );
+		} catch ( IOException | IllegalStateException ex ) {
+			;
+		}
+		ac.complete();
+	}
+
+}
@@ -0,0 +1,174 @@
+package tofer17.ags;
+
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays in power-of-two size classes, so request bodies don't cost a fresh (and, for big ones, freshly
+ * zeroed) array every time. Each class keeps at most a few idle arrays; anything past that is left to the GC.
+ *
+ * @author cmetyko
+ *
+ */
+public final class BufferPool {
+
+	private static final int MIN_SHIFT = 10; // 1k
+
+	private static final BufferPool SHARED = new BufferPool( 1 << 24, 16 );
+
+	private final int maxSize;
+
+	private final int maxIdle;
+
+	private final ConcurrentLinkedQueue<byte[]>[] classes;
+
+	private final AtomicInteger[] idle;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize largest array pooled (rounded up to a power of two); bigger requests are never pooled
+	 * @param maxIdle idle arrays kept per size class
+	 */
+	@SuppressWarnings ( { "unchecked", "rawtypes" } )
+	public BufferPool ( int maxSize, int maxIdle ) {
+		if ( maxSize < 1 || maxIdle < 0 ) {
+			throw new IllegalArgumentException( "maxSize " + maxSize + " maxIdle " + maxIdle );
+		}
+		final int n = Math.max( 0, sizeClass( maxSize ) ) + 1;
+		this.maxSize = 1 << ( MIN_SHIFT + n - 1 );
+		this.maxIdle = maxIdle;
+		this.classes = new ConcurrentLinkedQueue[ n ];
+		this.idle = new AtomicInteger[ n ];
+		for ( int i = 0; i < n; i++ ) {
+			classes[ i ] = new ConcurrentLinkedQueue<byte[]>();
+			idle[ i ] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * The one every servlet shares: up to 16M, 16 idle per class.
+	 */
+	public static BufferPool shared () {
+		return SHARED;
+	}
+
+	/**
+	 * @return an array at least size long (contents unspecified).
+	 */
+	public byte[] acquire ( int size ) {
+		if ( size > maxSize ) {
+			misses.incrementAndGet();
+			return new byte[ size ];
+		}
+		final int c = Math.max( 0, sizeClass( size ) );
+		final byte[] buf = classes[ c ].poll();
+		if ( buf != null ) {
+			idle[ c ].decrementAndGet();
+			hits.incrementAndGet();
+			return buf;
+		}
+		misses.incrementAndGet();
+		return new byte[ 1 << ( MIN_SHIFT + c ) ];
+	}
+
+	/**
+	 * Hands buf back; don't touch it afterwards. Arrays this pool didn't size are ignored.
+	 */
+	public void release ( byte[] buf ) {
+		if ( buf == null || buf.length > maxSize || Integer.bitCount( buf.length ) != 1
+			|| buf.length < 1 << MIN_SHIFT ) {
+			return;
+		}
+		final int c = sizeClass( buf.length );
+		if ( idle[ c ].incrementAndGet() <= maxIdle ) {
+			classes[ c ].add( buf );
+		} else {
+			idle[ c ].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Index of the smallest class holding size bytes (negative below the minimum).
+	 */
+	private static int sizeClass ( int size ) {
+		return 32 - Integer.numberOfLeadingZeros( Math.max( 1, size ) - 1 ) - MIN_SHIFT;
+	}
+
+	public int idle () {
+		int n = 0;
+		for ( AtomicInteger i : idle ) {
+			n += i.get();
+		}
+		return n;
+	}
+
+	/**
+	 * An OutputStream into an array from the pool, traded up for a bigger one as it fills. {@link #take()} hands the
+	 * array on (for whoever ends up with it to release) and starts afresh. Not thread-safe.
+	 */
+	public static final class Output extends OutputStream {
+
+		private final BufferPool pool;
+
+		private byte[] buf = null;
+
+		private int count = 0;
+
+		public Output ( BufferPool pool ) {
+			this.pool = pool;
+		}
+
+		@Override
+		public void write ( int b ) {
+			ensure( count + 1 );
+			buf[ count++ ] = (byte) b;
+		}
+
+		@Override
+		public void write ( byte[] b, int off, int len ) {
+			ensure( count + len );
+			System.arraycopy( b, off, buf, count, len );
+			count += len;
+		}
+
+		private void ensure ( int size ) {
+			if ( buf == null ) {
+				buf = pool.acquire( size );
+			} else if ( size > buf.length ) {
+				final byte[] bigger = pool.acquire( Math.max( size, buf.length * 2 ) );
+				System.arraycopy( buf, 0, bigger, 0, count );
+				pool.release( buf );
+				buf = bigger;
+			}
+		}
+
+		/**
+		 * @return bytes written since the last take().
+		 */
+		public int size () {
+			return count;
+		}
+
+		/**
+		 * @return the array holding the size() bytes written (null if none); the caller's from now on.
+		 */
+		public byte[] take () {
+			final byte[] taken = buf;
+			buf = null;
+			count = 0;
+			return taken;
+		}
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "BufferPool %s max, %s idle, %s hits, %s misses", maxSize, idle(), hits.get(),
+			misses.get() );
+	}
+
+}
@@ -0,0 +1,554 @@
+package tofer17.ags;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-to-node links for clustered {@link Comms}: every node listens on its own port and keeps one outbound TCP
+ * connection to each peer, so no broker is needed. Keys (recipient and room ids) are assigned to nodes with a
+ * {@link HashRing} holding this node plus whichever peers are reachable right now; a peer joins the ring when its
+ * connection comes up and leaves it when a write fails, and either way the {@link Handler} hears about it so
+ * ownership can be rebalanced.
+ *
+ * Each peer has a queue drained by its own writer thread, which writes everything queued since the last round and
+ * flushes once (batching), or sends a ping when idle. Whatever was queued for a peer that goes down is handed back
+ * to the handler to be routed again.
+ *
+ * Frames are [int length][byte type][body].
+ *
+ * @author cmetyko
+ *
+ */
+public final class ClusterLink implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger( ClusterLink.class );
+
+	private static final byte HELLO = 1;
+
+	private static final byte PING = 2;
+
+	private static final byte POST = 3;
+
+	private static final byte JOIN = 4;
+
+	private static final byte LEAVE = 5;
+
+	private static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	// Most frames written per flush
+	private static final int BATCH = 256;
+
+	/**
+	 * Called from the link's threads.
+	 */
+	public interface Handler {
+
+		/**
+		 * A post forwarded here (or handed back because the peer it was meant for went down).
+		 */
+		void onPost ( Post post );
+
+		void onMember ( String room, String id, boolean joined );
+
+		/**
+		 * The set of reachable nodes (this one included) changed.
+		 */
+		void onMembership ( Set<String> nodes );
+	}
+
+	/**
+	 * A post (or part of one) on its way to the node owning its recipients. No recipients means a room post for the
+	 * room's owner to fan out.
+	 */
+	public static final class Post {
+
+		public final long received;
+
+		public final String from;
+
+		// Null unless posted to a room
+		public final String room;
+
+		public final String message;
+
+		public final String[] toList;
+
+		public final String[] recipients;
+
+		// Each recipient's sequence number, handed off with it by a rebalance; null (or 0) if it's yet to get one
+		public final long[] seqs;
+
+		// Times forwarded; stops two nodes with different views of the ring bouncing it back and forth
+		public final int hops;
+
+		public Post ( long received, String from, String room, String message, String[] toList, String[] recipients,
+			int hops ) {
+			this( received, from, room, message, toList, recipients, null, hops );
+		}
+
+		public Post ( long received, String from, String room, String message, String[] toList, String[] recipients,
+			long[] seqs, int hops ) {
+			this.received = received;
+			this.from = from;
+			this.room = room;
+			this.message = message;
+			this.toList = toList;
+			this.recipients = recipients;
+			this.seqs = seqs;
+			this.hops = hops;
+		}
+	}
+
+	private static final class Member {
+
+		public final String room;
+
+		public final String id;
+
+		public final boolean joined;
+
+		public Member ( String room, String id, boolean joined ) {
+			this.room = room;
+			this.id = id;
+			this.joined = joined;
+		}
+	}
+
+	private final class Peer {
+
+		public final String id;
+
+		public final InetSocketAddress address;
+
+		public final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+		public volatile boolean up = false;
+
+		public volatile Socket socket = null;
+
+		public final Thread writer;
+
+		public Peer ( String id, InetSocketAddress address ) {
+			this.id = id;
+			this.address = address;
+			this.writer = new Thread( () -> write( this ), "cluster-link-" + id );
+			this.writer.setDaemon( true );
+		}
+	}
+
+	private final String self;
+
+	private final InetSocketAddress address;
+
+	private final Handler handler;
+
+	private final long heartbeat;
+
+	private final HashRing ring;
+
+	private final Map<String,Peer> peers = new LinkedHashMap<String,Peer>();
+
+	private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+
+	private final Object membership = new Object();
+
+	private volatile boolean running = false;
+
+	private ServerSocket server = null;
+
+	private Thread acceptor = null;
+
+	/**
+	 * @param self this node's id; must be one of nodes
+	 * @param nodes every node's id and link address
+	 * @param heartbeat ping idle links this often (ms); an inbound link silent for three of these is dropped
+	 * @param replicas virtual points per node on the ring
+	 */
+	public ClusterLink ( String self, Map<String,InetSocketAddress> nodes, Handler handler, long heartbeat,
+		int replicas ) {
+		if ( !nodes.containsKey( self ) ) {
+			throw new IllegalArgumentException( "Node '" + self + "' is not in " + nodes.keySet() );
+		}
+		this.self = self;
+		this.address = nodes.get( self );
+		this.handler = handler;
+		this.heartbeat = heartbeat;
+		this.ring = new HashRing( replicas );
+		for ( Map.Entry<String,InetSocketAddress> e : nodes.entrySet() ) {
+			if ( !self.equals( e.getKey() ) ) {
+				peers.put( e.getKey(), new Peer( e.getKey(), e.getValue() ) );
+			}
+		}
+	}
+
+	public ClusterLink start () throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress( true );
+		server.bind( address );
+		ring.add( self );
+		running = true;
+
+		acceptor = new Thread( this::accept, "cluster-accept-" + self );
+		acceptor.setDaemon( true );
+		acceptor.start();
+		for ( Peer peer : peers.values() ) {
+			peer.writer.start();
+		}
+		logger.info( "Cluster node '{}' listening on {}, peers {}", self, address, peers.keySet() );
+		return this;
+	}
+
+	@Override
+	public void close () {
+		running = false;
+		try {
+			server.close();
+		} catch ( IOException ioe ) {
+			;
+		}
+		for ( Socket socket : inbound ) {
+			closeQuietly( socket );
+		}
+		for ( Peer peer : peers.values() ) {
+			peer.writer.interrupt();
+			closeQuietly( peer.socket );
+		}
+		try {
+			acceptor.join( 1000 );
+			for ( Peer peer : peers.values() ) {
+				peer.writer.join( 1000 );
+			}
+		} catch ( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String self () {
+		return self;
+	}
+
+	/**
+	 * @return the node owning key (this one if no peer is up).
+	 */
+	public String owner ( String key ) {
+		final String owner = ring.owner( key );
+		return owner != null ? owner : self;
+	}
+
+	public boolean isLocal ( String key ) {
+		return self.equals( owner( key ) );
+	}
+
+	/**
+	 * Reachable nodes, this one included.
+	 */
+	public Set<String> nodes () {
+		return ring.nodes();
+	}
+
+	/**
+	 * @return false if node isn't a peer that's up (the caller keeps it).
+	 */
+	public boolean forward ( String node, Post post ) {
+		return enqueue( node, post );
+	}
+
+	public boolean forward ( String node, String room, String id, boolean joined ) {
+		return enqueue( node, new Member( room, id, joined ) );
+	}
+
+	private boolean enqueue ( String node, Object message ) {
+		final Peer peer = peers.get( node );
+		if ( peer == null || !peer.up ) {
+			return false;
+		}
+		peer.queue.add( message );
+		return true;
+	}
+
+	/**
+	 * Frames waiting to go out, across all peers.
+	 */
+	public int backlog () {
+		int backlog = 0;
+		for ( Peer peer : peers.values() ) {
+			backlog += peer.queue.size();
+		}
+		return backlog;
+	}
+
+	private void setUp ( Peer peer, boolean up ) {
+		final List<Object> orphans = new ArrayList<Object>();
+		synchronized ( membership ) {
+			if ( peer.up == up ) {
+				return;
+			}
+			peer.up = up;
+			if ( up ) {
+				ring.add( peer.id );
+			} else {
+				ring.remove( peer.id );
+				peer.queue.drainTo( orphans );
+			}
+			logger.info( "Cluster node '{}' is {}; ring now {}", peer.id, up ? "up" : "down", ring.nodes() );
+			handler.onMembership( ring.nodes() );
+		}
+		// Route them again now that the ring no longer has the peer
+		for ( Object message : orphans ) {
+			dispatch( message );
+		}
+	}
+
+	private void dispatch ( Object message ) {
+		if ( message instanceof Post ) {
+			handler.onPost( (Post) message );
+		} else {
+			final Member member = (Member) message;
+			handler.onMember( member.room, member.id, member.joined );
+		}
+	}
+
+	private void write ( Peer peer ) {
+		final List<Object> batch = new ArrayList<Object>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream( 1024 );
+		final DataOutputStream bodyOut = new DataOutputStream( body );
+
+		while ( running ) {
+			try ( Socket socket = new Socket() ) {
+				peer.socket = socket;
+				socket.setTcpNoDelay( true );
+				socket.connect( peer.address, (int) Math.max( 1000, heartbeat ) );
+				final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream( socket.getOutputStream(), 64 * 1024 ) );
+
+				writeString( bodyOut, self );
+				frame( out, HELLO, body );
+				out.flush();
+				setUp( peer, true );
+
+				while ( running ) {
+					final Object first = peer.queue.poll( heartbeat, TimeUnit.MILLISECONDS );
+					if ( first == null ) {
+						frame( out, PING, body );
+						out.flush();
+						continue;
+					}
+					batch.add( first );
+					peer.queue.drainTo( batch, BATCH - 1 );
+					for ( Object message : batch ) {
+						encode( bodyOut, message );
+						frame( out, message instanceof Post ? POST : ( (Member) message ).joined ? JOIN : LEAVE,
+							body );
+					}
+					// One flush (and, with any luck, one segment) per batch
+					out.flush();
+					batch.clear();
+				}
+			} catch ( InterruptedException iex ) {
+				break;
+			} catch ( IOException ioe ) {
+				if ( running ) {
+					logger.debug( "Link to '{}' failed: {}", peer.id, ioe.toString() );
+				}
+			}
+
+			// Anything mid-batch may or may not have made it; better twice than never. Back at the head of the line,
+			// which setUp( false ) then hands to the handler
+			if ( !batch.isEmpty() ) {
+				peer.queue.drainTo( batch );
+				peer.queue.addAll( batch );
+				batch.clear();
+			}
+			body.reset();
+			setUp( peer, false );
+
+			if ( running ) {
+				try {
+					Thread.sleep( heartbeat );
+				} catch ( InterruptedException iex ) {
+					break;
+				}
+			}
+		}
+		peer.socket = null;
+	}
+
+	private void accept () {
+		while ( running ) {
+			try {
+				final Socket socket = server.accept();
+				socket.setSoTimeout( (int) Math.min( Integer.MAX_VALUE, heartbeat * 3 ) );
+				inbound.add( socket );
+				final Thread reader = new Thread( () -> read( socket ), "cluster-read-" + socket.getPort() );
+				reader.setDaemon( true );
+				reader.start();
+			} catch ( IOException ioe ) {
+				if ( running ) {
+					logger.warn( "Cluster accept failed: {}", ioe.toString() );
+				}
+			}
+		}
+	}
+
+	private void read ( Socket socket ) {
+		String peer = null;
+		try ( DataInputStream in = new DataInputStream(
+			new BufferedInputStream( socket.getInputStream(), 64 * 1024 ) ) ) {
+			while ( running ) {
+				final int length = in.readInt();
+				if ( length < 1 || length > MAX_FRAME ) {
+					throw new IOException( "Bad frame length " + length );
+				}
+				final byte type = in.readByte();
+				final byte[] bytes = new byte[ length - 1 ];
+				in.readFully( bytes );
+				final DataInputStream body = new DataInputStream( new ByteArrayInputStream( bytes ) );
+
+				if ( type == HELLO ) {
+					peer = readString( body );
+					logger.debug( "Inbound link from '{}'", peer );
+				} else if ( peer == null ) {
+					throw new IOException( "No hello" );
+				} else if ( type == POST ) {
+					handler.onPost( decodePost( body ) );
+				} else if ( type == JOIN || type == LEAVE ) {
+					handler.onMember( readString( body ), readString( body ), type == JOIN );
+				}
+			}
+		} catch ( EOFException | SocketException eof ) {
+			;
+		} catch ( IOException ioe ) {
+			if ( running ) {
+				logger.debug( "Inbound link from '{}' dropped: {}", peer, ioe.toString() );
+			}
+		} finally {
+			inbound.remove( socket );
+			closeQuietly( socket );
+		}
+	}
+
+	private static void frame ( DataOutputStream out, byte type, ByteArrayOutputStream body ) throws IOException {
+		out.writeInt( body.size() + 1 );
+		out.writeByte( type );
+		body.writeTo( out );
+		body.reset();
+	}
+
+	private static void encode ( DataOutputStream out, Object message ) throws IOException {
+		if ( message instanceof Post ) {
+			final Post post = (Post) message;
+			out.writeLong( post.received );
+			writeString( out, post.from );
+			out.writeBoolean( post.room != null );
+			if ( post.room != null ) {
+				writeString( out, post.room );
+			}
+			writeString( out, post.message );
+			writeStrings( out, post.toList );
+			writeStrings( out, post.recipients );
+			out.writeBoolean( post.seqs != null );
+			if ( post.seqs != null ) {
+				for ( int i = 0; i < post.recipients.length; i++ ) {
+					out.writeLong( post.seqs[ i ] );
+				}
+			}
+			out.writeInt( post.hops + 1 );
+		} else {
+			final Member member = (Member) message;
+			writeString( out, member.room );
+			writeString( out, member.id );
+		}
+	}
+
+	private static Post decodePost ( DataInputStream in ) throws IOException {
+		final long received = in.readLong();
+		final String from = readString( in );
+		final String room = in.readBoolean() ? readString( in ) : null;
+		final String message = readString( in );
+		final String[] toList = readStrings( in );
+		final String[] recipients = readStrings( in );
+		long[] seqs = null;
+		if ( in.readBoolean() ) {
+			seqs = new long[ recipients.length ];
+			for ( int i = 0; i < seqs.length; i++ ) {
+				seqs[ i ] = in.readLong();
+			}
+		}
+		return new Post( received, from, room, message, toList, recipients, seqs, in.readInt() );
+	}
+
+	private static void writeString ( DataOutputStream out, String s ) throws IOException {
+		final byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	private static void writeStrings ( DataOutputStream out, String[] strings ) throws IOException {
+		out.writeInt( strings.length );
+		for ( String s : strings ) {
+			writeString( out, s );
+		}
+	}
+
+	private static String readString ( DataInputStream in ) throws IOException {
+		final int length = in.readInt();
+		if ( length < 0 || length > MAX_FRAME ) {
+			throw new IOException( "Bad string length " + length );
+		}
+		final byte[] bytes = new byte[ length ];
+		in.readFully( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private static String[] readStrings ( DataInputStream in ) throws IOException {
+		final int n = in.readInt();
+		if ( n < 0 || n > MAX_FRAME ) {
+			throw new IOException( "Bad array length " + n );
+		}
+		final String[] strings = new String[ n ];
+		for ( int i = 0; i < n; i++ ) {
+			strings[ i ] = readString( in );
+		}
+		return strings;
+	}
+
+	private static void closeQuietly ( Socket socket ) {
+		if ( socket != null ) {
+			try {
+				socket.close();
+			} catch ( IOException ioe ) {
+				;
+			}
+		}
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "ClusterLink %s %s (backlog %s)", self, ring.nodes(), backlog() );
+	}
+
+}
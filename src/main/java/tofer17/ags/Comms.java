@@ -1,18 +1,40 @@
 package tofer17.ags;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -32,52 +54,476 @@ public class Comms extends HttpServlet {
 
 	private static final long RETRANS = 1000 * 10;
 
+	private static final long BACKOFF = 250;
+
+	private static final long BACKOFF_MAX = 1000 * 5;
+
+	private static volatile long ttl = RETRANS;
+
+	private static volatile long backoff = BACKOFF;
+
+	private static volatile long backoffMax = BACKOFF_MAX;
+
+	// How long a freshly posted envelope waits for company before going out
+	private static volatile long linger = 0L;
+
+	private static volatile int batchCount = 64;
+
+	private static volatile int batchBytes = 64 * 1024;
+
+	// Largest raw (JSON or binary) post body read
+	private static volatile int bodyMax = 64 * 1024;
+
+	// Comment line sent down idle event streams so proxies (and we) notice dead ones
+	private static volatile long heartbeat = 1000 * 15;
+
+	// Admission control: caps on what's queued (overall and per recipient) and what to do when a recipient is full
+	private static volatile int maxQueued = 100000;
+
+	private static volatile int mailboxMax = 256;
+
+	private static volatile boolean dropOldest = false;
+
+	// Per sender token bucket: envelopes per second and how many may go at once; 0 turns it off
+	private static volatile double rate = 50;
+
+	private static volatile double burst = 100;
+
+	private static final Map<String,TokenBucket> buckets = new ConcurrentHashMap<String,TokenBucket>();
+
+	// Envelopes waiting in mailboxes (replays aside)
+	private static final AtomicInteger queued = new AtomicInteger();
+
+	private static final AtomicLong rejected = new AtomicLong();
+
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final AtomicLong throttled = new AtomicLong();
+
+	private static final Metrics.Counter posted = Metrics.counter( "comms_posted_total",
+		"Envelopes posted to local mailboxes" );
+
+	private static final Metrics.Counter delivered = Metrics.counter( "comms_delivered_total",
+		"Envelopes written to a waiter (replays aside)" );
+
+	private static final Metrics.Counter retries = Metrics.counter( "comms_retries_total",
+		"Envelopes put back for another try after a failed write" );
+
+	private static final Metrics.Counter expired = Metrics.counter( "comms_expired_total",
+		"Envelopes that timed out undelivered" );
+
+	private static final Metrics.Histogram deliveryTime = Metrics.histogram( "comms_delivery_seconds",
+		"From posted to written to a waiter" );
+
+	private static final Metrics.Histogram holdTime = Metrics.histogram( "comms_longpoll_hold_seconds",
+		"How long long-polls were held open" );
+
+	// Delivered envelopes kept per recipient for "since" replay, and for how long
+	private static volatile int history = 64;
+
+	private static volatile long historyAge = 1000 * 60 * 10;
+
+	// Envelope sequence numbers; global so they stay monotonic per recipient even when mailboxes come and go
+	private static final AtomicLong sequence = new AtomicLong();
+
+	// Sequence numbers never fall behind the clock (this many per ms), so they compare across nodes and restarts
+	private static final long SEQ_PER_MS = 1000;
+
+	// Durable copy of whatever is queued; null unless journal.dir is configured
+	private static volatile Journal journal = null;
+
+	// Retransmission and expiry of undelivered envelopes
+	private static volatile TimingWheel wheel = null;
+
 	private static final Logger logger = LoggerFactory.getLogger( TimeBasedEncrypter.class );
 
-	private static final Map<String,AsyncContext> waiters = new Hashtable<String,AsyncContext>();
+	private static final Map<String,Mailbox> mailboxes = new ConcurrentHashMap<String,Mailbox>();
+
+	// Room id to the ids of its members; posts to a room fan out to whoever is in it at the time
+	private static final Map<String,Set<String>> rooms = new ConcurrentHashMap<String,Set<String>>();
 
-	private static final BlockingQueue<Envelope> messages = new LinkedBlockingQueue<Envelope>();
+	// Links to the other nodes when clustered (cluster.self and cluster.nodes configured), otherwise null
+	private static volatile ClusterLink cluster = null;
 
-	private Thread notifierThread = null;
+	private static final Map<String,String> clusterUrls = new ConcurrentHashMap<String,String>();
+
+	// Mailboxes are sharded across these by recipient so per-recipient ordering holds
+	private static volatile Dispatcher[] dispatchers = new Dispatcher[ 0 ];
 
 	public Comms () {
 		super();
 	}
 
-	private boolean pollQueue () {
+	private final long getConfigLong ( String name, long defaultValue ) {
+		String value = getInitParameter( name );
+
+		if ( value == null ) {
+			value = System.getProperty( "tofer17.ags.comms." + name );
+		}
+
+		if ( value == null || value.length() < 1 ) {
+			return defaultValue;
+		}
+
 		try {
+			return Long.parseLong( value.trim() );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Comms config '{}' is not a number ('{}'), using {}", name, value, defaultValue );
+			return defaultValue;
+		}
+	}
 
-			final Envelope envelope = messages.take();
+	private final String getConfigString ( String name, String defaultValue ) {
+		String value = getInitParameter( name );
 
-			// logger.info( envelope.recipient + " " + envelope.message );
+		if ( value == null ) {
+			value = System.getProperty( "tofer17.ags.comms." + name );
+		}
 
-			final AsyncContext ac = waiters.get( envelope.to );
+		return value == null || value.trim().length() < 1 ? defaultValue : value.trim();
+	}
 
-			// logger.info( "{}", ac );
+	private static final Mailbox post ( final Envelope envelope ) {
+		return post( envelope, ttl );
+	}
 
-			if ( ac != null ) {
-				try {
-					logger.info( "Sending {}...", envelope );
-					PrintWriter writer = ac.getResponse().getWriter();
+	/**
+	 * Drops the envelope into its recipient's mailbox, numbering it unless it already is (replayed).
+	 */
+	private static final Mailbox post ( final Envelope envelope, final long expiresIn ) {
+		envelope.expiry = wheel.schedule( () -> expire( envelope ), expiresIn );
 
-					writer.println( envelope.attempt() );
-					writer.flush();
+		return mailboxes.compute( envelope.to, ( id, mailbox ) -> {
+			if ( mailbox == null ) {
+				mailbox = new Mailbox( id );
+			}
+			if ( envelope.seq == 0L ) {
+				envelope.seq = nextSeq();
+			}
+			if ( dropOldest ) {
+				// Make room by giving up on the oldest still waiting
+				Envelope oldest;
+				while ( mailbox.queued.get() >= mailboxMax && ( oldest = mailbox.envelopes.poll() ) != null ) {
+					oldest.expiry.cancel();
+					if ( !oldest.replay ) {
+						logger.warn( "Mailbox '{}' full, dropped: {}", id, oldest );
+						dropped.incrementAndGet();
+						ack( oldest );
+					}
+					removed( mailbox, oldest );
+				}
+			}
+			mailbox.envelopes.add( envelope );
+			mailbox.queued.incrementAndGet();
+			queued.incrementAndGet();
+			return mailbox;
+		} );
+	}
 
-					ac.complete();
-				} catch ( IOException ioe ) {
-					logger.info( ioe.toString() );
-					waiters.remove( envelope.to );
-					messages.put( envelope );
+	/**
+	 * The next sequence number: one more than the last, but never behind the clock. Whichever node owns a recipient
+	 * after a rebalance (or a restart without a journal) numbers on from past anything its client saw before, so a
+	 * cursor ("since", Last-Event-ID) from elsewhere never passes over new mail. Stays well inside a JavaScript number.
+	 */
+	private static final long nextSeq () {
+		return sequence.updateAndGet( s -> Math.max( s + 1, System.currentTimeMillis() * SEQ_PER_MS ) );
+	}
+
+	/**
+	 * Bookkeeping for an envelope that left its mailbox for good.
+	 */
+	private static final void removed ( final Mailbox mailbox, final Envelope envelope ) {
+		if ( !envelope.replay ) {
+			mailbox.queued.decrementAndGet();
+			queued.decrementAndGet();
+		}
+	}
+
+	private static final void expire ( final Envelope envelope ) {
+		mailboxes.computeIfPresent( envelope.to, ( id, mailbox ) -> {
+			if ( mailbox.envelopes.remove( envelope ) ) {
+				logger.warn( "Envelope to '{}' timed out: {}", envelope.to, envelope );
+				expired.inc();
+				ack( envelope );
+				removed( mailbox, envelope );
+			}
+			return mailbox.isIdle() ? null : mailbox;
+		} );
+	}
+
+	/**
+	 * Turns a post away if there's no room for it or the sender is over its rate; nothing is queued either way, and a
+	 * post with no room isn't charged to the sender.
+	 */
+	private static final void admit ( final String sender, final String[] to ) throws Overloaded {
+		admit( to );
+		if ( rate > 0 ) {
+			final long wait = buckets.computeIfAbsent( sender, k -> new TokenBucket( rate, burst ) )
+				.tryAcquire( to.length );
+			if ( wait > 0 ) {
+				throttled.incrementAndGet();
+				throw new Overloaded( "sender " + sender + " over rate", wait );
+			}
+		}
+	}
+
+	/**
+	 * Turns a post away if there's no room for it (or nowhere to put it yet), whoever it's from.
+	 */
+	private static final void admit ( final String[] to ) throws Overloaded {
+		if ( !isRunning() ) {
+			throw new Overloaded( "not started", 1000 );
+		}
+
+		if ( queued.get() + to.length > maxQueued ) {
+			rejected.incrementAndGet();
+			throw new Overloaded( "queue full", 1000 );
+		}
+
+		if ( !dropOldest ) {
+			for ( String id : to ) {
+				final Mailbox mailbox = mailboxes.get( id );
+				if ( mailbox != null && mailbox.queued.get() >= mailboxMax ) {
+					rejected.incrementAndGet();
+					throw new Overloaded( "mailbox " + id + " full", 1000 );
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true once init has set up the wheel and dispatchers (and until destroy)
+	 */
+	private static final boolean isRunning () {
+		return wheel != null && dispatchers.length > 0;
+	}
+
+	/**
+	 * Forgets delivered envelopes older than historyAge and drops mailboxes left with nothing; reschedules itself.
+	 */
+	private static final void sweep () {
+		final long before = System.currentTimeMillis() - historyAge;
+		for ( String id : mailboxes.keySet() ) {
+			mailboxes.computeIfPresent( id, ( k, mailbox ) -> {
+				mailbox.prune( before );
+				return mailbox.isIdle() ? null : mailbox;
+			} );
+		}
+		// Buckets that have refilled belong to senders that went quiet
+		buckets.values().removeIf( TokenBucket::isFull );
+		wheel.schedule( Comms::sweep, Math.min( historyAge, 1000 * 60 ) );
+	}
+
+	/**
+	 * Done with it (delivered or expired) as far as the journal is concerned.
+	 */
+	private static final void ack ( final Envelope envelope ) {
+		final Journal j = journal;
+		if ( j != null && !envelope.replay ) {
+			j.ack( envelope.seq );
+		}
+	}
+
+	private static final void ack ( final List<Envelope> envelopes ) {
+		final Journal j = journal;
+		if ( j != null ) {
+			final long[] seqs = new long[ envelopes.size() ];
+			int count = 0;
+			for ( Envelope envelope : envelopes ) {
+				// Replays were acked the first time round
+				if ( !envelope.replay ) {
+					seqs[ count++ ] = envelope.seq;
+				}
+			}
+			if ( count > 0 ) {
+				j.ack( count == seqs.length ? seqs : Arrays.copyOf( seqs, count ) );
+			}
+		}
+	}
+
+	/**
+	 * Puts back whatever the journal had pending, minus anything that expired while we were down.
+	 */
+	private static final void replay ( final List<Journal.Entry> entries ) {
+		final long now = System.currentTimeMillis();
+		int restored = 0;
+
+		for ( Journal.Entry entry : entries ) {
+			final Payload payload = new Payload( entry.room, entry.toList, entry.from, entry.message,
+				entry.received );
+			for ( int r = 0; r < entry.recipients.length; r++ ) {
+				final long remaining = entry.received + ttl - now;
+				if ( remaining <= 0 ) {
+					journal.ack( entry.seqs[ r ] );
+					continue;
+				}
+				final Envelope envelope = new Envelope( entry.recipients[ r ], payload );
+				envelope.seq = entry.seqs[ r ];
+				post( envelope, remaining );
+				restored++;
+			}
+		}
+		logger.info( "Replayed {} envelope(s) from the journal", restored );
+	}
+
+	private static final void retry ( final String id ) {
+		final Mailbox mailbox = mailboxes.get( id );
+		if ( mailbox != null ) {
+			signal( mailbox );
+		}
+	}
+
+	/**
+	 * Like {@link #signal(Mailbox)} but holds off for the linger window so that envelopes posted close together go
+	 * out in one response.
+	 */
+	private static final void signalLingering ( final Mailbox mailbox ) {
+		if ( linger <= 0 ) {
+			signal( mailbox );
+		} else if ( mailbox.isDeliverable() && mailbox.scheduled.compareAndSet( false, true ) ) {
+			wheel.schedule( () -> dispatcherFor( mailbox.id ).ready.add( mailbox ), linger );
+		}
+	}
+
+	/**
+	 * @param lastSeq the last sequence number the waiter has already seen (e.g. SSE Last-Event-ID or "since"), or -1;
+	 *        anything after it that was already delivered (and is still in the history) is queued up again
+	 */
+	private static final Mailbox attach ( final String id, final Waiter waiter, final long lastSeq ) {
+		return mailboxes.compute( id, ( k, mailbox ) -> {
+			if ( mailbox == null ) {
+				mailbox = new Mailbox( k );
+			}
+			if ( lastSeq >= 0 ) {
+				// Already received; these only linger from a write that failed after the client got it
+				Envelope head;
+				while ( ( head = mailbox.envelopes.peek() ) != null && head.seq <= lastSeq ) {
+					if ( mailbox.envelopes.remove( head ) ) {
+						head.expiry.cancel();
+						ack( head );
+						removed( mailbox, head );
+					}
+				}
+				final List<Envelope> missed = mailbox.recent( lastSeq );
+				if ( !missed.isEmpty() ) {
+					final HashSet<Long> pending = new HashSet<Long>();
+					for ( Envelope e : mailbox.envelopes ) {
+						pending.add( e.seq );
+					}
+					for ( int i = missed.size() - 1; i >= 0; i-- ) {
+						if ( !pending.contains( missed.get( i ).seq ) ) {
+							final Envelope again = new Envelope( missed.get( i ) );
+							again.expiry = wheel.schedule( () -> expire( again ), ttl );
+							mailbox.envelopes.addFirst( again );
+						}
+					}
+				}
+			}
+			mailbox.waiter.set( waiter );
+			return mailbox;
+		} );
+	}
+
+	private static final void detach ( final String id, final Waiter waiter ) {
+		mailboxes.computeIfPresent( id, ( k, mailbox ) -> {
+			mailbox.waiter.compareAndSet( waiter, null );
+			return mailbox.isIdle() ? null : mailbox;
+		} );
+	}
+
+	private static final void signal ( final Mailbox mailbox ) {
+		if ( mailbox.isDeliverable() && mailbox.scheduled.compareAndSet( false, true ) ) {
+			dispatcherFor( mailbox.id ).ready.add( mailbox );
+		}
+	}
+
+	private static final TimingWheel.Timeout heartbeat ( final StreamWaiter waiter ) {
+		return wheel.schedule( waiter::beat, heartbeat );
+	}
+
+	private static final Dispatcher dispatcherFor ( final String id ) {
+		final Dispatcher[] d = dispatchers;
+		return d[ ( id.hashCode() & 0x7fffffff ) % d.length ];
+	}
+
+	private static final boolean pollQueue ( final BlockingQueue<Mailbox> ready ) {
+		try {
+
+			final Mailbox mailbox = ready.take();
+			mailbox.scheduled.set( false );
+
+			final Waiter waiter = mailbox.waiter.get();
+			if ( waiter == null ) {
+				return true;
+			}
+
+			// Their client hasn't caught up yet; the connection signals again once it has
+			if ( !waiter.isWritable() ) {
+				return true;
+			}
+
+			final long now = System.currentTimeMillis();
+
+			// Still backing off from a failed attempt; its retry timer will signal again
+			final Envelope head = mailbox.envelopes.peek();
+			if ( head == null || head.notBefore > now ) {
+				return true;
+			}
+
+			final List<Envelope> sent = new ArrayList<Envelope>();
+			int size = 0;
+			Envelope envelope;
+			while ( sent.size() < batchCount && ( envelope = mailbox.envelopes.poll() ) != null ) {
+				sent.add( envelope.addAttempt() );
+				size += envelope.length();
+				if ( size >= batchBytes ) {
+					break;
+				}
+			}
+			if ( sent.isEmpty() ) {
+				return true;
+			}
+
+			try {
+				if ( Metrics.sample( logger ) ) {
+					logger.debug( "Sending {} to '{}'...", sent.size(), mailbox.id );
 				}
-			} else { // Couldn't find a waiter, put it back in the queue
-				// TODO: This should go into a retry queue
 
-				// Check if it hasn't reached the retrans limit
-				if ( envelope.received + RETRANS >= System.currentTimeMillis() ) {
-					messages.put( envelope );
+				// For async waiters this only queues; once queued they count as sent (history covers the rest)
+				waiter.write( sent );
+
+				for ( Envelope e : sent ) {
+					e.expiry.cancel();
+					if ( !e.replay ) {
+						delivered.inc();
+						deliveryTime.recordSince( e.created );
+					}
+				}
+				ack( sent );
+				mailbox.remember( sent );
+				for ( Envelope e : sent ) {
+					removed( mailbox, e );
+				}
+
+				if ( waiter.isOneShot() ) {
+					mailbox.waiter.compareAndSet( waiter, null );
+					waiter.complete();
 				} else {
-					logger.warn( "Envelope to '{}' timed out: {}", envelope.to, envelope );
+					// Still connected; keep going if there's more than one batch worth
+					signal( mailbox );
 				}
+			} catch ( IOException | IllegalStateException ex ) {
+				logger.info( ex.toString() );
+				retries.add( sent.size() );
+				// Keep them at the head, in order, so ordering survives for the next waiter
+				final long delay = sent.get( 0 ).backoff( backoff, backoffMax );
+				sent.get( 0 ).notBefore = now + delay;
+				for ( int i = sent.size() - 1; i >= 0; i-- ) {
+					mailbox.envelopes.addFirst( sent.get( i ) );
+				}
+				detach( mailbox.id, waiter );
+				waiter.complete();
+				wheel.schedule( () -> retry( mailbox.id ), delay );
 			}
 		} catch ( InterruptedException iex ) {
 			return false;
@@ -90,23 +536,138 @@ public class Comms extends HttpServlet {
 		super.init( config );
 
 		logger.info( "Comms init.." );
-		Runnable notifierRunnable = new Runnable() {
 
-			public void run () {
-				while ( pollQueue() ) {
-					;
+		ttl = getConfigLong( "ttl", RETRANS );
+		backoff = getConfigLong( "backoff", BACKOFF );
+		backoffMax = getConfigLong( "backoff.max", BACKOFF_MAX );
+		linger = getConfigLong( "linger", 0 );
+		batchCount = (int) Math.max( 1, getConfigLong( "batch.count", 64 ) );
+		batchBytes = (int) Math.max( 1, getConfigLong( "batch.bytes", 64 * 1024 ) );
+		heartbeat = Math.max( 1, getConfigLong( "heartbeat", 1000 * 15 ) );
+		history = (int) Math.max( 0, getConfigLong( "history", 64 ) );
+		historyAge = Math.max( 1000, getConfigLong( "history.age", 1000 * 60 * 10 ) );
+		maxQueued = (int) Math.max( 1, getConfigLong( "max", 100000 ) );
+		mailboxMax = (int) Math.max( 1, getConfigLong( "mailbox.max", 256 ) );
+		dropOldest = "drop-oldest".equalsIgnoreCase( getConfigString( "overflow", "reject" ) );
+		rate = Math.max( 0, getConfigLong( "rate", 50 ) );
+		burst = Math.max( 1, getConfigLong( "burst", 100 ) );
+		bodyMax = (int) Math.max( 1, getConfigLong( "body.max", 64 * 1024 ) );
+
+		wheel = new TimingWheel( "comms-wheel", getConfigLong( "wheel.tick", 100 ),
+			(int) getConfigLong( "wheel.size", 512 ) ).start();
+
+		final int shards = (int) Math.max( 1,
+			getConfigLong( "shards", Runtime.getRuntime().availableProcessors() ) );
+		final Dispatcher[] d = new Dispatcher[ shards ];
+		for ( int i = 0; i < shards; i++ ) {
+			d[ i ] = new Dispatcher( i );
+		}
+		dispatchers = d;
+		for ( Dispatcher dispatcher : d ) {
+			dispatcher.thread.start();
+		}
+		logger.info( "Comms dispatching on {} shard(s)", shards );
+
+		wheel.schedule( Comms::sweep, Math.min( historyAge, 1000 * 60 ) );
+
+		final String journalDir = getConfigString( "journal.dir", null );
+		if ( journalDir != null ) {
+			final Journal j = new Journal( new File( journalDir ),
+				getConfigLong( "journal.segment.bytes", 16 * 1024 * 1024 ),
+				Journal.Sync.valueOf( getConfigString( "journal.sync", "batch" ).toUpperCase() ),
+				getConfigLong( "journal.sync.interval", 100 ), getConfigLong( "journal.compact.interval", 1000 * 30 ) );
+			try {
+				final List<Journal.Entry> pending = j.open();
+				// Don't hand out numbers the journal already used
+				sequence.accumulateAndGet( j.maxSeq(), Math::max );
+				journal = j;
+				replay( pending );
+				for ( Mailbox mailbox : mailboxes.values() ) {
+					signal( mailbox );
 				}
+			} catch ( IOException ioe ) {
+				throw new ServletException( "Cannot open journal " + journalDir, ioe );
 			}
-		};
+		}
 
-		notifierThread = new Thread( notifierRunnable );
-		notifierThread.start();
+		final String self = getConfigString( "cluster.self", null );
+		final String nodes = getConfigString( "cluster.nodes", null );
+		if ( self != null && nodes != null ) {
+			// Starts out owning everything; whatever the journal brought back for others moves when they show up
+			// id=host:port,id=host:port,...
+			final Map<String,InetSocketAddress> addresses = new LinkedHashMap<String,InetSocketAddress>();
+			for ( String node : nodes.split( "," ) ) {
+				final int eq = node.indexOf( '=' ), colon = node.lastIndexOf( ':' );
+				if ( eq < 1 || colon < eq ) {
+					throw new ServletException( "Bad cluster node '" + node + "'; expected id=host:port" );
+				}
+				final String id = node.substring( 0, eq ).trim();
+				try {
+					addresses.put( id, new InetSocketAddress( node.substring( eq + 1, colon ).trim(),
+						Integer.parseInt( node.substring( colon + 1 ).trim() ) ) );
+				} catch ( IllegalArgumentException iae ) {
+					throw new ServletException( "Bad cluster node '" + node + "'; expected id=host:port", iae );
+				}
+				final String url = getConfigString( "cluster.http." + id, null );
+				if ( url != null ) {
+					clusterUrls.put( id, url );
+				}
+			}
+			try {
+				final ClusterLink link = new ClusterLink( self, addresses, new ClusterHandler(),
+					getConfigLong( "cluster.heartbeat", 1000 ), (int) getConfigLong( "cluster.replicas", 64 ) );
+				// Set before starting; peers may call in right away
+				cluster = link;
+				link.start();
+			} catch ( IOException | IllegalArgumentException ex ) {
+				cluster = null;
+				throw new ServletException( "Cannot join cluster as '" + self + "'", ex );
+			}
+		}
 
+		registerMetrics();
+	}
+
+	/**
+	 * Gauges over what's already counted elsewhere; read on every scrape.
+	 */
+	private static final void registerMetrics () {
+		Metrics.gauge( "comms_queued", "Envelopes waiting in mailboxes", queued::get );
+		Metrics.gauge( "comms_mailboxes", "Mailboxes", mailboxes::size );
+		Metrics.gauge( "comms_timers", "Timers pending on the wheel", () -> wheel.size() );
+		Metrics.gauge( "comms_rooms", "Rooms", rooms::size );
+		Metrics.counter( "comms_rejected_total", "Posts turned away for lack of room", rejected::get );
+		Metrics.counter( "comms_dropped_total", "Envelopes dropped to make room (drop-oldest)", dropped::get );
+		Metrics.counter( "comms_throttled_total", "Posts turned away for sender rate", throttled::get );
+		Metrics.gauge( "comms_writes_stalled", "Connections waiting on their client right now",
+			AsyncOutput::stalledNow );
+		Metrics.counter( "comms_write_stalls_total", "Times a connection had to wait on its client",
+			AsyncOutput::totalStalls );
+		Metrics.counter( "comms_write_stall_milliseconds_total", "Time connections spent waiting on their client",
+			AsyncOutput::totalStallMillis );
+		if ( journal != null ) {
+			Metrics.gauge( "comms_journal_live", "Journal entries not yet acked", () -> {
+				final Journal j = journal;
+				return j != null ? j.size() : 0;
+			} );
+		}
+		if ( cluster != null ) {
+			Metrics.gauge( "comms_cluster_nodes", "Cluster nodes up (self included)", () -> {
+				final ClusterLink c = cluster;
+				return c != null ? c.nodes().size() : 0;
+			} );
+			Metrics.gauge( "comms_cluster_backlog", "Frames waiting to go to peers", () -> {
+				final ClusterLink c = cluster;
+				return c != null ? c.backlog() : 0;
+			} );
+		}
 	}
 
 	protected void doGet ( HttpServletRequest request, HttpServletResponse response )
 		throws ServletException, IOException {
-		logger.info( "doGet..." );
+		if ( Metrics.sample( logger ) ) {
+			logger.debug( "doGet {}", request.getQueryString() );
+		}
 
 		response.setContentType( "text/html" );
 		response.setHeader( "Cache-Control", "private" );
@@ -115,72 +676,159 @@ public class Comms extends HttpServlet {
 		final String i = request.getParameter( "i" );
 		if ( i != null ) {
 			PrintWriter writer = response.getWriter();
-			writer.println( String.format( "waiters: %s messages: %s", waiters.size(), messages.size() ) );
+			int waiting = 0, pending = 0, deliveredNow = 0;
+			for ( Mailbox mailbox : mailboxes.values() ) {
+				waiting += mailbox.waiter.get() != null ? 1 : 0;
+				pending += mailbox.envelopes.size();
+				deliveredNow += mailbox.historySize();
+			}
+			writer.println( String.format( "waiters: %s messages: %s mailboxes: %s timers: %s shards: %s history: %s",
+				waiting, pending, mailboxes.size(), wheel.size(), dispatchers.length, deliveredNow ) );
+			writer.println( String.format( "queued: %s/%s overflow: %s rejected: %s dropped: %s throttled: %s senders: %s",
+				queued.get(), maxQueued, dropOldest ? "drop-oldest" : "reject", rejected.get(), dropped.get(),
+				throttled.get(), buckets.size() ) );
+			int members = 0;
+			for ( Set<String> room : rooms.values() ) {
+				members += room.size();
+			}
+			writer.println( String.format( "rooms: %s members: %s", rooms.size(), members ) );
+			if ( cluster != null ) {
+				writer.println( String.format( "cluster: %s nodes: %s backlog: %s", cluster.self(), cluster.nodes(),
+					cluster.backlog() ) );
+			}
+			writer.println( String.format( "writes stalled: %s stalls: %s stall ms: %s", AsyncOutput.stalledNow(),
+				AsyncOutput.totalStalls(), AsyncOutput.totalStallMillis() ) );
+			if ( journal != null ) {
+				writer.println( String.format( "journal: %s live: %s segments: %s", journal.getSync(), journal.size(),
+					journal.segments() ) );
+			}
 			writer.flush();
 			writer.close();
 			return;
 		}
 
-		final String waiter = request.getParameter( "w" );
+		final String waiterId = request.getParameter( "w" );
 
-		if ( waiter == null || "".equals( waiter ) ) {
+		if ( waiterId == null || "".equals( waiterId ) ) {
 			response.sendError( 422, "nocando" );
 			return;
 		} else {
-			logger.info( "Establishing connection with '{}'...", waiter );
+			logger.debug( "Establishing connection with '{}'...", waiterId );
+		}
+
+		final String owner = ownerElsewhere( waiterId );
+		if ( owner != null ) {
+			// Their mailbox lives on another node
+			final String url = ownerUrl( owner );
+			response.setHeader( "X-Comms-Owner", owner );
+			if ( url != null ) {
+				final String query = request.getQueryString();
+				response.setStatus( 307 );
+				response.setHeader( "Location", url + request.getServletPath() + ( query != null ? "?" + query : "" ) );
+			} else {
+				response.sendError( 421, "nocando" );
+			}
+			return;
+		}
+
+		final boolean streaming = isStreamRequest( request );
+
+		if ( streaming ) {
+			response.setContentType( "text/event-stream" );
+			response.setCharacterEncoding( "UTF-8" );
 		}
 
-		final PrintWriter writer = response.getWriter();
-		// for IE
-		writer.println( "\n" );
-		writer.flush();
+		final ServletOutputStream out = response.getOutputStream();
+		if ( streaming ) {
+			// Commits the headers and tells EventSource how soon to come back
+			out.write( "retry: 2000\n\n".getBytes( StandardCharsets.US_ASCII ) );
+		} else {
+			// for IE
+			out.write( "\n\n".getBytes( StandardCharsets.US_ASCII ) );
+		}
+		out.flush();
 
+		final long started = System.nanoTime();
 		final AsyncContext ac = request.startAsync( request, response );
-		ac.setTimeout( 10 * 60 * 1000 );
-		// ac.setTimeout( 1 * 5 * 1000 );
+		ac.setTimeout( streaming ? 0 : 10 * 60 * 1000 );
 
-		waiters.put( waiter, ac );
+		final AsyncWaiter waiter = streaming ? new StreamWaiter( waiterId, ac, out )
+			: new LongPollWaiter( waiterId, ac, out );
 
-		final HttpServletResponse sr = response;
-		final HttpServletRequest sq = request;
-		// writer.close();
 		ac.addListener( new AsyncListener() {
 
 			public void onComplete ( AsyncEvent event ) throws IOException {
-				waiters.remove( waiter );
-				logger.info( "completed '{}'", waiter );
-				// event.getSuppliedResponse().flushBuffer();
-				// event.getAsyncContext().getResponse().getOutputStream().close();
-				// event.getAsyncContext().getResponse().
-				// sr.getOutputStream().close();
-				logger.info( "t={}", Thread.currentThread().getName() );
-				Thread.currentThread().interrupt();
-				// Thread.currentThread().getClass();
-
-				logger.info( "alldone {}", writer.checkError() );
+				detach( waiterId, waiter );
+				waiter.close();
+				if ( !streaming ) {
+					holdTime.recordSince( started );
+				}
+				logger.debug( "completed '{}'", waiterId );
 			}
 
 			public void onTimeout ( AsyncEvent event ) throws IOException {
-				waiters.remove( waiter );
-				logger.info( "timedout '{}'", waiter );
+				detach( waiterId, waiter );
+				waiter.abort( new IOException( "timed out" ) );
+				logger.debug( "timedout '{}'", waiterId );
 			}
 
 			public void onError ( AsyncEvent evt ) throws IOException {
-				logger.info( "errored '{}'", waiter );
-				;
+				detach( waiterId, waiter );
+				waiter.abort( evt.getThrowable() != null ? evt.getThrowable() : new IOException( "failed" ) );
+				logger.debug( "errored '{}'", waiterId );
 			}
 
 			public void onStartAsync ( AsyncEvent evt ) throws IOException {
-				logger.info( "started '{}'", waiter );
+				logger.debug( "started '{}'", waiterId );
 				;
 			}
 		} );
 
+		// Non-blocking from here on
+		waiter.start();
+
+		// Anything already waiting for this recipient goes out right away
+		signal( attach( waiterId, waiter, getSince( request, streaming ) ) );
+
+	}
+
+	private static final boolean isStreamRequest ( HttpServletRequest request ) {
+		final String accept = request.getHeader( "Accept" );
+		return "1".equals( request.getParameter( "s" ) )
+			|| ( accept != null && accept.contains( "text/event-stream" ) );
+	}
+
+	/**
+	 * Where the client left off: "since" if given, otherwise (streams only) the SSE Last-Event-ID; -1 if neither.
+	 */
+	private static final long getSince ( HttpServletRequest request, boolean streaming ) {
+		String since = request.getParameter( "since" );
+		if ( since == null && streaming ) {
+			since = request.getHeader( "Last-Event-ID" );
+			if ( since == null ) {
+				// EventSource can't set headers on the first connect, so allow it as a parameter too
+				since = request.getParameter( "lei" );
+			}
+		}
+		return parseSeq( since );
+	}
+
+	static final long parseSeq ( String seq ) {
+		if ( seq != null ) {
+			try {
+				return Math.max( -1, Long.parseLong( seq.trim() ) );
+			} catch ( NumberFormatException nfe ) {
+				;
+			}
+		}
+		return -1;
 	}
 
 	protected void doPost ( HttpServletRequest request, HttpServletResponse response )
 		throws ServletException, IOException {
-		logger.info( "doPost..." );
+		if ( Metrics.sample( logger ) ) {
+			logger.debug( "doPost {}", request.getQueryString() );
+		}
 
 		response.setContentType( "text/plain" );
 		response.setHeader( "Cache-Control", "private" );
@@ -190,10 +838,57 @@ public class Comms extends HttpServlet {
 
 		// final String recipient = request.getParameter( "r" );
 		final String[] to = request.getParameterValues( "t" );
+		final String room = request.getParameter( "g" );
+
+		if ( BodyReader.isRaw( request ) ) {
+			// Recipients on the query string; the body is the message, read without tying up this thread
+			if ( ( to == null || to.length < 1 ) && ( room == null || "".equals( room ) ) ) {
+				response.sendError( 422, "nocando" );
+				return;
+			}
+			BodyReader.read( request, response, BufferPool.shared(), bodyMax,
+				( req, resp, body, length ) -> post( req, resp, to, room, BodyReader.toText( req, body, length ) ) );
+			return;
+		}
+
 		final String message = request.getParameter( "m" );
+
+		final String join = request.getParameter( "j" );
+		final String leave = request.getParameter( "l" );
+		if ( join != null || leave != null ) {
+			final String waiterId = request.getParameter( "w" );
+			if ( waiterId == null || "".equals( waiterId ) ) {
+				response.sendError( 422, "nocando" );
+				return;
+			}
+			boolean local = true;
+			if ( join != null && !"".equals( join ) ) {
+				local &= member( join, waiterId, true );
+			}
+			if ( leave != null && !"".equals( leave ) ) {
+				local &= member( leave, waiterId, false );
+			}
+			if ( local ) {
+				response.getWriter().println( members( join != null ? join : leave ).length );
+			} else {
+				// Passed on to the node that owns the room
+				response.setStatus( 202 );
+			}
+			return;
+		}
+
+		post( request, response, to, room, message );
+	}
+
+	/**
+	 * Validates and sends one post, whichever way its message arrived.
+	 */
+	private static final void post ( HttpServletRequest request, HttpServletResponse response, String[] to,
+		String room, String message ) throws IOException {
+
 		final String from = "Mr. X";
 
-		if ( to == null || to.length < 1 ) {
+		if ( ( to == null || to.length < 1 ) && ( room == null || "".equals( room ) ) ) {
 			response.sendError( 422, "nocando" );
 			return;
 		} else if ( message == null || "".equals( message ) ) {
@@ -201,25 +896,424 @@ public class Comms extends HttpServlet {
 			return;
 		}
 
-		for ( int i = 0; i < to.length; i++ ) {
-			final Envelope envelope = new Envelope( to[ i ], to, from, message );
-			logger.info( "Env to {} => {}", to[ i ], envelope.toJSON() );
+		if ( room != null && !"".equals( room ) && isEmptyRoom( room ) ) {
+			response.sendError( 404, "nocando" );
+			return;
+		}
+
+		final CompletableFuture<Void> journaled;
+		try {
+			if ( room != null && !"".equals( room ) ) {
+				journaled = sendToRoom( request.getRemoteAddr(), from, room, message );
+			} else {
+				journaled = send( request.getRemoteAddr(), from, to, message );
+			}
+		} catch ( Overloaded o ) {
+			if ( Metrics.sample( logger ) ) {
+				logger.debug( "Post turned away: {}", o.getMessage() );
+			}
+			response.setHeader( "Retry-After", Long.toString( ( o.retryAfter + 999 ) / 1000 ) );
+			response.sendError( 429, "nocando" );
+			return;
+		}
+
+		if ( journaled != null && journal.getSync() == Journal.Sync.ALWAYS ) {
+			// Only say yes once it's on disk
 			try {
-				messages.put( envelope );
-			} catch ( InterruptedException e ) {
-				e.printStackTrace();
-				response.sendError( 521, "sump'n went snap" );
+				journaled.get( 5, TimeUnit.SECONDS );
+			} catch ( InterruptedException | ExecutionException | TimeoutException ex ) {
+				logger.error( "Post not journaled: {}", ex.toString() );
+				response.sendError( 503, "nocando" );
+			}
+		}
+
+	}
+
+	/**
+	 * Posts message to every recipient in to; shared by every transport.
+	 *
+	 * @param sender who to charge it to for rate limiting (e.g. remote address)
+	 * @throws Overloaded if turned away by admission control, in which case nothing was sent
+	 */
+	static final CompletableFuture<Void> send ( String sender, String from, String[] to, String message )
+		throws Overloaded {
+		return send( sender, from, null, to, message );
+	}
+
+	/**
+	 * Posts message from the server itself (e.g. keys released by TBE): not charged to any sender's rate, but still
+	 * turned away if there's no room for it.
+	 *
+	 * @throws Overloaded if there's no room, or Comms isn't up (yet)
+	 */
+	static final CompletableFuture<Void> sendInternal ( String from, String[] to, String message ) throws Overloaded {
+		admit( to );
+		return route( System.currentTimeMillis(), from, null, message, to, to, null, 0 );
+	}
+
+	/**
+	 * Posts message to everyone in the room right now.
+	 *
+	 * @return null if the room is empty (or there is no such room), otherwise as {@link #send}
+	 */
+	static final CompletableFuture<Void> sendToRoom ( String sender, String from, String room, String message )
+		throws Overloaded {
+		final ClusterLink c = cluster;
+		if ( c != null && !c.isLocal( room ) ) {
+			// Only the room's owner knows who's in it; charge the sender for the one post
+			admit( sender, new String[] { room } );
+			final String[] none = new String[ 0 ];
+			if ( c.forward( c.owner( room ),
+				new ClusterLink.Post( System.currentTimeMillis(), from, room, message, none, none, 0 ) ) ) {
+				return null;
+			}
+		}
+		final String[] to = members( room );
+		if ( to.length < 1 ) {
+			return null;
+		}
+		return send( sender, from, room, to, message );
+	}
+
+	private static final CompletableFuture<Void> send ( String sender, String from, String room, String[] to,
+		String message ) throws Overloaded {
+		admit( sender, to );
+		return route( System.currentTimeMillis(), from, room, message, to, to, null, 0 );
+	}
+
+	/**
+	 * Posts to the recipients this node owns and forwards the rest to their owners (everything is local when not
+	 * clustered).
+	 *
+	 * @param seqs each recipient's sequence number if it already has one (handed off by a rebalance), else null
+	 * @return as {@link #deliver}, for the local part
+	 */
+	private static final CompletableFuture<Void> route ( long received, String from, String room, String message,
+		String[] toList, String[] recipients, long[] seqs, int hops ) {
+		final ClusterLink c = cluster;
+		if ( c == null || hops >= 2 ) {
+			// Bounced around enough; two nodes disagree about the ring for the moment, so just keep it
+			return deliver( received, from, room, message, toList, recipients, seqs );
+		}
+
+		final List<Integer> local = new ArrayList<Integer>( recipients.length );
+		Map<String,List<Integer>> remote = null;
+		for ( int i = 0; i < recipients.length; i++ ) {
+			final String owner = c.owner( recipients[ i ] );
+			if ( c.self().equals( owner ) ) {
+				local.add( i );
+			} else {
+				if ( remote == null ) {
+					remote = new HashMap<String,List<Integer>>();
+				}
+				remote.computeIfAbsent( owner, k -> new ArrayList<Integer>() ).add( i );
+			}
+		}
+		if ( local.size() == recipients.length ) {
+			return deliver( received, from, room, message, toList, recipients, seqs );
+		}
+		if ( remote != null ) {
+			for ( Map.Entry<String,List<Integer>> e : remote.entrySet() ) {
+				if ( !c.forward( e.getKey(), new ClusterLink.Post( received, from, room, message, toList,
+					pick( recipients, e.getValue() ), pick( seqs, e.getValue() ), hops ) ) ) {
+					// Went down just now; hold on to them, the rebalance will sort it out
+					local.addAll( e.getValue() );
+				}
+			}
+		}
+		return local.isEmpty() ? null
+			: deliver( received, from, room, message, toList, pick( recipients, local ), pick( seqs, local ) );
+	}
+
+	private static final String[] pick ( String[] values, List<Integer> indexes ) {
+		final String[] picked = new String[ indexes.size() ];
+		for ( int i = 0; i < picked.length; i++ ) {
+			picked[ i ] = values[ indexes.get( i ) ];
+		}
+		return picked;
+	}
+
+	/**
+	 * @return null for null, otherwise as {@link #pick(String[], List)}; zeros where there's no number yet
+	 */
+	private static final long[] pick ( long[] values, List<Integer> indexes ) {
+		if ( values == null ) {
+			return null;
+		}
+		final long[] picked = new long[ indexes.size() ];
+		for ( int i = 0; i < picked.length; i++ ) {
+			picked[ i ] = values[ indexes.get( i ) ];
+		}
+		return picked;
+	}
+
+	/**
+	 * Posts to local mailboxes.
+	 *
+	 * @param numbered sequence numbers to keep (0 or null: give it the next one), so that a handed off envelope stays
+	 *        what its client may have already seen
+	 * @return completes once journaled, or null if there's no journal
+	 */
+	private static final CompletableFuture<Void> deliver ( long received, String from, String room, String message,
+		String[] toList, String[] to, long[] numbered ) {
+		// Encoded once; each recipient's envelope only carries its own delivery state
+		final Payload payload = new Payload( room, toList, from, message, received );
+		final Mailbox[] boxes = new Mailbox[ to.length ];
+		final long[] seqs = new long[ to.length ];
+		for ( int i = 0; i < to.length; i++ ) {
+			final Envelope envelope = new Envelope( to[ i ], payload );
+			if ( numbered != null && numbered[ i ] > 0L ) {
+				envelope.seq = numbered[ i ];
+				// Whatever comes next for them comes after it
+				sequence.accumulateAndGet( envelope.seq, Math::max );
+			}
+			if ( Metrics.sample( logger ) ) {
+				logger.debug( "Env to {} => {}", to[ i ], envelope.toJSON() );
+			}
+			boxes[ i ] = post( envelope );
+			seqs[ i ] = envelope.seq;
+		}
+		posted.add( to.length );
+
+		final Journal j = journal;
+		final CompletableFuture<Void> journaled = j == null ? null
+			: j.append( new Journal.Entry( payload.received, from, message, toList, to, seqs, room ) );
+
+		for ( Mailbox mailbox : boxes ) {
+			signalLingering( mailbox );
+		}
+		return journaled;
+	}
+
+	/**
+	 * @return true if id wasn't in the room already
+	 */
+	static final boolean join ( String room, String id ) {
+		final boolean[] added = new boolean[ 1 ];
+		rooms.compute( room, ( k, members ) -> {
+			if ( members == null ) {
+				members = ConcurrentHashMap.newKeySet();
+			}
+			added[ 0 ] = members.add( id );
+			return members;
+		} );
+		return added[ 0 ];
+	}
+
+	/**
+	 * @return true if id was in the room; the room goes away with its last member
+	 */
+	static final boolean leave ( String room, String id ) {
+		final boolean[] removed = new boolean[ 1 ];
+		rooms.computeIfPresent( room, ( k, members ) -> {
+			removed[ 0 ] = members.remove( id );
+			return members.isEmpty() ? null : members;
+		} );
+		return removed[ 0 ];
+	}
+
+	static final String[] members ( String room ) {
+		final Set<String> members = rooms.get( room );
+		return members == null ? new String[ 0 ] : members.toArray( new String[ 0 ] );
+	}
+
+	/**
+	 * Joins or leaves on whichever node owns the room.
+	 *
+	 * @return false if it went to another node
+	 */
+	static final boolean member ( String room, String id, boolean joined ) {
+		final ClusterLink c = cluster;
+		if ( c != null && !c.isLocal( room ) && c.forward( c.owner( room ), room, id, joined ) ) {
+			return false;
+		}
+		if ( joined ) {
+			join( room, id );
+		} else {
+			leave( room, id );
+		}
+		return true;
+	}
+
+	/**
+	 * @return true only if the room is known here to have nobody in it (its owner is the one to ask otherwise)
+	 */
+	static final boolean isEmptyRoom ( String room ) {
+		final ClusterLink c = cluster;
+		return ( c == null || c.isLocal( room ) ) && members( room ).length < 1;
+	}
+
+	/**
+	 * @return the node that owns id if that's not this one, otherwise null.
+	 */
+	static final String ownerElsewhere ( String id ) {
+		final ClusterLink c = cluster;
+		if ( c == null ) {
+			return null;
+		}
+		final String owner = c.owner( id );
+		return c.self().equals( owner ) ? null : owner;
+	}
+
+	/**
+	 * @return the owner's base URL for redirects (cluster.http.owner), if configured.
+	 */
+	static final String ownerUrl ( String owner ) {
+		return clusterUrls.get( owner );
+	}
+
+	/**
+	 * Takes what this node holds for keys it no longer owns and hands it to the new owners: pending envelopes are
+	 * forwarded (and the waiter let go so it reconnects, and is redirected), room memberships are re-joined there.
+	 * Delivered history stays behind.
+	 */
+	private static final void rebalance () {
+		final ClusterLink c = cluster;
+		if ( c == null ) {
+			return;
+		}
+		int moved = 0;
+
+		for ( String id : mailboxes.keySet() ) {
+			if ( c.isLocal( id ) ) {
+				continue;
+			}
+			final List<Envelope> handoff = new ArrayList<Envelope>();
+			final Waiter[] waiter = new Waiter[ 1 ];
+			mailboxes.computeIfPresent( id, ( k, mailbox ) -> {
+				if ( c.isLocal( k ) ) {
+					return mailbox;
+				}
+				Envelope envelope;
+				while ( ( envelope = mailbox.envelopes.poll() ) != null ) {
+					envelope.expiry.cancel();
+					removed( mailbox, envelope );
+					if ( !envelope.replay ) {
+						ack( envelope );
+						handoff.add( envelope );
+					}
+				}
+				waiter[ 0 ] = mailbox.waiter.getAndSet( null );
+				return null;
+			} );
+			for ( Envelope envelope : handoff ) {
+				final Payload p = envelope.payload;
+				route( p.received, p.from, p.room, p.message, p.toList, new String[] { id },
+					new long[] { envelope.seq }, 0 );
+			}
+			if ( waiter[ 0 ] != null ) {
+				waiter[ 0 ].complete();
+			}
+			moved += handoff.size();
+		}
+
+		for ( String room : rooms.keySet() ) {
+			if ( !c.isLocal( room ) ) {
+				final Set<String> members = rooms.remove( room );
+				if ( members != null ) {
+					for ( String id : members ) {
+						member( room, id, true );
+					}
+				}
 			}
 		}
+		logger.info( "Rebalanced onto {}: handed off {} envelope(s)", c.nodes(), moved );
+	}
+
+	/**
+	 * What comes in over the cluster links.
+	 */
+	private static final class ClusterHandler implements ClusterLink.Handler {
+
+		@Override
+		public void onPost ( ClusterLink.Post post ) {
+			if ( post.recipients.length > 0 ) {
+				route( post.received, post.from, post.room, post.message, post.toList, post.recipients, post.seqs,
+					post.hops );
+			} else if ( cluster.isLocal( post.room ) || post.hops >= 2
+				|| !cluster.forward( cluster.owner( post.room ), post ) ) {
+				// Ours, or passed round enough, or its owner just went down: whoever this node knows is in it gets it
+				final String[] to = members( post.room );
+				if ( to.length > 0 ) {
+					route( post.received, post.from, post.room, post.message, to, to, null, post.hops );
+				}
+			}
+		}
+
+		@Override
+		public void onMember ( String room, String id, boolean joined ) {
+			// Sent here because the sender thinks this is the owner; if it isn't, the next rebalance moves it
+			if ( joined ) {
+				join( room, id );
+			} else {
+				leave( room, id );
+			}
+		}
+
+		@Override
+		public void onMembership ( Set<String> nodes ) {
+			rebalance();
+		}
+	}
+
+	/**
+	 * Attaches a waiter (from any transport) to its mailbox; pending mail goes out right away.
+	 */
+	static final void connect ( Waiter waiter ) {
+		connect( waiter, -1 );
+	}
 
+	/**
+	 * @param since the last sequence number the client saw; delivered envelopes after it are sent again
+	 */
+	static final void connect ( Waiter waiter, long since ) {
+		signal( attach( waiter.id, waiter, since ) );
+	}
+
+	static final void disconnect ( Waiter waiter ) {
+		detach( waiter.id, waiter );
+	}
+
+	/**
+	 * The waiter caught up (its earlier writes are out) and can take more; whatever is waiting goes out.
+	 */
+	static final void writable ( Waiter waiter ) {
+		retry( waiter.id );
 	}
 
 	@Override
 	public void destroy () {
 		logger.info( "Comms going dark bruh..." );
 
-		waiters.clear();
-		notifierThread.interrupt();
+		if ( cluster != null ) {
+			cluster.close();
+			cluster = null;
+			clusterUrls.clear();
+		}
+
+		for ( Dispatcher dispatcher : dispatchers ) {
+			dispatcher.thread.interrupt();
+		}
+		for ( Dispatcher dispatcher : dispatchers ) {
+			try {
+				dispatcher.thread.join( 1000 );
+			} catch ( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+			}
+			dispatcher.ready.clear();
+		}
+		dispatchers = new Dispatcher[ 0 ];
+		wheel.stop();
+		mailboxes.clear();
+		queued.set( 0 );
+		buckets.clear();
+		rooms.clear();
+
+		// Whatever is still queued stays in the journal for next time
+		if ( journal != null ) {
+			journal.close();
+			journal = null;
+		}
 
 		logger.info( "done" );
 		super.destroy();
@@ -247,44 +1341,440 @@ public class Comms extends HttpServlet {
 	public static final String stringArrayToJSONArray ( String[] sa ) {
 		final StringBuilder sb = new StringBuilder( "[" );
 		for ( int i = 0; i < sa.length; i++ ) {
-			// TODO: need to do some escaping, Lucy!
-			sb.append( i > 0 ? ",\"" : "\"" ).append( sa[ i ] ).append( "\"" );
+			sb.append( i > 0 ? "," : "" ).append( JsonEncoder.quote( sa[ i ] ) );
 		}
 		return sb.append( "]" ).toString();
 	}
 
-	public static final String longArrayToJSONArray ( ArrayList<Long> la ) {
-		final StringBuilder sb = new StringBuilder( "[" );
-		for ( int i = 0; i < la.size(); i++ ) {
-			sb.append( i > 0 ? "," : "" ).append( la.get( i ) );
+	private static final class Dispatcher implements Runnable {
+
+		public final BlockingQueue<Mailbox> ready = new LinkedBlockingQueue<Mailbox>();
+
+		public final Thread thread;
+
+		public Dispatcher ( int shard ) {
+			thread = new Thread( this, "comms-dispatch-" + shard );
+		}
+
+		public void run () {
+			while ( pollQueue( ready ) ) {
+				;
+			}
 		}
-		return sb.append( "]" ).toString();
 	}
 
-	// Received
-	private static final class Envelope {
+	/**
+	 * Something connected on behalf of a recipient that envelopes can be written to.
+	 */
+	static abstract class Waiter {
 
-		public final String to;
+		public final String id;
 
-		public final String toList;
+		public Waiter ( String id ) {
+			this.id = id;
+		}
 
-		public final String from;
+		/**
+		 * Writes a batch of envelopes; throws if the connection is no good.
+		 */
+		public abstract void write ( List<Envelope> envelopes ) throws IOException;
+
+		/**
+		 * @return true if the waiter is done after one batch (long-poll) rather than staying attached.
+		 */
+		public abstract boolean isOneShot ();
+
+		/**
+		 * @return false while earlier writes are still waiting on the client.
+		 */
+		public boolean isWritable () {
+			return true;
+		}
+
+		/**
+		 * Finishes the underlying connection.
+		 */
+		public abstract void complete ();
+
+		/**
+		 * The underlying connection finished (for whatever reason).
+		 */
+		public void close () {
+			;
+		}
+
+		@Override
+		public String toString () {
+			return String.format( "%s '%s'", getClass().getSimpleName(), id );
+		}
+	}
+
+	/**
+	 * Writes through an {@link AsyncOutput}: batches are encoded on the dispatcher and only the bytes wait on a slow
+	 * client, so a stalled connection holds up nobody else.
+	 */
+	private static abstract class AsyncWaiter extends Waiter {
+
+		protected final AsyncContext ac;
+
+		protected final AsyncOutput output;
+
+		// Each batch is encoded into a pooled array that goes back once written; only the dispatcher writes
+		private final BufferPool.Output encoded = new BufferPool.Output( BufferPool.shared() );
+
+		public AsyncWaiter ( String id, AsyncContext ac, ServletOutputStream out ) {
+			super( id );
+			this.ac = ac;
+			this.output = new AsyncOutput( id, out, () -> retry( id ), t -> {
+				detach( id, this );
+				complete();
+			} );
+		}
+
+		/**
+		 * Switches the response to non-blocking writes.
+		 */
+		public void start () {
+			output.start();
+		}
+
+		/**
+		 * The container ended the request (timed out or failed); whatever is still queued is dropped, and a stalled
+		 * write stops counting as one.
+		 */
+		public void abort ( Throwable t ) {
+			output.onError( t );
+		}
+
+		@Override
+		public void write ( List<Envelope> envelopes ) throws IOException {
+			try {
+				encode( JsonEncoder.get( encoded ), envelopes );
+			} catch ( IOException | RuntimeException ex ) {
+				// Half a batch is no use to the next one
+				BufferPool.shared().release( encoded.take() );
+				throw ex;
+			}
+			final int length = encoded.size();
+			output.write( encoded.take(), length, BufferPool.shared() );
+		}
+
+		protected abstract void encode ( JsonEncoder enc, List<Envelope> envelopes ) throws IOException;
+
+		@Override
+		public boolean isWritable () {
+			return output.backlog() == 0;
+		}
+
+		@Override
+		public void complete () {
+			close();
+			// Whatever's queued goes out first
+			output.close( () -> {
+				try {
+					ac.complete();
+				} catch ( IllegalStateException ise ) {
+					;
+				}
+			} );
+		}
+	}
+
+	private static final class LongPollWaiter extends AsyncWaiter {
 
-		public final long received = System.currentTimeMillis();
+		public LongPollWaiter ( String id, AsyncContext ac, ServletOutputStream out ) {
+			super( id, ac, out );
+		}
+
+		@Override
+		protected void encode ( JsonEncoder enc, List<Envelope> envelopes ) throws IOException {
+			enc.raw( '[' );
+			for ( int i = 0; i < envelopes.size(); i++ ) {
+				if ( i > 0 ) {
+					enc.raw( ',' );
+				}
+				envelopes.get( i ).writeTo( enc );
+			}
+			enc.raw( ']' ).raw( '\n' ).flush();
+		}
+
+		@Override
+		public boolean isOneShot () {
+			return true;
+		}
+	}
+
+	/**
+	 * Server-Sent Events: the connection stays open and every envelope is an event whose id is its sequence number.
+	 */
+	private static final class StreamWaiter extends AsyncWaiter {
+
+		private static final byte[] ID = "id: ".getBytes( StandardCharsets.US_ASCII );
+
+		private static final byte[] DATA = "\ndata: ".getBytes( StandardCharsets.US_ASCII );
+
+		private static final byte[] END = "\n\n".getBytes( StandardCharsets.US_ASCII );
+
+		private static final byte[] HEARTBEAT = ": hb\n\n".getBytes( StandardCharsets.US_ASCII );
+
+		private volatile TimingWheel.Timeout heartbeat = null;
+
+		private volatile boolean closed = false;
+
+		public StreamWaiter ( String id, AsyncContext ac, ServletOutputStream out ) {
+			super( id, ac, out );
+		}
+
+		@Override
+		protected void encode ( JsonEncoder enc, List<Envelope> envelopes ) throws IOException {
+			for ( Envelope envelope : envelopes ) {
+				enc.raw( ID ).number( envelope.seq ).raw( DATA );
+				envelope.writeTo( enc );
+				enc.raw( END );
+			}
+			enc.flush();
+		}
+
+		@Override
+		public void start () {
+			super.start();
+			heartbeat = Comms.heartbeat( this );
+		}
+
+		/**
+		 * Sends a heartbeat comment (unless still stuck behind earlier writes) and schedules the next one.
+		 */
+		public void beat () {
+			if ( closed ) {
+				return;
+			}
+			try {
+				if ( output.backlog() == 0 ) {
+					output.write( HEARTBEAT );
+				}
+			} catch ( IOException | IllegalStateException ex ) {
+				logger.info( "Stream to '{}' lost", id );
+				detach( id, this );
+				complete();
+				return;
+			}
+			heartbeat = Comms.heartbeat( this );
+		}
+
+		@Override
+		public boolean isOneShot () {
+			return false;
+		}
+
+		@Override
+		public void close () {
+			closed = true;
+			final TimingWheel.Timeout hb = heartbeat;
+			if ( hb != null ) {
+				hb.cancel();
+			}
+		}
+	}
+
+	private static final class Mailbox {
+
+		public final String id;
+
+		public final Deque<Envelope> envelopes = new ConcurrentLinkedDeque<Envelope>();
+
+		public final AtomicReference<Waiter> waiter = new AtomicReference<Waiter>();
+
+		// True while this mailbox sits in a ready queue; keeps it there at most once
+		public final AtomicBoolean scheduled = new AtomicBoolean( false );
+
+		// Envelopes waiting (replays aside); the deque's size() is a walk
+		public final AtomicInteger queued = new AtomicInteger();
 
-		public final ArrayList<Long> attempts = new ArrayList<Long>();
+		// Ring of the last few delivered, oldest first
+		private final ArrayDeque<Envelope> delivered = new ArrayDeque<Envelope>();
+
+		public Mailbox ( String id ) {
+			this.id = id;
+		}
+
+		public boolean isDeliverable () {
+			return waiter.get() != null && !envelopes.isEmpty();
+		}
+
+		public boolean isIdle () {
+			return waiter.get() == null && envelopes.isEmpty() && historySize() == 0;
+		}
+
+		/**
+		 * Keeps what just went out for replay, dropping the oldest beyond the history size.
+		 */
+		public void remember ( List<Envelope> sent ) {
+			if ( history < 1 ) {
+				return;
+			}
+			synchronized ( delivered ) {
+				for ( Envelope envelope : sent ) {
+					if ( !envelope.replay ) {
+						delivered.addLast( envelope );
+					}
+				}
+				while ( delivered.size() > history ) {
+					delivered.pollFirst();
+				}
+			}
+		}
+
+		/**
+		 * @return delivered envelopes with a sequence number after seq, oldest first.
+		 */
+		public List<Envelope> recent ( long seq ) {
+			final List<Envelope> recent = new ArrayList<Envelope>();
+			synchronized ( delivered ) {
+				for ( Envelope envelope : delivered ) {
+					if ( envelope.seq > seq ) {
+						recent.add( envelope );
+					}
+				}
+			}
+			return recent;
+		}
+
+		public void prune ( long before ) {
+			synchronized ( delivered ) {
+				Envelope oldest;
+				while ( ( oldest = delivered.peekFirst() ) != null && oldest.lastAttempt() < before ) {
+					delivered.pollFirst();
+				}
+			}
+		}
+
+		public int historySize () {
+			synchronized ( delivered ) {
+				return delivered.size();
+			}
+		}
+
+		@Override
+		public String toString () {
+			return String.format( "%s (%s)", id, envelopes.size() );
+		}
+	}
+
+	/**
+	 * A post turned away by admission control.
+	 */
+	static final class Overloaded extends Exception {
+
+		private static final long serialVersionUID = 4412617399610373431L;
+
+		// Milliseconds the sender should wait before trying again
+		public final long retryAfter;
+
+		public Overloaded ( String message, long retryAfter ) {
+			super( message );
+			this.retryAfter = retryAfter;
+		}
+	}
+
+	/**
+	 * What was posted, encoded once and shared by the envelopes of every recipient. Only the attempts ("a") differ
+	 * per recipient so the encoding is split around them.
+	 */
+	static final class Payload {
+
+		// Null unless posted to a room
+		public final String room;
+
+		public final String[] toList;
+
+		public final String from;
+
+		public final long received;
 
 		public final String message;
 
-		public Envelope ( String to, String[] toList, String from, String message ) {
-			this.to = to;
-			this.toList = stringArrayToJSONArray( toList );
+		// {"g":"room","t":[a,b,c],"f":"x","r":l,"a": (g only for rooms)
+		private final byte[] head;
+
+		// ,"m":"msg"}
+		private final byte[] tail;
+
+		public Payload ( String room, String[] toList, String from, String message, long received ) {
+			this.room = room;
+			this.toList = toList;
 			this.from = from;
 			this.message = message;
+			this.received = received;
+
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream( 64 + message.length() );
+			try {
+				final JsonEncoder enc = JsonEncoder.get( bout );
+				if ( room != null ) {
+					enc.raw( "{\"g\":" ).string( room ).raw( ',' );
+				} else {
+					enc.raw( '{' );
+				}
+				enc.raw( "\"t\":" ).array( toList ).raw( ",\"f\":" ).string( from ).raw( ",\"r\":" )
+					.number( received ).raw( ",\"a\":" ).flush();
+				head = bout.toByteArray();
+
+				bout.reset();
+				enc.raw( ",\"m\":" ).string( message ).raw( '}' ).flush();
+				tail = bout.toByteArray();
+			} catch ( IOException ioe ) {
+				throw new IllegalStateException( ioe ); // Not from a ByteArrayOutputStream
+			}
+		}
+
+		public int length () {
+			return head.length + tail.length;
+		}
+	}
+
+	// Received; one per recipient, all sharing the same payload
+	static final class Envelope {
+
+		public final String to;
+
+		public final Payload payload;
+
+		// Unboxed; only the first attemptCount are real
+		private long[] attempts = new long[ 2 ];
+
+		private int attemptCount = 0;
+
+		// Assigned when it lands in a mailbox
+		public volatile long seq = 0L;
+
+		// Don't try again before this (backoff after a failed attempt)
+		public volatile long notBefore = 0L;
+
+		public volatile TimingWheel.Timeout expiry = null;
+
+		// A second copy of one already delivered (and acked), sent again on request
+		public final boolean replay;
+
+		// System.nanoTime() when it was made, for delivery latency
+		public final long created = System.nanoTime();
+
+		public Envelope ( String to, Payload payload ) {
+			this.to = to;
+			this.payload = payload;
+			this.replay = false;
+		}
+
+		public Envelope ( Envelope original ) {
+			this.to = original.to;
+			this.payload = original.payload;
+			this.seq = original.seq;
+			this.replay = true;
 		}
 
 		public Envelope addAttempt ( long time ) {
-			attempts.add( time );
+			if ( attemptCount == attempts.length ) {
+				attempts = Arrays.copyOf( attempts, attempts.length * 2 );
+			}
+			attempts[ attemptCount++ ] = time;
 			return this;
 		}
 
@@ -292,14 +1782,40 @@ public class Comms extends HttpServlet {
 			return addAttempt( System.currentTimeMillis() );
 		}
 
-		public String attempt () {
-			return addAttempt().toJSON();
+		public long lastAttempt () {
+			return attemptCount > 0 ? attempts[ attemptCount - 1 ] : 0L;
+		}
+
+		/**
+		 * Exponential backoff based on how many attempts were made so far.
+		 */
+		public long backoff ( long base, long max ) {
+			final int shift = Math.min( Math.max( attemptCount - 1, 0 ), 30 );
+			return Math.min( max, base << shift );
+		}
+
+		/**
+		 * Rough size on the wire, for batching.
+		 */
+		public int length () {
+			return payload.length() + 14 * attemptCount + 28;
+		}
+
+		public void writeTo ( JsonEncoder enc ) throws IOException {
+			// {t:[a,b,c],f:x,r:l,a:[l0,l1],s:n,m:msg}
+			enc.raw( payload.head ).array( attempts, attemptCount ).raw( ",\"s\":" ).number( seq ).raw( payload.tail );
 		}
 
 		public String toJSON () {
-			// {t:[a,b,c],f:x,r:l,a:[l0,l1],m:msg}
-			return String.format( "{\"t\":%s," + "\"f\":\"%s\"," + "\"r\":%s," + "\"a\":%s," + "\"m\":\"%s\"}", toList,
-				from, received, longArrayToJSONArray( attempts ), message );
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream( length() );
+			try {
+				final JsonEncoder enc = JsonEncoder.get( bout );
+				writeTo( enc );
+				enc.flush();
+			} catch ( IOException ioe ) {
+				; // Not from a ByteArrayOutputStream
+			}
+			return new String( bout.toByteArray(), StandardCharsets.UTF_8 );
 		}
 
 		@Override
@@ -0,0 +1,274 @@
+package tofer17.ags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WebSocket flavor of {@link Comms}: one full-duplex connection per player instead of a long-poll plus a POST per
+ * message. Connect to /ws?w=id; text frames sent up are the same form-encoded t/g/m (and j/l) that POST /com
+ * takes, and frames sent down are JSON arrays of envelopes exactly like a long-poll response. Mailboxes are shared so
+ * socket and long-poll players can be in the same game. Reconnect with /ws?w=id&amp;since=s (the last "s" seen) to
+ * get what was missed.
+ *
+ * Frames go out with the async remote, one at a time; the rest queue up behind it. The dispatcher never waits on a
+ * slow client, it just leaves that mailbox alone until the client has caught up.
+ *
+ * @author cmetyko
+ *
+ */
+@ServerEndpoint ( "/ws" )
+public class CommsSocket {
+
+	private static final Logger logger = LoggerFactory.getLogger( CommsSocket.class );
+
+	private SocketWaiter waiter = null;
+
+	public CommsSocket () {
+		super();
+	}
+
+	@OnOpen
+	public void onOpen ( Session session ) throws IOException {
+		final List<String> w = session.getRequestParameterMap().get( "w" );
+
+		if ( w == null || w.isEmpty() || "".equals( w.get( 0 ) ) ) {
+			session.close( new CloseReason( CloseCodes.CANNOT_ACCEPT, "nocando" ) );
+			return;
+		}
+
+		final String owner = Comms.ownerElsewhere( w.get( 0 ) );
+		if ( owner != null ) {
+			// Their mailbox lives on another node; the reason says which (and where, if known)
+			final String url = Comms.ownerUrl( owner );
+			session.close( new CloseReason( CloseCodes.TRY_AGAIN_LATER,
+				"owner " + owner + ( url != null ? " " + url : "" ) ) );
+			return;
+		}
+
+		final List<String> since = session.getRequestParameterMap().get( "since" );
+
+		logger.info( "Establishing socket with '{}'...", w.get( 0 ) );
+		waiter = new SocketWaiter( w.get( 0 ), session );
+		Comms.connect( waiter, since == null || since.isEmpty() ? -1 : Comms.parseSeq( since.get( 0 ) ) );
+	}
+
+	@OnMessage
+	public void onMessage ( Session session, String text ) throws IOException {
+		final List<String> to = new ArrayList<String>();
+		String room = null;
+		String message = null;
+
+		for ( String pair : text.split( "&" ) ) {
+			final int eq = pair.indexOf( '=' );
+			if ( eq < 1 ) {
+				continue;
+			}
+			final String name = decode( pair.substring( 0, eq ) );
+			final String value = decode( pair.substring( eq + 1 ) );
+			if ( "t".equals( name ) ) {
+				to.add( value );
+			} else if ( "g".equals( name ) ) {
+				room = value;
+			} else if ( "m".equals( name ) ) {
+				message = value;
+			} else if ( "j".equals( name ) ) {
+				Comms.member( value, waiter.id, true );
+			} else if ( "l".equals( name ) ) {
+				Comms.member( value, waiter.id, false );
+			}
+		}
+
+		if ( to.isEmpty() && room == null && message == null ) {
+			// Just joining or leaving
+			return;
+		} else if ( to.isEmpty() && room == null ) {
+			waiter.error( 422 );
+			return;
+		} else if ( message == null || "".equals( message ) ) {
+			waiter.error( 423 );
+			return;
+		} else if ( room != null && Comms.isEmptyRoom( room ) ) {
+			waiter.error( 404 );
+			return;
+		}
+
+		try {
+			// No remote address here; the socket's player is the next best thing to charge
+			if ( room != null ) {
+				Comms.sendToRoom( "ws:" + waiter.id, waiter.id, room, message );
+			} else {
+				Comms.send( "ws:" + waiter.id, waiter.id, to.toArray( new String[ to.size() ] ), message );
+			}
+		} catch ( Comms.Overloaded o ) {
+			waiter.error( 429, o.retryAfter );
+		}
+	}
+
+	@OnClose
+	public void onClose ( Session session, CloseReason reason ) {
+		if ( waiter != null ) {
+			Comms.disconnect( waiter );
+			logger.info( "closed '{}' ({})", waiter.id, reason );
+		}
+	}
+
+	@OnError
+	public void onError ( Session session, Throwable t ) {
+		if ( waiter != null ) {
+			Comms.disconnect( waiter );
+			logger.info( "errored '{}': {}", waiter.id, t.toString() );
+		}
+		closeQuietly( session, CloseCodes.UNEXPECTED_CONDITION );
+	}
+
+	private static final void closeQuietly ( Session session, CloseCodes code ) {
+		try {
+			if ( session.isOpen() ) {
+				session.close( new CloseReason( code, "nocando" ) );
+			}
+		} catch ( IOException | IllegalStateException ex ) {
+			;
+		}
+	}
+
+	private static final String decode ( String s ) throws UnsupportedEncodingException {
+		return URLDecoder.decode( s, "UTF-8" );
+	}
+
+	static final class SocketWaiter extends Comms.Waiter implements SendHandler {
+
+		private final Session session;
+
+		// Frames behind the one being sent; guarded by this
+		private final ArrayDeque<String> pending = new ArrayDeque<String>();
+
+		// A send is in flight; guarded by this
+		private boolean sending = false;
+
+		private volatile Throwable failure = null;
+
+		public SocketWaiter ( String id, Session session ) {
+			super( id );
+			this.session = session;
+		}
+
+		@Override
+		public void write ( List<Comms.Envelope> envelopes ) throws IOException {
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			final JsonEncoder enc = JsonEncoder.get( bout );
+			enc.raw( '[' );
+			for ( int i = 0; i < envelopes.size(); i++ ) {
+				if ( i > 0 ) {
+					enc.raw( ',' );
+				}
+				envelopes.get( i ).writeTo( enc );
+			}
+			enc.raw( ']' ).flush();
+			send( new String( bout.toByteArray(), StandardCharsets.UTF_8 ) );
+		}
+
+		public void error ( int code ) throws IOException {
+			send( "{\"error\":" + code + "}" );
+		}
+
+		public void error ( int code, long retryAfter ) throws IOException {
+			send( "{\"error\":" + code + ",\"retry\":" + retryAfter + "}" );
+		}
+
+		/**
+		 * Sends text now if nothing else is in flight, otherwise queues it behind what is.
+		 *
+		 * @throws IOException if the connection already failed
+		 */
+		private void send ( String text ) throws IOException {
+			final Throwable t = failure;
+			if ( t != null ) {
+				throw t instanceof IOException ? (IOException) t : new IOException( t );
+			}
+			synchronized ( this ) {
+				if ( sending ) {
+					pending.add( text );
+					return;
+				}
+				sending = true;
+			}
+			sendAsync( text );
+		}
+
+		private void sendAsync ( String text ) {
+			try {
+				session.getAsyncRemote().sendText( text, this );
+			} catch ( IllegalStateException ise ) {
+				onResult( new SendResult( ise ) );
+			}
+		}
+
+		/**
+		 * The last send is done: on to the next, or (once they're all out) let Comms know there's room again.
+		 */
+		@Override
+		public void onResult ( SendResult result ) {
+			if ( !result.isOK() ) {
+				failure = result.getException();
+				synchronized ( this ) {
+					pending.clear();
+					sending = false;
+				}
+				logger.info( "Socket to '{}' failed: {}", id, failure.toString() );
+				Comms.disconnect( this );
+				closeQuietly( session, CloseCodes.UNEXPECTED_CONDITION );
+				return;
+			}
+			final String next;
+			synchronized ( this ) {
+				next = pending.poll();
+				sending = next != null;
+			}
+			if ( next != null ) {
+				sendAsync( next );
+			} else {
+				Comms.writable( this );
+			}
+		}
+
+		@Override
+		public synchronized boolean isWritable () {
+			return !sending;
+		}
+
+		@Override
+		public boolean isOneShot () {
+			return false;
+		}
+
+		@Override
+		public void complete () {
+			try {
+				session.close();
+			} catch ( IOException ioe ) {
+				;
+			}
+		}
+	}
+
+}
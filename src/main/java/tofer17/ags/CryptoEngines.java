@@ -0,0 +1,167 @@
+package tofer17.ags;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+
+/**
+ * Crypto engines for the server's key pair, one set per thread: provider lookup (getInstance) and, for the RSA
+ * ones, key setup (init) happen once per thread instead of once per request. Signature and Cipher both go back to
+ * their initialized state after sign()/doFinal(), so they're simply reused; an engine that fails mid-way is dropped
+ * and the thread gets a fresh one next time.
+ *
+ * @author cmetyko
+ *
+ */
+public final class CryptoEngines {
+
+	public static final String GCM = "AES/GCM/NoPadding";
+
+	private final KeyPair keyPair;
+
+	private final KeyPair signingKeyPair;
+
+	private final String signAlgo;
+
+	private final String deriveTransformation;
+
+	private final ThreadLocal<Signature> signers;
+
+	private final ThreadLocal<Cipher> derivers;
+
+	private final ThreadLocal<Cipher> gcms;
+
+	/**
+	 * @param signAlgo e.g. SHA256withRSA
+	 * @param deriveTransformation e.g. RSA/ECB/PKCS1Padding (encrypts with the private key)
+	 * @throws GeneralSecurityException right away if any of them can't be had
+	 */
+	public CryptoEngines ( KeyPair keyPair, String signAlgo, String deriveTransformation )
+		throws GeneralSecurityException {
+		this( keyPair, signAlgo, keyPair, deriveTransformation );
+	}
+
+	/**
+	 * @param signingKeyPair signs (e.g. an EC pair, with SHA256withECDSA)
+	 * @param keyPair derives (RSA)
+	 */
+	public CryptoEngines ( KeyPair signingKeyPair, String signAlgo, KeyPair keyPair, String deriveTransformation )
+		throws GeneralSecurityException {
+		this.signingKeyPair = signingKeyPair;
+		this.keyPair = keyPair;
+		this.signAlgo = signAlgo;
+		this.deriveTransformation = deriveTransformation;
+
+		// Fail here rather than on some request thread later
+		final Signature signer = newSigner();
+		final Cipher deriver = newDeriver();
+		final Cipher gcm = Cipher.getInstance( GCM );
+
+		signers = ThreadLocal.withInitial( () -> {
+			try {
+				return newSigner();
+			} catch ( GeneralSecurityException gse ) {
+				throw new IllegalStateException( gse ); // Worked in the constructor
+			}
+		} );
+		derivers = ThreadLocal.withInitial( () -> {
+			try {
+				return newDeriver();
+			} catch ( GeneralSecurityException gse ) {
+				throw new IllegalStateException( gse );
+			}
+		} );
+		gcms = ThreadLocal.withInitial( () -> {
+			try {
+				return Cipher.getInstance( GCM );
+			} catch ( GeneralSecurityException gse ) {
+				throw new IllegalStateException( gse );
+			}
+		} );
+
+		// This thread's are ready made
+		signers.set( signer );
+		derivers.set( deriver );
+		gcms.set( gcm );
+	}
+
+	private Signature newSigner () throws GeneralSecurityException {
+		final Signature sig = Signature.getInstance( signAlgo );
+		sig.initSign( signingKeyPair.getPrivate() );
+		return sig;
+	}
+
+	private Cipher newDeriver () throws GeneralSecurityException {
+		final Cipher cipher = Cipher.getInstance( deriveTransformation );
+		cipher.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+		return cipher;
+	}
+
+	public KeyPair keyPair () {
+		return keyPair;
+	}
+
+	public KeyPair signingKeyPair () {
+		return signingKeyPair;
+	}
+
+	/**
+	 * @return data signed with the signing private key
+	 */
+	public byte[] sign ( byte[] data ) throws GeneralSecurityException {
+		final Signature sig = signers.get();
+		try {
+			sig.update( data );
+			return sig.sign();
+		} catch ( GeneralSecurityException | RuntimeException ex ) {
+			signers.remove();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return data encrypted with the private key (key generation data for a t)
+	 */
+	public byte[] derive ( byte[] data ) throws GeneralSecurityException {
+		final Cipher cipher = derivers.get();
+		try {
+			return cipher.doFinal( data );
+		} catch ( GeneralSecurityException | RuntimeException ex ) {
+			derivers.remove();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return this thread's AES-GCM cipher set to encrypt with key under a fresh random IV; use it before asking again
+	 */
+	public Cipher gcm ( Key key ) throws GeneralSecurityException {
+		final Cipher cipher = gcms.get();
+		try {
+			cipher.init( Cipher.ENCRYPT_MODE, key );
+			return cipher;
+		} catch ( GeneralSecurityException | RuntimeException ex ) {
+			gcms.remove();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return an AES-GCM cipher of its own (not this thread's), set to encrypt with key under a fresh random IV: for
+	 *         work that outlives the call, like an embargo streamed across container threads
+	 */
+	public Cipher newGcm ( Key key ) throws GeneralSecurityException {
+		final Cipher cipher = Cipher.getInstance( GCM );
+		cipher.init( Cipher.ENCRYPT_MODE, key );
+		return cipher;
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "CryptoEngines %s, %s, %s", signAlgo, deriveTransformation, GCM );
+	}
+
+}
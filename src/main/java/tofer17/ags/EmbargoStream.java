@@ -0,0 +1,274 @@
+package tofer17.ags;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embargoes a raw request body as it arrives: each chunk read goes through the cipher (update) and out to the
+ * response as Base64 straight away, so memory stays at a buffer or two however big the object is. The response is the
+ * same JSON as an embargo made in one go; only the ciphertext is never whole in memory.
+ *
+ * The catch: once the response has started going out (past the container's buffer), a failure can't be turned into a
+ * status any more; the response is just cut short, which no client will take for a good embargo.
+ *
+ * @author cmetyko
+ *
+ */
+public final class EmbargoStream implements ReadListener {
+
+	private static final Logger logger = LoggerFactory.getLogger( EmbargoStream.class );
+
+	private static final int CHUNK = 8 * 1024;
+
+	/**
+	 * Told how it went, once, after the response is done.
+	 */
+	public interface Done {
+		void onDone ( boolean ok, long length );
+	}
+
+	/**
+	 * The pipeline, without the servlet: plaintext in, {head}{Base64 of ciphertext}{tail} out.
+	 */
+	static final class Encrypter {
+
+		private final OutputStream out;
+
+		private final OutputStream ct;
+
+		private final OutputStream o;
+
+		private final byte[] plainTail;
+
+		private final byte[] tail;
+
+		/**
+		 * @param head written as is, e.g. {"t":1,"iv":"...","ct":"
+		 * @param plainHead encrypted ahead of the object, e.g. {"t":1,"o":"
+		 * @param plainTail encrypted after it, e.g. ","ts":{...}}
+		 * @param tail written as is once the ciphertext is done, e.g. "}
+		 * @param binary the object goes in as Base64; otherwise it's UTF-8 text, escaped to sit in a JSON string
+		 */
+		Encrypter ( OutputStream out, Cipher cipher, byte[] head, byte[] plainHead, byte[] plainTail, byte[] tail,
+			boolean binary ) throws IOException {
+			this.out = out;
+			this.plainTail = plainTail;
+			this.tail = tail;
+			out.write( head );
+			this.ct = new Encrypting( Base64.getEncoder().wrap( new Unclosed( out ) ), cipher );
+			this.o = binary ? Base64.getEncoder().wrap( new Unclosed( ct ) )
+				: new JsonEncoder.Escaping( new Unclosed( ct ) );
+			ct.write( plainHead );
+		}
+
+		void write ( byte[] b, int off, int len ) throws IOException {
+			o.write( b, off, len );
+		}
+
+		void finish () throws IOException {
+			o.close(); // Just the object's Base64 padding, if any
+			ct.write( plainTail );
+			ct.close(); // doFinal (the tag), then the ciphertext's Base64 padding
+			out.write( tail );
+			out.flush();
+		}
+	}
+
+	/**
+	 * Cipher.update on the way through, doFinal on close. (CipherOutputStream would do, but it swallows a failed
+	 * doFinal, which here would quietly lose the GCM tag.)
+	 */
+	private static final class Encrypting extends FilterOutputStream {
+
+		private final Cipher cipher;
+
+		private byte[] obuf = new byte[ CHUNK + 64 ];
+
+		public Encrypting ( OutputStream out, Cipher cipher ) {
+			super( out );
+			this.cipher = cipher;
+		}
+
+		@Override
+		public void write ( int b ) throws IOException {
+			write( new byte[] { (byte) b }, 0, 1 );
+		}
+
+		@Override
+		public void write ( byte[] b, int off, int len ) throws IOException {
+			try {
+				final int size = cipher.getOutputSize( len );
+				if ( size > obuf.length ) {
+					obuf = new byte[ size ];
+				}
+				out.write( obuf, 0, cipher.update( b, off, len, obuf ) );
+			} catch ( GeneralSecurityException gse ) {
+				throw new IOException( gse );
+			}
+		}
+
+		@Override
+		public void close () throws IOException {
+			try {
+				out.write( cipher.doFinal() );
+			} catch ( GeneralSecurityException gse ) {
+				throw new IOException( gse );
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Lets a Base64 or cipher stream be finished (close) without closing what's under it.
+	 */
+	private static final class Unclosed extends FilterOutputStream {
+
+		public Unclosed ( OutputStream out ) {
+			super( out );
+		}
+
+		@Override
+		public void write ( byte[] b, int off, int len ) throws IOException {
+			out.write( b, off, len );
+		}
+
+		@Override
+		public void close () throws IOException {
+			flush();
+		}
+	}
+
+	private final AsyncContext ac;
+
+	private final ServletInputStream in;
+
+	private final Encrypter encrypter;
+
+	private final BufferPool pool;
+
+	private final long max;
+
+	private final Done done;
+
+	private byte[] buf;
+
+	private long length = 0;
+
+	private boolean finished = false;
+
+	private EmbargoStream ( AsyncContext ac, ServletInputStream in, Encrypter encrypter, BufferPool pool, long max,
+		Done done ) {
+		this.ac = ac;
+		this.in = in;
+		this.encrypter = encrypter;
+		this.pool = pool;
+		this.max = max;
+		this.done = done;
+		this.buf = pool.acquire( CHUNK );
+	}
+
+	/**
+	 * Goes async and embargoes the body as it's read; anything declaring more than max bytes gets a 413 without being
+	 * read. See {@link Encrypter} for the rest.
+	 */
+	public static void start ( HttpServletRequest request, HttpServletResponse response, Cipher cipher, byte[] head,
+		byte[] plainHead, byte[] plainTail, byte[] tail, BufferPool pool, long max, Done done ) throws IOException {
+		if ( request.getContentLengthLong() > max ) {
+			response.sendError( 413, "nocando" );
+			done.onDone( false, 0 );
+			return;
+		}
+		final AsyncContext ac = request.startAsync( request, response );
+		ac.setTimeout( 60 * 1000 );
+		final ServletInputStream in = request.getInputStream();
+		final Encrypter encrypter = new Encrypter( response.getOutputStream(), cipher, head, plainHead, plainTail, tail,
+			BodyReader.isBinary( request ) );
+		in.setReadListener( new EmbargoStream( ac, in, encrypter, pool, max, done ) );
+	}
+
+	@Override
+	public void onDataAvailable () throws IOException {
+		while ( !finished && in.isReady() && !in.isFinished() ) {
+			final int n = in.read( buf, 0, buf.length );
+			if ( n < 0 ) {
+				break;
+			}
+			length += n;
+			if ( length > max ) {
+				// Lied about (or never sent) its length
+				fail( 413, null );
+				return;
+			}
+			try {
+				encrypter.write( buf, 0, n );
+			} catch ( IOException ioe ) {
+				fail( 500, ioe );
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void onAllDataRead () throws IOException {
+		if ( finished ) {
+			return;
+		}
+		try {
+			encrypter.finish();
+		} catch ( IOException ioe ) {
+			fail( 500, ioe );
+			return;
+		}
+		finished = true;
+		release();
+		ac.complete();
+		done.onDone( true, length );
+	}
+
+	@Override
+	public void onError ( Throwable t ) {
+		fail( 400, t );
+	}
+
+	private void fail ( int status, Throwable t ) {
+		if ( finished ) {
+			return;
+		}
+		finished = true;
+		release();
+		final HttpServletResponse response = (HttpServletResponse) ac.getResponse();
+		if ( response.isCommitted() ) {
+			logger.info( "Embargo cut short after {} bytes: {}", length, t == null ? status : t.toString() );
+		} else {
+			try {
+				response.resetBuffer();
+				response.sendError( status, "nocando" );
+			} catch ( IOException | IllegalStateException ex ) {
+				;
+			}
+		}
+		ac.complete();
+		done.onDone( false, length );
+	}
+
+	private void release () {
+		if ( buf != null ) {
+			pool.release( buf );
+			buf = null;
+		}
+	}
+
+}
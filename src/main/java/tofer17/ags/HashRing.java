@@ -0,0 +1,119 @@
+package tofer17.ags;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring: each node gets a number of virtual points on a 64 bit ring and a key belongs to the first
+ * point at or after its own hash. Adding or removing a node only moves the keys on its points. Lookups are lock free
+ * (an immutable ring is swapped in on every change) so they can sit on the hot path.
+ *
+ * @author cmetyko
+ *
+ */
+public final class HashRing {
+
+	private final int replicas;
+
+	private volatile TreeMap<Long,String> ring = new TreeMap<Long,String>();
+
+	private volatile Set<String> nodes = Collections.emptySet();
+
+	/**
+	 * @param replicas virtual points per node; more spreads keys more evenly
+	 */
+	public HashRing ( int replicas ) {
+		if ( replicas < 1 ) {
+			throw new IllegalArgumentException( "replicas must be positive: " + replicas );
+		}
+		this.replicas = replicas;
+	}
+
+	/**
+	 * @return false if it was already there
+	 */
+	public synchronized boolean add ( String node ) {
+		if ( nodes.contains( node ) ) {
+			return false;
+		}
+		final Set<String> n = new TreeSet<String>( nodes );
+		n.add( node );
+		rebuild( n );
+		return true;
+	}
+
+	/**
+	 * @return false if it wasn't there
+	 */
+	public synchronized boolean remove ( String node ) {
+		if ( !nodes.contains( node ) ) {
+			return false;
+		}
+		final Set<String> n = new TreeSet<String>( nodes );
+		n.remove( node );
+		rebuild( n );
+		return true;
+	}
+
+	/**
+	 * Replaces the membership wholesale.
+	 */
+	public synchronized void set ( Set<String> members ) {
+		rebuild( new TreeSet<String>( members ) );
+	}
+
+	private void rebuild ( Set<String> members ) {
+		final TreeMap<Long,String> r = new TreeMap<Long,String>();
+		for ( String node : members ) {
+			for ( int i = 0; i < replicas; i++ ) {
+				// On a (vanishingly rare) collision the lower id wins so every node agrees
+				r.merge( hash( node + "#" + i ), node, ( a, b ) -> a.compareTo( b ) <= 0 ? a : b );
+			}
+		}
+		ring = r;
+		nodes = Collections.unmodifiableSet( members );
+	}
+
+	/**
+	 * @return the node owning key, or null if the ring is empty.
+	 */
+	public String owner ( String key ) {
+		final TreeMap<Long,String> r = ring;
+		if ( r.isEmpty() ) {
+			return null;
+		}
+		final Map.Entry<Long,String> e = r.ceilingEntry( hash( key ) );
+		return e != null ? e.getValue() : r.firstEntry().getValue();
+	}
+
+	public Set<String> nodes () {
+		return nodes;
+	}
+
+	/**
+	 * FNV-1a over the UTF-8 bytes, then a murmur3 finalizer to spread the bits (FNV alone clusters similar keys).
+	 */
+	static long hash ( String key ) {
+		long h = 0xcbf29ce484222325L;
+		for ( byte b : key.getBytes( StandardCharsets.UTF_8 ) ) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "HashRing %s (%s points)", nodes, ring.size() );
+	}
+
+}
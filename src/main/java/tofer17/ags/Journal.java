@@ -0,0 +1,692 @@
+package tofer17.ags;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, segmented journal of posted envelopes so queued mail survives a restart (or a redeploy).
+ *
+ * One writer thread owns the files: appends and acks are queued to it and written in groups (group commit), with
+ * fsync per {@link Sync}. Each post is one ENQUEUE record (the payload once, plus recipient/sequence pairs); each
+ * delivery or expiry is an ACK. Segments are only ever removed oldest-first-- an ACK always lands in the same or a
+ * later segment than its ENQUEUE, so that's what keeps a delivered envelope from coming back. The oldest segment is
+ * deleted once fully acked, or its few live entries are copied forward to the tail first.
+ *
+ * Records are [int length][int crc32][byte type][body]; a torn record at the tail is truncated away on open.
+ *
+ * @author cmetyko
+ *
+ */
+public final class Journal implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger( Journal.class );
+
+	private static final byte ENQUEUE = 1;
+
+	private static final byte ACK = 2;
+
+	private static final String PREFIX = "segment-";
+
+	private static final String SUFFIX = ".log";
+
+	private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+	public enum Sync {
+		/** fsync every group before its appends complete */
+		ALWAYS,
+		/** fsync at most every sync interval */
+		BATCH,
+		/** leave it to the OS (and close) */
+		NEVER
+	}
+
+	/**
+	 * One post: the shared payload and the recipients (with their sequence numbers) it went to.
+	 */
+	public static final class Entry {
+
+		public final long received;
+
+		public final String from;
+
+		public final String message;
+
+		public final String[] toList;
+
+		public final String[] recipients;
+
+		public final long[] seqs;
+
+		// Room it was posted to, if any
+		public final String room;
+
+		public Entry ( long received, String from, String message, String[] toList, String[] recipients,
+			long[] seqs ) {
+			this( received, from, message, toList, recipients, seqs, null );
+		}
+
+		public Entry ( long received, String from, String message, String[] toList, String[] recipients, long[] seqs,
+			String room ) {
+			this.received = received;
+			this.from = from;
+			this.message = message;
+			this.toList = toList;
+			this.recipients = recipients;
+			this.seqs = seqs;
+			this.room = room;
+		}
+
+		@Override
+		public String toString () {
+			return String.format( "%s -> %s %s", from, Arrays.toString( recipients ), Arrays.toString( seqs ) );
+		}
+	}
+
+	private static final class Segment {
+
+		public final long number;
+
+		public final File file;
+
+		public FileChannel channel = null;
+
+		public long size = 0L;
+
+		// Recipients enqueued in here, and how many of those aren't acked yet
+		public int total = 0;
+
+		public int live = 0;
+
+		public Segment ( File dir, long number ) {
+			this.number = number;
+			this.file = new File( dir, String.format( "%s%016d%s", PREFIX, number, SUFFIX ) );
+		}
+
+		@Override
+		public String toString () {
+			return String.format( "%s (%s/%s live, %s bytes)", file.getName(), live, total, size );
+		}
+	}
+
+	private static final class Request {
+
+		public final Entry entry;
+
+		public final long[] acks;
+
+		public final CompletableFuture<Void> done;
+
+		public Request ( Entry entry, long[] acks, CompletableFuture<Void> done ) {
+			this.entry = entry;
+			this.acks = acks;
+			this.done = done;
+		}
+	}
+
+	private static final Request STOP = new Request( null, null, null );
+
+	private final File dir;
+
+	private final long segmentBytes;
+
+	private final Sync sync;
+
+	private final long syncInterval;
+
+	private final long compactInterval;
+
+	private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
+	// Everything below belongs to the writer thread once open() returns
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	// seq -> segment holding its (still unacked) ENQUEUE
+	private final Map<Long,Segment> live = new HashMap<Long,Segment>();
+
+	// Acks that beat their ENQUEUE into the queue -> when, oldest first; forgotten if it never comes (failed append)
+	private final LinkedHashMap<Long,Long> earlyAcks = new LinkedHashMap<Long,Long>();
+
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream( 64 * 1024 );
+
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream( 4 * 1024 );
+
+	private final DataOutputStream bodyOut = new DataOutputStream( body );
+
+	private final CRC32 crc = new CRC32();
+
+	private boolean dirty = false;
+
+	private long lastSync = 0L;
+
+	private long lastCompact = 0L;
+
+	private long maxSeq = 0L;
+
+	private Thread writer = null;
+
+	private volatile int liveCount = 0;
+
+	private volatile int segmentCount = 0;
+
+	private volatile int earlyCount = 0;
+
+	public Journal ( File dir, long segmentBytes, Sync sync, long syncInterval, long compactInterval ) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.sync = sync;
+		this.syncInterval = syncInterval;
+		this.compactInterval = compactInterval;
+	}
+
+	/**
+	 * Replays whatever is on disk and starts the writer.
+	 *
+	 * @return the posts that still have unacked recipients (only those recipients), oldest first.
+	 */
+	public synchronized List<Entry> open () throws IOException {
+		if ( !dir.isDirectory() && !dir.mkdirs() ) {
+			throw new IOException( "Cannot create journal directory " + dir );
+		}
+
+		final File[] files = dir.listFiles( ( d, name ) -> name.startsWith( PREFIX ) && name.endsWith( SUFFIX ) );
+		Arrays.sort( files );
+
+		final List<Entry> entries = new ArrayList<Entry>();
+		final List<Segment> owners = new ArrayList<Segment>();
+		final Set<Long> acked = new HashSet<Long>();
+
+		for ( int i = 0; i < files.length; i++ ) {
+			final String name = files[ i ].getName();
+			final Segment segment = new Segment( dir,
+				Long.parseLong( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) ) );
+			segment.size = read( segment, entries, owners, acked );
+			if ( segment.size < files[ i ].length() ) {
+				logger.warn( "Journal segment {} is torn at {}; truncating", name, segment.size );
+				try ( FileChannel ch = FileChannel.open( segment.file.toPath(), StandardOpenOption.WRITE ) ) {
+					ch.truncate( segment.size );
+				}
+			}
+			segments.add( segment );
+		}
+
+		final List<Entry> pending = new ArrayList<Entry>();
+		for ( int i = 0; i < entries.size(); i++ ) {
+			final Entry entry = entries.get( i );
+			final Segment segment = owners.get( i );
+			final List<Integer> keep = new ArrayList<Integer>();
+			for ( int r = 0; r < entry.seqs.length; r++ ) {
+				maxSeq = Math.max( maxSeq, entry.seqs[ r ] );
+				segment.total++;
+				if ( !acked.contains( entry.seqs[ r ] ) ) {
+					keep.add( r );
+					segment.live++;
+					live.put( entry.seqs[ r ], segment );
+				}
+			}
+			if ( !keep.isEmpty() ) {
+				pending.add( subset( entry, keep ) );
+			}
+		}
+		// Compaction copies stragglers forward, so file order isn't post order; sequence numbers are
+		pending.sort( ( a, b ) -> Long.compare( a.seqs[ 0 ], b.seqs[ 0 ] ) );
+
+		if ( segments.isEmpty() || segments.get( segments.size() - 1 ).size >= segmentBytes ) {
+			segments.add( new Segment( dir, segments.isEmpty() ? 0 : last().number + 1 ) );
+		}
+		last().channel = FileChannel.open( last().file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.APPEND );
+		last().size = last().channel.size();
+
+		lastSync = lastCompact = System.currentTimeMillis();
+		liveCount = live.size();
+		segmentCount = segments.size();
+
+		writer = new Thread( this::run, "comms-journal" );
+		writer.setDaemon( true );
+		writer.start();
+
+		logger.info( "Journal {} opened: {} segment(s), {} pending", dir, segments.size(), live.size() );
+		return pending;
+	}
+
+	/**
+	 * Highest sequence number ever journaled (as of open).
+	 */
+	public synchronized long maxSeq () {
+		return maxSeq;
+	}
+
+	/**
+	 * @return completes once written (and, for {@link Sync#ALWAYS}, synced).
+	 */
+	public CompletableFuture<Void> append ( Entry entry ) {
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		requests.add( new Request( entry, null, done ) );
+		return done;
+	}
+
+	public void ack ( long... seqs ) {
+		requests.add( new Request( null, seqs, null ) );
+	}
+
+	public Sync getSync () {
+		return sync;
+	}
+
+	public int size () {
+		return liveCount;
+	}
+
+	public int segments () {
+		return segmentCount;
+	}
+
+	/**
+	 * @return acks still waiting for their ENQUEUE.
+	 */
+	int earlyAcks () {
+		return earlyCount;
+	}
+
+	/**
+	 * Writes out everything queued so far, syncs and closes.
+	 */
+	@Override
+	public synchronized void close () {
+		if ( writer == null ) {
+			return;
+		}
+		requests.add( STOP );
+		try {
+			writer.join( 10000 );
+		} catch ( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "Journal %s (%s live, %s segments)", dir, liveCount, segmentCount );
+	}
+
+	private Segment last () {
+		return segments.get( segments.size() - 1 );
+	}
+
+	private static Entry subset ( Entry entry, List<Integer> keep ) {
+		if ( keep.size() == entry.seqs.length ) {
+			return entry;
+		}
+		final String[] recipients = new String[ keep.size() ];
+		final long[] seqs = new long[ keep.size() ];
+		for ( int k = 0; k < keep.size(); k++ ) {
+			recipients[ k ] = entry.recipients[ keep.get( k ) ];
+			seqs[ k ] = entry.seqs[ keep.get( k ) ];
+		}
+		return new Entry( entry.received, entry.from, entry.message, entry.toList, recipients, seqs, entry.room );
+	}
+
+	/**
+	 * Reads every good record of a segment.
+	 *
+	 * @return the offset just past the last good record.
+	 */
+	private long read ( Segment segment, List<Entry> entries, List<Segment> owners, Set<Long> acked )
+		throws IOException {
+		long good = 0L;
+		try ( DataInputStream in = new DataInputStream(
+			new BufferedInputStream( new FileInputStream( segment.file ), 64 * 1024 ) ) ) {
+			final CRC32 check = new CRC32();
+			while ( true ) {
+				final int length;
+				try {
+					length = in.readInt();
+				} catch ( EOFException eof ) {
+					break;
+				}
+				if ( length < 1 || length > MAX_RECORD ) {
+					break;
+				}
+				final int sum = in.readInt();
+				final byte[] record = new byte[ length ];
+				try {
+					in.readFully( record );
+				} catch ( EOFException eof ) {
+					break;
+				}
+				check.reset();
+				check.update( record, 0, length );
+				if ( (int) check.getValue() != sum ) {
+					break;
+				}
+
+				final DataInputStream r = new DataInputStream( new ByteArrayInputStream( record ) );
+				final byte type = r.readByte();
+				if ( type == ENQUEUE ) {
+					entries.add( readEntry( r ) );
+					owners.add( segment );
+				} else if ( type == ACK ) {
+					final int n = r.readInt();
+					for ( int i = 0; i < n; i++ ) {
+						acked.add( r.readLong() );
+					}
+				}
+				good += 8 + length;
+			}
+		}
+		return good;
+	}
+
+	private static Entry readEntry ( DataInputStream in ) throws IOException {
+		final long received = in.readLong();
+		final String from = readString( in );
+		final String message = readString( in );
+		final String[] toList = new String[ in.readInt() ];
+		for ( int i = 0; i < toList.length; i++ ) {
+			toList[ i ] = readString( in );
+		}
+		final int n = in.readInt();
+		final String[] recipients = new String[ n ];
+		final long[] seqs = new long[ n ];
+		for ( int i = 0; i < n; i++ ) {
+			recipients[ i ] = readString( in );
+			seqs[ i ] = in.readLong();
+		}
+		// Optional trailer, so records written before rooms still read
+		final String room = in.available() > 0 ? readString( in ) : null;
+		return new Entry( received, from, message, toList, recipients, seqs, room );
+	}
+
+	private static String readString ( DataInputStream in ) throws IOException {
+		final byte[] bytes = new byte[ in.readInt() ];
+		in.readFully( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private void writeString ( String s ) throws IOException {
+		final byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+		bodyOut.writeInt( bytes.length );
+		bodyOut.write( bytes );
+	}
+
+	// Frames whatever is in body as a record onto the batch
+	private void frame () {
+		final byte[] record = body.toByteArray();
+		crc.reset();
+		crc.update( record, 0, record.length );
+		final int length = record.length;
+		final int sum = (int) crc.getValue();
+		batch.write( length >>> 24 );
+		batch.write( length >>> 16 );
+		batch.write( length >>> 8 );
+		batch.write( length );
+		batch.write( sum >>> 24 );
+		batch.write( sum >>> 16 );
+		batch.write( sum >>> 8 );
+		batch.write( sum );
+		batch.write( record, 0, length );
+		body.reset();
+	}
+
+	private void encodeEntry ( Entry entry ) throws IOException {
+		bodyOut.writeByte( ENQUEUE );
+		bodyOut.writeLong( entry.received );
+		writeString( entry.from );
+		writeString( entry.message );
+		bodyOut.writeInt( entry.toList.length );
+		for ( String to : entry.toList ) {
+			writeString( to );
+		}
+		bodyOut.writeInt( entry.seqs.length );
+		for ( int i = 0; i < entry.seqs.length; i++ ) {
+			writeString( entry.recipients[ i ] );
+			bodyOut.writeLong( entry.seqs[ i ] );
+		}
+		if ( entry.room != null ) {
+			writeString( entry.room );
+		}
+		frame();
+	}
+
+	private void encodeAcks ( long[] seqs, int count ) throws IOException {
+		bodyOut.writeByte( ACK );
+		bodyOut.writeInt( count );
+		for ( int i = 0; i < count; i++ ) {
+			bodyOut.writeLong( seqs[ i ] );
+		}
+		frame();
+	}
+
+	private void run () {
+		final List<Request> group = new ArrayList<Request>();
+		final long poll = Math.max( 10, Math.min( sync == Sync.BATCH ? syncInterval : Long.MAX_VALUE,
+			compactInterval ) );
+		boolean stopping = false;
+
+		while ( !stopping ) {
+			try {
+				final Request first = requests.poll( poll, TimeUnit.MILLISECONDS );
+				if ( first != null ) {
+					group.add( first );
+					requests.drainTo( group, 1023 );
+					stopping = group.remove( STOP );
+					write( group );
+				}
+				final long now = System.currentTimeMillis();
+				if ( sync == Sync.BATCH && dirty && now - lastSync >= syncInterval ) {
+					force();
+				}
+				if ( now - lastCompact >= compactInterval ) {
+					forgetEarlyAcks( now - compactInterval );
+					compact();
+					lastCompact = now;
+				}
+			} catch ( InterruptedException iex ) {
+				;
+			} catch ( IOException ioe ) {
+				logger.error( "Journal write failed: {}", ioe.toString() );
+				for ( Request request : group ) {
+					if ( request.done != null ) {
+						request.done.completeExceptionally( ioe );
+					}
+				}
+			} finally {
+				group.clear();
+			}
+		}
+
+		try {
+			if ( sync != Sync.NEVER || dirty ) {
+				force();
+			}
+			last().channel.close();
+		} catch ( IOException ioe ) {
+			logger.warn( "Journal close failed: {}", ioe.toString() );
+		}
+		logger.info( "Journal closed: {} pending", live.size() );
+	}
+
+	private void write ( List<Request> group ) throws IOException {
+		if ( group.isEmpty() ) {
+			return;
+		}
+		final Segment active = last();
+		final long now = System.currentTimeMillis();
+		long[] late = null;
+		int lateCount = 0;
+
+		for ( Request request : group ) {
+			if ( request.entry != null ) {
+				encodeEntry( request.entry );
+				for ( long seq : request.entry.seqs ) {
+					active.total++;
+					if ( earlyAcks.remove( seq ) != null ) {
+						// Delivered before we got here; ack it right behind so it lands in this segment too
+						if ( late == null ) {
+							late = new long[ request.entry.seqs.length ];
+						} else if ( lateCount == late.length ) {
+							late = Arrays.copyOf( late, late.length * 2 );
+						}
+						late[ lateCount++ ] = seq;
+					} else {
+						live.put( seq, active );
+						active.live++;
+					}
+				}
+			} else {
+				for ( long seq : request.acks ) {
+					final Segment owner = live.remove( seq );
+					if ( owner != null ) {
+						owner.live--;
+					} else {
+						earlyAcks.put( seq, now );
+					}
+				}
+				encodeAcks( request.acks, request.acks.length );
+			}
+		}
+		if ( lateCount > 0 ) {
+			encodeAcks( late, lateCount );
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap( batch.toByteArray() );
+		batch.reset();
+		while ( buffer.hasRemaining() ) {
+			active.size += active.channel.write( buffer );
+		}
+		dirty = true;
+
+		if ( sync == Sync.ALWAYS ) {
+			force();
+		}
+		for ( Request request : group ) {
+			if ( request.done != null ) {
+				request.done.complete( null );
+			}
+		}
+
+		liveCount = live.size();
+		earlyCount = earlyAcks.size();
+		if ( active.size >= segmentBytes ) {
+			roll();
+		}
+	}
+
+	private void force () throws IOException {
+		last().channel.force( false );
+		dirty = false;
+		lastSync = System.currentTimeMillis();
+	}
+
+	private void roll () throws IOException {
+		final Segment previous = last();
+		if ( sync != Sync.NEVER ) {
+			previous.channel.force( false );
+		}
+		previous.channel.close();
+		previous.channel = null;
+
+		final Segment next = new Segment( dir, previous.number + 1 );
+		next.channel = FileChannel.open( next.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.APPEND );
+		segments.add( next );
+		segmentCount = segments.size();
+		dirty = false;
+	}
+
+	/**
+	 * Gives up on early acks from before then; their ENQUEUE isn't coming (or if it does, it's delivered again after
+	 * a restart rather than lost).
+	 */
+	private void forgetEarlyAcks ( long then ) {
+		final Iterator<Long> whens = earlyAcks.values().iterator();
+		while ( whens.hasNext() && whens.next() < then ) {
+			whens.remove();
+		}
+		earlyCount = earlyAcks.size();
+	}
+
+	/**
+	 * Drops (or copies forward, then drops) segments from the oldest until one is worth keeping.
+	 */
+	private void compact () throws IOException {
+		while ( segments.size() > 1 ) {
+			final Segment oldest = segments.get( 0 );
+			if ( oldest.live > 0 ) {
+				if ( oldest.live * 2 > oldest.total ) {
+					// Mostly still live; copying would just churn
+					break;
+				}
+				copyForward( oldest );
+				if ( sync != Sync.NEVER ) {
+					// The copies are on disk before the only other copy goes
+					force();
+				}
+			}
+			if ( !oldest.file.delete() && oldest.file.exists() ) {
+				logger.warn( "Could not delete journal segment {}", oldest.file );
+				break;
+			}
+			segments.remove( 0 );
+			logger.debug( "Compacted journal segment {}", oldest );
+		}
+		segmentCount = segments.size();
+	}
+
+	private void copyForward ( Segment oldest ) throws IOException {
+		final List<Entry> entries = new ArrayList<Entry>();
+		final List<Segment> owners = new ArrayList<Segment>();
+		read( oldest, entries, owners, new HashSet<Long>() );
+
+		final List<Request> group = new ArrayList<Request>();
+		for ( Entry entry : entries ) {
+			final List<Integer> keep = new ArrayList<Integer>();
+			for ( int r = 0; r < entry.seqs.length; r++ ) {
+				if ( live.get( entry.seqs[ r ] ) == oldest ) {
+					keep.add( r );
+				}
+			}
+			if ( !keep.isEmpty() ) {
+				final Entry copy = subset( entry, keep );
+				for ( long seq : copy.seqs ) {
+					live.remove( seq );
+					oldest.live--;
+				}
+				group.add( new Request( copy, null, null ) );
+			}
+		}
+		write( group );
+	}
+
+}
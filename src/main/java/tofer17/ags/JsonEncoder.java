@@ -0,0 +1,309 @@
+package tofer17.ags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes (properly escaped) JSON as UTF-8 straight to an OutputStream through a reusable buffer: no String.format,
+ * no intermediate Strings, no boxing. Not thread-safe; use {@link #get(OutputStream)} for a per-thread instance.
+ *
+ * @author cmetyko
+ *
+ */
+public final class JsonEncoder {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final ThreadLocal<JsonEncoder> LOCAL = ThreadLocal.withInitial( JsonEncoder::new );
+
+	private final byte[] buf = new byte[ BUFFER_SIZE ];
+
+	// Scratch for pulling chars out of Strings in bulk
+	private final char[] chars = new char[ 1024 ];
+
+	private int pos = 0;
+
+	private OutputStream out = null;
+
+	public JsonEncoder () {
+		super();
+	}
+
+	/**
+	 * This thread's encoder, pointed at out. Remember to {@link #flush()} when done.
+	 */
+	public static final JsonEncoder get ( OutputStream out ) {
+		return LOCAL.get().reset( out );
+	}
+
+	/**
+	 * JSON string literal (quotes included) for s.
+	 */
+	public static final String quote ( CharSequence s ) {
+		final ByteArrayOutputStream bout = new ByteArrayOutputStream( s.length() + 2 );
+		try {
+			new JsonEncoder().reset( bout ).string( s ).flush();
+			return bout.toString( "UTF-8" );
+		} catch ( IOException ioe ) {
+			throw new IllegalStateException( ioe ); // Not from a ByteArrayOutputStream
+		}
+	}
+
+	public JsonEncoder reset ( OutputStream out ) {
+		this.out = out;
+		this.pos = 0;
+		return this;
+	}
+
+	public JsonEncoder flush () throws IOException {
+		if ( pos > 0 ) {
+			out.write( buf, 0, pos );
+			pos = 0;
+		}
+		out.flush();
+		return this;
+	}
+
+	private void ensure ( int n ) throws IOException {
+		if ( pos + n > buf.length ) {
+			out.write( buf, 0, pos );
+			pos = 0;
+		}
+	}
+
+	public JsonEncoder raw ( char c ) throws IOException {
+		ensure( 1 );
+		buf[ pos++ ] = (byte) c;
+		return this;
+	}
+
+	public JsonEncoder raw ( byte[] bytes ) throws IOException {
+		if ( bytes.length > buf.length - pos ) {
+			out.write( buf, 0, pos );
+			pos = 0;
+			if ( bytes.length > buf.length ) {
+				out.write( bytes );
+				return this;
+			}
+		}
+		System.arraycopy( bytes, 0, buf, pos, bytes.length );
+		pos += bytes.length;
+		return this;
+	}
+
+	/**
+	 * ASCII only; for names and other literals known not to need escaping.
+	 */
+	public JsonEncoder raw ( String ascii ) throws IOException {
+		for ( int i = 0; i < ascii.length(); i++ ) {
+			raw( ascii.charAt( i ) );
+		}
+		return this;
+	}
+
+	public JsonEncoder number ( long n ) throws IOException {
+		ensure( 20 );
+		if ( n == Long.MIN_VALUE ) {
+			return raw( "-9223372036854775808" );
+		}
+		if ( n < 0 ) {
+			buf[ pos++ ] = '-';
+			n = -n;
+		}
+		// Count the digits, then lay them down backwards
+		int digits = 1;
+		for ( long m = n / 10; m > 0; m /= 10 ) {
+			digits++;
+		}
+		int p = pos + digits;
+		final int end = p;
+		do {
+			buf[ --p ] = (byte) ( '0' + ( n % 10 ) );
+			n /= 10;
+		} while ( n > 0 );
+		pos = end;
+		return this;
+	}
+
+	public JsonEncoder array ( long[] values, int count ) throws IOException {
+		raw( '[' );
+		for ( int i = 0; i < count; i++ ) {
+			if ( i > 0 ) {
+				raw( ',' );
+			}
+			number( values[ i ] );
+		}
+		return raw( ']' );
+	}
+
+	public JsonEncoder array ( String[] values ) throws IOException {
+		raw( '[' );
+		for ( int i = 0; i < values.length; i++ ) {
+			if ( i > 0 ) {
+				raw( ',' );
+			}
+			string( values[ i ] );
+		}
+		return raw( ']' );
+	}
+
+	/**
+	 * Quoted, escaped and UTF-8 encoded; lone surrogates are kept as unicode escapes rather than mangled.
+	 */
+	public JsonEncoder string ( CharSequence s ) throws IOException {
+		raw( '"' );
+		final int len = s.length();
+		final char[] chars = this.chars;
+		// Worst case a char turns into 6 bytes
+		final int limit = buf.length - 6;
+		int pos = this.pos;
+		for ( int off = 0; off < len; off += chars.length ) {
+			final int n = Math.min( chars.length, len - off );
+			if ( s instanceof String ) {
+				( (String) s ).getChars( off, off + n, chars, 0 );
+			} else {
+				for ( int j = 0; j < n; j++ ) {
+					chars[ j ] = s.charAt( off + j );
+				}
+			}
+			for ( int i = 0; i < n; i++ ) {
+				if ( pos > limit ) {
+					out.write( buf, 0, pos );
+					pos = 0;
+				}
+				final char c = chars[ i ];
+				if ( c >= 0x20 && c < 0x80 && c != '"' && c != '\\' ) {
+					buf[ pos++ ] = (byte) c;
+				} else if ( c >= 0x20 && c < 0x80 ) {
+					buf[ pos++ ] = '\\';
+					buf[ pos++ ] = (byte) c;
+				} else if ( c < 0x20 ) {
+					buf[ pos++ ] = '\\';
+					switch ( c ) {
+						case '\b':
+							buf[ pos++ ] = 'b';
+							break;
+						case '\f':
+							buf[ pos++ ] = 'f';
+							break;
+						case '\n':
+							buf[ pos++ ] = 'n';
+							break;
+						case '\r':
+							buf[ pos++ ] = 'r';
+							break;
+						case '\t':
+							buf[ pos++ ] = 't';
+							break;
+						default:
+							pos = unicodeEscape( c, pos );
+					}
+				} else if ( c < 0x800 ) {
+					buf[ pos++ ] = (byte) ( 0xc0 | ( c >> 6 ) );
+					buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+				} else if ( Character.isHighSurrogate( c ) && off + i + 1 < len
+					&& Character.isLowSurrogate( s.charAt( off + i + 1 ) ) ) {
+					final int cp = Character.toCodePoint( c, s.charAt( off + i + 1 ) );
+					buf[ pos++ ] = (byte) ( 0xf0 | ( cp >> 18 ) );
+					buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+					buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+					buf[ pos++ ] = (byte) ( 0x80 | ( cp & 0x3f ) );
+					// The low half may sit in the next chunk; either way skip it
+					if ( ++i == n ) {
+						off++;
+					}
+				} else if ( Character.isSurrogate( c ) || c == '\u2028' || c == '\u2029' ) {
+					// Lone surrogates aren't valid UTF-8; the line separators trip up JavaScript
+					buf[ pos++ ] = '\\';
+					pos = unicodeEscape( c, pos );
+				} else {
+					buf[ pos++ ] = (byte) ( 0xe0 | ( c >> 12 ) );
+					buf[ pos++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+					buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+				}
+			}
+		}
+		this.pos = pos;
+		return raw( '"' );
+	}
+
+	/**
+	 * Escapes UTF-8 text on its way through, as the inside of a JSON string (no quotes): for text too big to hold as
+	 * a String. Quotes, backslashes and control characters are escaped, everything else (multi-byte characters
+	 * included; their bytes are never ASCII) passes as is. Closing flushes and closes what's under it.
+	 */
+	public static final class Escaping extends FilterOutputStream {
+
+		private final byte[] escape = new byte[ 6 ];
+
+		public Escaping ( OutputStream out ) {
+			super( out );
+			escape[ 0 ] = '\\';
+		}
+
+		@Override
+		public void write ( int b ) throws IOException {
+			write( new byte[] { (byte) b }, 0, 1 );
+		}
+
+		@Override
+		public void write ( byte[] b, int off, int len ) throws IOException {
+			int run = off;
+			final int end = off + len;
+			for ( int i = off; i < end; i++ ) {
+				final int c = b[ i ] & 0xff;
+				if ( c >= 0x20 && c != '"' && c != '\\' ) {
+					continue;
+				}
+				if ( i > run ) {
+					out.write( b, run, i - run );
+				}
+				run = i + 1;
+				switch ( c ) {
+					case '"':
+					case '\\':
+						escape[ 1 ] = (byte) c;
+						out.write( escape, 0, 2 );
+						break;
+					case '\n':
+						escape[ 1 ] = 'n';
+						out.write( escape, 0, 2 );
+						break;
+					case '\r':
+						escape[ 1 ] = 'r';
+						out.write( escape, 0, 2 );
+						break;
+					case '\t':
+						escape[ 1 ] = 't';
+						out.write( escape, 0, 2 );
+						break;
+					default:
+						escape[ 1 ] = 'u';
+						escape[ 2 ] = '0';
+						escape[ 3 ] = '0';
+						escape[ 4 ] = HEX[ c >> 4 ];
+						escape[ 5 ] = HEX[ c & 0xf ];
+						out.write( escape, 0, 6 );
+				}
+			}
+			if ( end > run ) {
+				out.write( b, run, end - run );
+			}
+		}
+	}
+
+	// Just the "uXXXX" part; the backslash is already down
+	private int unicodeEscape ( char c, int pos ) {
+		buf[ pos++ ] = 'u';
+		buf[ pos++ ] = HEX[ ( c >> 12 ) & 0xf ];
+		buf[ pos++ ] = HEX[ ( c >> 8 ) & 0xf ];
+		buf[ pos++ ] = HEX[ ( c >> 4 ) & 0xf ];
+		buf[ pos++ ] = HEX[ c & 0xf ];
+		return pos;
+	}
+
+}
@@ -0,0 +1,152 @@
+package tofer17.ags;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * How the key material for a t is derived from the server's secrets. Each scheme has a version, tagged into the
+ * embargoes made with it, so keys for old embargoes can still be had after the default changes. A scheme must give the
+ * same bytes for the same t every time, on every thread.
+ *
+ * @author cmetyko
+ *
+ */
+public interface KeyDerivation {
+
+	/**
+	 * @return the version tagged in embargoes ("v"), e.g. 1
+	 */
+	int version ();
+
+	/**
+	 * @return length bytes of key material for t
+	 */
+	byte[] derive ( String t, int length ) throws GeneralSecurityException;
+
+	/**
+	 * v1: t encrypted with the RSA private key (PKCS#1 v1.5 padding, which is deterministic when encrypting with the
+	 * private key), truncated. One private key operation per key.
+	 */
+	public static final class Rsa implements KeyDerivation {
+
+		private final CryptoEngines engines;
+
+		public Rsa ( CryptoEngines engines ) {
+			this.engines = engines;
+		}
+
+		@Override
+		public int version () {
+			return 1;
+		}
+
+		@Override
+		public byte[] derive ( String t, int length ) throws GeneralSecurityException {
+			final byte[] encr = engines.derive( t.getBytes( StandardCharsets.UTF_8 ) );
+			final byte[] trunc = new byte[ length ];
+			System.arraycopy( encr, 0, trunc, 0, Math.min( trunc.length, encr.length ) );
+			return trunc;
+		}
+
+		@Override
+		public String toString () {
+			return "KeyDerivation v1 " + engines;
+		}
+	}
+
+	/**
+	 * v2: HKDF (RFC 5869) with HMAC-SHA256 over a master secret, t as the info. A couple of HMACs per key.
+	 */
+	public static final class Hkdf implements KeyDerivation {
+
+		public static final String HMAC = "HmacSHA256";
+
+		private static final byte[] SALT = "tofer17.ags.tbe.key.v2".getBytes( StandardCharsets.UTF_8 );
+
+		private final SecretKeySpec prk;
+
+		// This thread's Mac, keyed with prk
+		private final ThreadLocal<Mac> macs;
+
+		/**
+		 * @param master the secret (32 random bytes or so); whoever has it can derive every key
+		 */
+		public Hkdf ( byte[] master ) throws GeneralSecurityException {
+			if ( master == null || master.length < 16 ) {
+				throw new GeneralSecurityException( "Master secret too short" );
+			}
+			this.prk = new SecretKeySpec( extract( SALT, master ), HMAC );
+
+			final Mac mac = newMac();
+			macs = ThreadLocal.withInitial( () -> {
+				try {
+					return newMac();
+				} catch ( GeneralSecurityException gse ) {
+					throw new IllegalStateException( gse ); // Worked in the constructor
+				}
+			} );
+			macs.set( mac );
+		}
+
+		private Mac newMac () throws GeneralSecurityException {
+			final Mac mac = Mac.getInstance( HMAC );
+			mac.init( prk );
+			return mac;
+		}
+
+		@Override
+		public int version () {
+			return 2;
+		}
+
+		@Override
+		public byte[] derive ( String t, int length ) throws GeneralSecurityException {
+			final Mac mac = macs.get();
+			try {
+				return expand( mac, t.getBytes( StandardCharsets.UTF_8 ), length );
+			} catch ( GeneralSecurityException | RuntimeException ex ) {
+				macs.remove();
+				throw ex;
+			}
+		}
+
+		/**
+		 * HKDF-Extract: HMAC(salt, ikm)
+		 */
+		static byte[] extract ( byte[] salt, byte[] ikm ) throws GeneralSecurityException {
+			final Mac mac = Mac.getInstance( HMAC );
+			mac.init( new SecretKeySpec( salt, HMAC ) );
+			return mac.doFinal( ikm );
+		}
+
+		/**
+		 * HKDF-Expand: T(i) = HMAC(prk, T(i-1) | info | i), with mac already keyed with prk
+		 */
+		static byte[] expand ( Mac mac, byte[] info, int length ) throws GeneralSecurityException {
+			final int hashLen = mac.getMacLength();
+			if ( length < 1 || length > 255 * hashLen ) {
+				throw new GeneralSecurityException( "Cannot expand to " + length + " bytes" );
+			}
+			final byte[] okm = new byte[ length ];
+			byte[] prev = new byte[ 0 ];
+			for ( int i = 1, off = 0; off < length; i++ ) {
+				mac.update( prev );
+				mac.update( info );
+				mac.update( (byte) i );
+				prev = mac.doFinal();
+				System.arraycopy( prev, 0, okm, off, Math.min( hashLen, length - off ) );
+				off += hashLen;
+			}
+			return okm;
+		}
+
+		@Override
+		public String toString () {
+			return "KeyDerivation v2 HKDF-" + HMAC;
+		}
+	}
+
+}
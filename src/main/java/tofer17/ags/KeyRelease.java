@@ -0,0 +1,272 @@
+package tofer17.ags;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes the key for a t to everyone who asked for it, as soon as t is past: instead of every player polling for the
+ * key around a reveal time, each subscribes once and the key is derived once and fanned out in one go. Release times
+ * sit on a {@link TimingWheel} (any number of them, O(1) each); the wheel only notices they're due, the deriving and
+ * sending happen on a thread of their own.
+ *
+ * @author cmetyko
+ *
+ */
+public final class KeyRelease {
+
+	private static final Logger logger = LoggerFactory.getLogger( KeyRelease.class );
+
+	// Recipients per send, so one admission decision never covers a whole stadium
+	private static final int CHUNK = 256;
+
+	private static final int ATTEMPTS = 5;
+
+	private static final Metrics.Counter released = Metrics.counter( "tbe_keys_released_total",
+		"Keys pushed to subscribers at their t" );
+
+	private static final Metrics.Counter recipients = Metrics.counter( "tbe_key_release_recipients_total",
+		"Subscribers a key was pushed to" );
+
+	private static final Metrics.Counter failed = Metrics.counter( "tbe_key_release_failed_total",
+		"Subscribers a key could not be pushed to" );
+
+	private static final Metrics.Histogram lateness = Metrics.histogram( "tbe_key_release_late_seconds",
+		"From t to the key going out" );
+
+	/**
+	 * The key for t (made with KeyDerivation version v), as the message pushed.
+	 */
+	public interface Keys {
+		String message ( String t, int v ) throws GeneralSecurityException;
+	}
+
+	/**
+	 * Sends message to the recipients.
+	 */
+	public interface Publisher {
+		void publish ( String[] to, String message ) throws Comms.Overloaded;
+	}
+
+	private static final class Release {
+
+		public final String t;
+
+		public final long at;
+
+		public final int v;
+
+		// Recipient to who subscribed them; guarded by itself, null once it's been taken for sending
+		public Map<String,String> to = new LinkedHashMap<String,String>();
+
+		public int attempts = 0;
+
+		public Release ( String t, long at, int v ) {
+			this.t = t;
+			this.at = at;
+			this.v = v;
+		}
+	}
+
+	private final Map<String,Release> releases = new ConcurrentHashMap<String,Release>();
+
+	private final BlockingQueue<Runnable> due = new LinkedBlockingQueue<Runnable>();
+
+	private final AtomicInteger subscribers = new AtomicInteger();
+
+	// Subscriptions waiting per sender, so no one sender can take up all of max
+	private final Map<String,Integer> bySender = new ConcurrentHashMap<String,Integer>();
+
+	private final TimingWheel wheel;
+
+	private final Keys keys;
+
+	private final Publisher publisher;
+
+	private final int max;
+
+	private final int perSender;
+
+	private final Thread worker;
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param max subscriptions waiting at any one time, all t together
+	 * @param perSender of those, how many any one sender may have
+	 */
+	public KeyRelease ( TimingWheel wheel, Keys keys, Publisher publisher, int max, int perSender ) {
+		this.wheel = wheel;
+		this.keys = keys;
+		this.publisher = publisher;
+		this.max = max;
+		this.perSender = perSender;
+		Metrics.gauge( "tbe_key_releases_pending", "Release times waiting", releases::size );
+		Metrics.gauge( "tbe_key_release_subscribers", "Subscribers waiting for a key", subscribers::get );
+		this.worker = new Thread( this::run, "tbe-release" );
+		worker.setDaemon( true );
+		worker.start();
+	}
+
+	/**
+	 * Recipient gets the key for t (version v) pushed once t is past (straight away if it already is).
+	 *
+	 * @param sender who asked (e.g. remote address), charged for it until it's released
+	 * @return false if there are too many waiting already, overall or from sender
+	 */
+	public boolean subscribe ( String t, long at, int v, String recipient, String sender ) {
+		if ( subscribers.get() >= max || !claim( sender ) ) {
+			return false;
+		}
+		final boolean[] added = new boolean[ 1 ];
+		releases.compute( v + ":" + t, ( k, r ) -> {
+			if ( r == null ) {
+				r = new Release( t, at, v );
+				final Release scheduled = r;
+				wheel.schedule( () -> expire( scheduled ), Math.max( 0, at - System.currentTimeMillis() + 1 ) );
+			}
+			synchronized ( r ) {
+				added[ 0 ] = !r.to.containsKey( recipient );
+				if ( added[ 0 ] ) {
+					r.to.put( recipient, sender );
+				}
+			}
+			return r;
+		} );
+		if ( added[ 0 ] ) {
+			subscribers.incrementAndGet();
+		} else {
+			unclaim( sender );
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if sender already has perSender waiting
+	 */
+	private boolean claim ( String sender ) {
+		final boolean[] claimed = new boolean[ 1 ];
+		bySender.compute( sender, ( k, n ) -> {
+			if ( n == null ) {
+				n = 0;
+			}
+			claimed[ 0 ] = n < perSender;
+			return claimed[ 0 ] ? n + 1 : n > 0 ? n : null;
+		} );
+		return claimed[ 0 ];
+	}
+
+	private void unclaim ( String sender ) {
+		bySender.computeIfPresent( sender, ( k, n ) -> n > 1 ? n - 1 : null );
+	}
+
+	/**
+	 * On the wheel thread: t's bucket came round; hand it to the worker if t really is past.
+	 */
+	private void expire ( Release r ) {
+		final long early = r.at - System.currentTimeMillis();
+		if ( early >= 0 ) {
+			// The wheel keeps nanoTime, keys go by the wall clock; never hand one out early
+			wheel.schedule( () -> expire( r ), early + 1 );
+			return;
+		}
+		releases.remove( r.v + ":" + r.t, r );
+		final String[] to;
+		synchronized ( r ) {
+			to = r.to.keySet().toArray( new String[ r.to.size() ] );
+			for ( String sender : r.to.values() ) {
+				unclaim( sender );
+			}
+			r.to = null;
+		}
+		subscribers.addAndGet( -to.length );
+		due.add( () -> release( r, to ) );
+	}
+
+	/**
+	 * On the worker: derive once, send to everyone; whoever was turned away is tried again shortly.
+	 */
+	private void release ( Release r, String[] to ) {
+		final String message;
+		try {
+			message = keys.message( r.t, r.v );
+		} catch ( GeneralSecurityException e ) {
+			logger.error( "No key to release for {} v{}: {}", r.t, r.v, e.toString() );
+			failed.add( to.length );
+			return;
+		}
+		if ( r.attempts == 0 ) {
+			released.inc();
+			lateness.record( TimeUnit.MILLISECONDS.toNanos( System.currentTimeMillis() - r.at ) );
+		}
+
+		for ( int i = 0; i < to.length; i += CHUNK ) {
+			final String[] chunk = Arrays.copyOfRange( to, i, Math.min( to.length, i + CHUNK ) );
+			try {
+				publisher.publish( chunk, message );
+				recipients.add( chunk.length );
+			} catch ( Comms.Overloaded o ) {
+				final String[] rest = Arrays.copyOfRange( to, i, to.length );
+				if ( ++r.attempts >= ATTEMPTS ) {
+					logger.warn( "Gave up releasing {} v{} to {} recipients: {}", r.t, r.v, rest.length,
+						o.getMessage() );
+					failed.add( rest.length );
+				} else {
+					wheel.schedule( () -> due.add( () -> release( r, rest ) ), o.retryAfter );
+				}
+				return;
+			} catch ( RuntimeException re ) {
+				logger.error( "Releasing {} v{} failed: {}", r.t, r.v, re.toString() );
+				failed.add( to.length - i );
+				return;
+			}
+		}
+	}
+
+	private void run () {
+		while ( running ) {
+			try {
+				due.take().run();
+			} catch ( InterruptedException ie ) {
+				if ( !running ) {
+					break;
+				}
+			} catch ( RuntimeException re ) {
+				logger.error( "Key release: {}", re.toString() );
+			}
+		}
+	}
+
+	public void stop () {
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join( 1000 );
+		} catch ( InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Release times waiting.
+	 */
+	public int size () {
+		return releases.size();
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "KeyRelease %s release times, %s subscribers waiting, %s keys released to %s", size(),
+			subscribers.get(), released.get(), recipients.get() );
+	}
+
+}
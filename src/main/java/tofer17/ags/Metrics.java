@@ -0,0 +1,305 @@
+package tofer17.ags;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+
+/**
+ * Process wide counters, gauges and latency histograms, cheap enough for the hot path (no locks, no allocation on
+ * record) and dumped as JSON or Prometheus text by {@link MetricsServlet}. Names follow Prometheus conventions;
+ * histograms take nanoseconds and report seconds.
+ *
+ * @author cmetyko
+ *
+ */
+public final class Metrics {
+
+	private static final Map<String,Metric> registry = new ConcurrentSkipListMap<String,Metric>();
+
+	// One in this many sampled events gets logged (at debug)
+	private static final int SAMPLE = Math.max( 1, Integer.getInteger( "tofer17.ags.metrics.log.sample", 100 ) );
+
+	private Metrics () {
+		;
+	}
+
+	private static abstract class Metric {
+
+		public final String name;
+
+		public final String help;
+
+		public Metric ( String name, String help ) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public abstract String type ();
+
+		public abstract void writeJson ( Appendable out ) throws IOException;
+
+		public abstract void writePrometheus ( Appendable out ) throws IOException;
+	}
+
+	/**
+	 * Only ever goes up.
+	 */
+	public static final class Counter extends Metric {
+
+		private final LongAdder value = new LongAdder();
+
+		private Counter ( String name, String help ) {
+			super( name, help );
+		}
+
+		public void inc () {
+			value.increment();
+		}
+
+		public void add ( long n ) {
+			value.add( n );
+		}
+
+		public long get () {
+			return value.sum();
+		}
+
+		@Override
+		public String type () {
+			return "counter";
+		}
+
+		@Override
+		public void writeJson ( Appendable out ) throws IOException {
+			out.append( Long.toString( get() ) );
+		}
+
+		@Override
+		public void writePrometheus ( Appendable out ) throws IOException {
+			out.append( name ).append( ' ' ).append( Long.toString( get() ) ).append( '\n' );
+		}
+	}
+
+	/**
+	 * Read off something that already keeps count (a queue size, an existing AtomicLong...) when scraped.
+	 */
+	private static final class Gauge extends Metric {
+
+		private final String type;
+
+		private final LongSupplier value;
+
+		private Gauge ( String name, String help, String type, LongSupplier value ) {
+			super( name, help );
+			this.type = type;
+			this.value = value;
+		}
+
+		@Override
+		public String type () {
+			return type;
+		}
+
+		@Override
+		public void writeJson ( Appendable out ) throws IOException {
+			out.append( Long.toString( value.getAsLong() ) );
+		}
+
+		@Override
+		public void writePrometheus ( Appendable out ) throws IOException {
+			out.append( name ).append( ' ' ).append( Long.toString( value.getAsLong() ) ).append( '\n' );
+		}
+	}
+
+	/**
+	 * Log-linear (HDR style) histogram of durations: 16 linear sub-buckets per power of two, so any quantile is within
+	 * 1/16 of the truth, over 1us to ~12 days in a fixed 600 or so buckets. Recorded in microseconds.
+	 */
+	public static final class Histogram extends Metric {
+
+		static final int SUB_BITS = 4;
+
+		static final int SUB = 1 << SUB_BITS;
+
+		static final long MAX = ( 1L << 40 ) - 1;
+
+		static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+		static final String[] LABELS = { "p50", "p90", "p99", "p999" };
+
+		private final AtomicLongArray counts = new AtomicLongArray( index( MAX ) + 1 );
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder sum = new LongAdder();
+
+		private final AtomicLong max = new AtomicLong();
+
+		private Histogram ( String name, String help ) {
+			super( name, help );
+		}
+
+		static int index ( long v ) {
+			if ( v < SUB ) {
+				return (int) v;
+			}
+			final int top = 63 - Long.numberOfLeadingZeros( v );
+			return ( top - SUB_BITS + 1 ) * SUB + (int) ( ( v >>> ( top - SUB_BITS ) ) & ( SUB - 1 ) );
+		}
+
+		/**
+		 * Smallest value landing in bucket i.
+		 */
+		static long lowest ( int i ) {
+			if ( i < SUB ) {
+				return i;
+			}
+			final int octave = i / SUB;
+			return (long) ( SUB + i % SUB ) << ( octave - 1 );
+		}
+
+		public void record ( long nanos ) {
+			final long us = Math.min( MAX, Math.max( 0L, nanos / 1000 ) );
+			counts.incrementAndGet( index( us ) );
+			count.increment();
+			sum.add( us );
+			if ( us > max.get() ) {
+				max.accumulateAndGet( us, Math::max );
+			}
+		}
+
+		public void recordSince ( long startNanos ) {
+			record( System.nanoTime() - startNanos );
+		}
+
+		public long count () {
+			return count.sum();
+		}
+
+		/**
+		 * @return microseconds (the top of the bucket holding quantile q, never past the max seen)
+		 */
+		public long quantile ( double q ) {
+			final long total = count.sum();
+			if ( total == 0 ) {
+				return 0L;
+			}
+			final long rank = Math.max( 1L, (long) Math.ceil( q * total ) );
+			long seen = 0;
+			for ( int i = 0; i < counts.length(); i++ ) {
+				seen += counts.get( i );
+				if ( seen >= rank ) {
+					return Math.min( lowest( i + 1 ) - 1, max.get() );
+				}
+			}
+			return max.get();
+		}
+
+		@Override
+		public String type () {
+			return "summary";
+		}
+
+		@Override
+		public void writeJson ( Appendable out ) throws IOException {
+			final long n = count.sum();
+			out.append( "{\"count\":" ).append( Long.toString( n ) ).append( ",\"sum\":" )
+				.append( seconds( sum.sum() ) ).append( ",\"max\":" ).append( seconds( max.get() ) );
+			for ( int i = 0; i < QUANTILES.length; i++ ) {
+				out.append( ",\"" ).append( LABELS[ i ] ).append( "\":" )
+					.append( seconds( quantile( QUANTILES[ i ] ) ) );
+			}
+			out.append( '}' );
+		}
+
+		@Override
+		public void writePrometheus ( Appendable out ) throws IOException {
+			for ( double q : QUANTILES ) {
+				out.append( name ).append( "{quantile=\"" ).append( Double.toString( q ) ).append( "\"} " )
+					.append( seconds( quantile( q ) ) ).append( '\n' );
+			}
+			out.append( name ).append( "_sum " ).append( seconds( sum.sum() ) ).append( '\n' );
+			out.append( name ).append( "_count " ).append( Long.toString( count.sum() ) ).append( '\n' );
+		}
+
+		private static String seconds ( long us ) {
+			return Double.toString( us / 1e6 );
+		}
+	}
+
+	/**
+	 * @return the counter called name, registering it the first time.
+	 */
+	public static Counter counter ( String name, String help ) {
+		return (Counter) registry.computeIfAbsent( name, n -> new Counter( n, help ) );
+	}
+
+	/**
+	 * @return the histogram called name, registering it the first time.
+	 */
+	public static Histogram histogram ( String name, String help ) {
+		return (Histogram) registry.computeIfAbsent( name, n -> new Histogram( n, help ) );
+	}
+
+	/**
+	 * Registers (or replaces) a gauge read from value on every scrape.
+	 */
+	public static void gauge ( String name, String help, LongSupplier value ) {
+		registry.put( name, new Gauge( name, help, "gauge", value ) );
+	}
+
+	/**
+	 * Like {@link #gauge} for something that only goes up.
+	 */
+	public static void counter ( String name, String help, LongSupplier value ) {
+		registry.put( name, new Gauge( name, help, "counter", value ) );
+	}
+
+	public static void unregister ( String name ) {
+		registry.remove( name );
+	}
+
+	/**
+	 * {"name":value,...} with histograms as {"count":..,"sum":..,"max":..,"p50":..,...} in seconds.
+	 */
+	public static void writeJson ( Appendable out ) throws IOException {
+		out.append( '{' );
+		boolean first = true;
+		for ( Metric m : registry.values() ) {
+			if ( !first ) {
+				out.append( ',' );
+			}
+			first = false;
+			out.append( '"' ).append( m.name ).append( "\":" );
+			m.writeJson( out );
+		}
+		out.append( "}\n" );
+	}
+
+	/**
+	 * Prometheus text exposition format (0.0.4).
+	 */
+	public static void writePrometheus ( Appendable out ) throws IOException {
+		for ( Metric m : registry.values() ) {
+			out.append( "# HELP " ).append( m.name ).append( ' ' ).append( m.help ).append( '\n' );
+			out.append( "# TYPE " ).append( m.name ).append( ' ' ).append( m.type() ).append( '\n' );
+			m.writePrometheus( out );
+		}
+	}
+
+	/**
+	 * For debug lines on the hot path: true for about one call in tofer17.ags.metrics.log.sample (100) and only if
+	 * debug is on at all, so whatever the line would format is skipped the rest of the time.
+	 */
+	public static boolean sample ( Logger logger ) {
+		return logger.isDebugEnabled() && ( SAMPLE == 1 || ThreadLocalRandom.current().nextInt( SAMPLE ) == 0 );
+	}
+
+}
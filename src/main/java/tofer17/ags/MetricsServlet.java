@@ -0,0 +1,48 @@
+package tofer17.ags;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Dumps {@link Metrics}: Prometheus text by default, JSON with ?json (or when asked for application/json).
+ *
+ * @author cmetyko
+ *
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 2793176468245409193L;
+
+	public MetricsServlet () {
+		super();
+	}
+
+	protected void doGet ( HttpServletRequest request, HttpServletResponse response )
+		throws ServletException, IOException {
+		response.setHeader( "Cache-Control", "no-cache" );
+		response.setCharacterEncoding( "UTF-8" );
+
+		final String accept = request.getHeader( "Accept" );
+		final boolean json = request.getParameter( "json" ) != null
+			|| ( accept != null && accept.contains( "application/json" ) );
+
+		final StringBuilder sb = new StringBuilder( 8 * 1024 );
+		if ( json ) {
+			response.setContentType( "application/json" );
+			Metrics.writeJson( sb );
+		} else {
+			response.setContentType( "text/plain; version=0.0.4" );
+			Metrics.writePrometheus( sb );
+		}
+
+		final PrintWriter writer = response.getWriter();
+		writer.append( sb );
+		writer.flush();
+	}
+
+}
@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -15,15 +14,17 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.SignatureException;
+import java.security.MessageDigest;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.RSAKeyGenParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Properties;
 import java.util.Base64.Encoder;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -58,6 +59,27 @@ public class TimeBasedEncrypter extends HttpServlet {
 
 	private static final Encoder B64Encoder = Base64.getEncoder();
 
+	private static final Metrics.Histogram signTime = Metrics.histogram( "tbe_sign_seconds",
+		"Signing a timestamp" );
+
+	private static final Metrics.Histogram deriveTime = Metrics.histogram( "tbe_derive_seconds",
+		"Deriving the key for a t" );
+
+	private static final Metrics.Histogram embargoTime = Metrics.histogram( "tbe_embargo_seconds",
+		"Embargoing an object, signing and deriving included" );
+
+	private static final Metrics.Counter errors = Metrics.counter( "tbe_errors_total",
+		"Requests answered with an error" );
+
+	private static final Metrics.Counter presigned = Metrics.counter( "tbe_timestamps_presigned_total",
+		"Query timestamps served from the ticker rather than signed for the request" );
+
+	private static final Metrics.Counter batchItems = Metrics.counter( "tbe_batch_items_total",
+		"Objects embargoed or keys fetched in batches" );
+
+	private static final Metrics.Counter streamedBytes = Metrics.counter( "tbe_embargo_streamed_bytes_total",
+		"Raw bytes embargoed as they were read" );
+
 	public static final int TS_MODE_QUERY = 0;
 
 	public static final int TS_MODE_EMBARGO = 1;
@@ -82,10 +104,71 @@ public class TimeBasedEncrypter extends HttpServlet {
 
 	private String embargoKeyAlgo = "AES";
 
+	// Query (TS_MODE_QUERY) stamps are pre-signed this often (ms) and shared; 0 signs one per query
+	private long tickerMillis = 0L;
+
+	// Ticks for the ticker and key releases
+	private TimingWheel wheel = null;
+
+	// Key releases are on time to within this (ms)
+	private long releaseTick = 10L;
+
+	// Subscribers waiting for keys, all t together
+	private int releaseMax = 100000;
+
+	// Of those, how many any one client (remote address) may have subscribed
+	private int releasePerSender = 256;
+
+	private KeyRelease release = null;
+
+	private volatile Stamp latestStamp = null;
+
+	// A query came in since the last tick, so the next tick signs a new stamp
+	private final AtomicBoolean stampWanted = new AtomicBoolean( false );
+
+	// t is rounded up to a multiple of this (ms) so everything in a bucket shares one key; 0 keys every t its own
+	private long embargoBucket = 0L;
+
+	// Most objects embargoed, or keys fetched, in one request
+	private int batchMax = 256;
+
+	// Largest raw (JSON or binary) embargo body read
+	private int bodyMax = 1024 * 1024;
+
+	// Derived keys, so a popular t costs one private key operation rather than one per request
+	private int keyCacheSize = 10000;
+
+	private long keyCacheAge = 1000 * 60 * 10;
+
+	// Embargoes are made with this KeyDerivation version; keys can be had for any of them (indexed by version)
+	private int keyDerivation = 1;
+
+	private final KeyDerivation[] derivations = new KeyDerivation[ 3 ];
+
+	private final TimeKeyCache[] keyCaches = new TimeKeyCache[ 3 ];
+
+	// v2's master secret
+	private byte[] keyMaster = null;
+
 	private KeyPair keyPair = null;
 
+	// This thread's ready to go Signature/Cipher for keyPair
+	private CryptoEngines engines = null;
+
+	// Timestamps are signed with keyPair ("RSA") or a P-256 pair of their own ("EC"): faster and smaller signatures
+	private String signingKeyAlgo = "RSA";
+
+	private static final String EC_SIGN_ALGO = "SHA256withECDSA";
+
+	private KeyPair signingKeyPair = null;
+
+	private String signingAlgo = null;
+
 	private CharSequence pubKeyExport = null;
 
+	// Short id for the signing public key (%5$s in the signed timestamp format), see GET ?k
+	private String keyId = null;
+
 	public TimeBasedEncrypter () {
 		super();
 	}
@@ -101,12 +184,23 @@ public class TimeBasedEncrypter extends HttpServlet {
 		p.setProperty( "tofer17.ags.tbe.signed.timestamp.format",
 			"{\"t\":%1$s,\"m\":%2$s,\"s\":\"%3$s\",\"k\":\"%4$s\"}" );
 		p.setProperty( "tofer17.ags.tbe.signed.timestamp.error", "{\"error\":-1}" );
+		p.setProperty( "tofer17.ags.tbe.signed.timestamp.ticker", "0" );
+		p.setProperty( "tofer17.ags.tbe.batch.max", "256" );
+		p.setProperty( "tofer17.ags.tbe.embargo.bucket", "0" );
+		p.setProperty( "tofer17.ags.tbe.release.tick", "10" );
+		p.setProperty( "tofer17.ags.tbe.release.max", "100000" );
+		p.setProperty( "tofer17.ags.tbe.release.per.sender", "256" );
+		p.setProperty( "tofer17.ags.tbe.key.derivation", "1" );
+		p.setProperty( "tofer17.ags.tbe.signing.key.algo", "RSA" );
 
 		p.setProperty( "tofer17.ags.tbe.embargo.key.error", "{\"error\":-1}" );
 		p.setProperty( "tofer17.ags.tbe.embargo.key.format", "{\"k\":\"%s\"}" );
 		p.setProperty( "tofer17.ags.tbe.embargo.key.transformation", "RSA/ECB/PKCS1Padding" );
 		p.setProperty( "tofer17.ags.tbe.embargo.key.size", "32" );
 		p.setProperty( "tofer17.ags.tbe.embargo.key.algo", "AES" );
+		p.setProperty( "tofer17.ags.tbe.body.max", "1048576" );
+		p.setProperty( "tofer17.ags.tbe.key.cache.size", "10000" );
+		p.setProperty( "tofer17.ags.tbe.key.cache.age", "600000" );
 		// Although a neat idea-- not happening.
 		// p.setProperty( "tofer17.ags.tbe.key.algo", "RSA" );
 		// p.setProperty( "tofer17.ags.tbe.key.size", "2048" );
@@ -142,9 +236,25 @@ public class TimeBasedEncrypter extends HttpServlet {
 			return keyGen.generateKeyPair();
 		}
 
+		if ( "EC".equals( algo ) ) {
+			final KeyPairGenerator keyGen = KeyPairGenerator.getInstance( algo );
+
+			keyGen.initialize( new ECGenParameterSpec( "secp" + size + "r1" ) );
+
+			return keyGen.generateKeyPair();
+		}
+
 		throw new NoSuchAlgorithmException( "Cannot work with '" + algo + "'" );
 	}
 
+	/**
+	 * @return the first 72 bits of the SHA-256 of the encoded key, URL-safe Base64 (12 characters)
+	 */
+	private static final String keyIdOf ( PublicKey key ) throws GeneralSecurityException {
+		final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( key.getEncoded() );
+		return Base64.getUrlEncoder().withoutPadding().encodeToString( Arrays.copyOf( digest, 9 ) );
+	}
+
 	private final void loadConfig () {
 		final Properties props = new Properties( DEFAULT_PROPERTIES );
 
@@ -181,6 +291,68 @@ public class TimeBasedEncrypter extends HttpServlet {
 		signedTimestampFormat = props.getProperty( "tofer17.ags.tbe.signed.timestamp.format" );
 		signedTimestampError = props.getProperty( "tofer17.ags.tbe.signed.timestamp.error" );
 
+		try {
+			tickerMillis = Math.max( 0,
+				Long.parseLong( props.getProperty( "tofer17.ags.tbe.signed.timestamp.ticker" ) ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.signed.timestamp.ticker; not pre-signing" );
+		}
+
+		try {
+			releaseTick = Math.max( 1, Long.parseLong( props.getProperty( "tofer17.ags.tbe.release.tick" ) ) );
+			releaseMax = Math.max( 0, Integer.parseInt( props.getProperty( "tofer17.ags.tbe.release.max" ) ) );
+			releasePerSender = Math.max( 0,
+				Integer.parseInt( props.getProperty( "tofer17.ags.tbe.release.per.sender" ) ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.release.*; releasing every {} ms to at most {} ({} per sender)",
+				releaseTick, releaseMax, releasePerSender );
+		}
+
+		try {
+			embargoBucket = Math.max( 0, Long.parseLong( props.getProperty( "tofer17.ags.tbe.embargo.bucket" ) ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.embargo.bucket; every t gets its own key" );
+		}
+
+		try {
+			batchMax = Math.max( 1, Integer.parseInt( props.getProperty( "tofer17.ags.tbe.batch.max" ) ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.batch.max; using {}", batchMax );
+		}
+
+		try {
+			bodyMax = Math.max( 1, Integer.parseInt( props.getProperty( "tofer17.ags.tbe.body.max" ) ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.body.max; using {}", bodyMax );
+		}
+
+		try {
+			keyCacheSize = Math.max( 1, Integer.parseInt( props.getProperty( "tofer17.ags.tbe.key.cache.size" ) ) );
+			keyCacheAge = Math.max( 1, Long.parseLong( props.getProperty( "tofer17.ags.tbe.key.cache.age" ) ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.key.cache.*; using {} keys for {} ms", keyCacheSize, keyCacheAge );
+		}
+
+		try {
+			keyDerivation = Integer.parseInt( props.getProperty( "tofer17.ags.tbe.key.derivation" ) );
+		} catch ( NumberFormatException nfe ) {
+			logger.warn( "Bad tofer17.ags.tbe.key.derivation; using v{}", keyDerivation );
+		}
+
+		final String keyMasterBase64 = props.getProperty( "tofer17.ags.tbe.key.master" );
+		if ( keyMasterBase64 == null || keyMasterBase64.length() < 1 ) {
+			keyMaster = new byte[ 32 ];
+			new SecureRandom().nextBytes( keyMaster );
+			saveNeeded = true;
+		} else {
+			try {
+				keyMaster = Base64.getDecoder().decode( keyMasterBase64 );
+			} catch ( IllegalArgumentException iae ) {
+				logger.error( "Bad tofer17.ags.tbe.key.master; no v2 keys" );
+				keyMaster = null;
+			}
+		}
+
 		final String publicKeyBase64 = props.getProperty( "tofer17.ags.tbe.public.key" );
 		final String privateKeyBase64 = props.getProperty( "tofer17.ags.tbe.private.key" );
 
@@ -208,6 +380,42 @@ public class TimeBasedEncrypter extends HttpServlet {
 			}
 		}
 
+		signingKeyAlgo = props.getProperty( "tofer17.ags.tbe.signing.key.algo" );
+
+		if ( "EC".equals( signingKeyAlgo ) ) {
+			final String signingPublicKeyBase64 = props.getProperty( "tofer17.ags.tbe.signing.public.key" );
+			final String signingPrivateKeyBase64 = props.getProperty( "tofer17.ags.tbe.signing.private.key" );
+
+			if ( signingPublicKeyBase64 == null || signingPrivateKeyBase64 == null
+				|| signingPublicKeyBase64.length() < 1 || signingPrivateKeyBase64.length() < 1 ) {
+				try {
+					signingKeyPair = generateNewKeyPair( signingKeyAlgo, 256 );
+					saveNeeded = true;
+				} catch ( GeneralSecurityException e ) {
+					e.printStackTrace();
+					signingKeyPair = null;
+				}
+			} else {
+				try {
+					signingKeyPair = importBase64KeyPair( signingKeyAlgo, signingPublicKeyBase64,
+						signingPrivateKeyBase64 );
+					logger.info( "Imported signing key pair from properties: '{}'", signingKeyPair );
+				} catch ( GeneralSecurityException e ) {
+					e.printStackTrace();
+					signingKeyPair = null;
+				}
+			}
+			signingAlgo = EC_SIGN_ALGO;
+
+		} else {
+			if ( !"RSA".equals( signingKeyAlgo ) ) {
+				logger.warn( "Bad tofer17.ags.tbe.signing.key.algo '{}'; signing with RSA", signingKeyAlgo );
+				signingKeyAlgo = "RSA";
+			}
+			signingKeyPair = keyPair;
+			signingAlgo = signedTimestampAlgo;
+		}
+
 		if ( saveNeeded && keyPair != null ) {
 			saveConfig();
 		} else if ( saveNeeded ) {
@@ -223,6 +431,28 @@ public class TimeBasedEncrypter extends HttpServlet {
 		props.setProperty( "tofer17.ags.tbe.signed.timestamp.algo", signedTimestampAlgo );
 		props.setProperty( "tofer17.ags.tbe.signed.timestamp.format", signedTimestampFormat );
 		props.setProperty( "tofer17.ags.tbe.signed.timestamp.error", signedTimestampError );
+		props.setProperty( "tofer17.ags.tbe.signed.timestamp.ticker", Long.toString( tickerMillis ) );
+		props.setProperty( "tofer17.ags.tbe.embargo.bucket", Long.toString( embargoBucket ) );
+		props.setProperty( "tofer17.ags.tbe.release.tick", Long.toString( releaseTick ) );
+		props.setProperty( "tofer17.ags.tbe.release.max", Integer.toString( releaseMax ) );
+		props.setProperty( "tofer17.ags.tbe.release.per.sender", Integer.toString( releasePerSender ) );
+		props.setProperty( "tofer17.ags.tbe.batch.max", Integer.toString( batchMax ) );
+		props.setProperty( "tofer17.ags.tbe.body.max", Integer.toString( bodyMax ) );
+		props.setProperty( "tofer17.ags.tbe.key.cache.size", Integer.toString( keyCacheSize ) );
+		props.setProperty( "tofer17.ags.tbe.key.cache.age", Long.toString( keyCacheAge ) );
+		props.setProperty( "tofer17.ags.tbe.key.derivation", Integer.toString( keyDerivation ) );
+		props.setProperty( "tofer17.ags.tbe.signing.key.algo", signingKeyAlgo );
+
+		if ( "EC".equals( signingKeyAlgo ) && signingKeyPair != null ) {
+			props.setProperty( "tofer17.ags.tbe.signing.public.key",
+				EncodeToB64( signingKeyPair.getPublic().getEncoded() ) );
+			props.setProperty( "tofer17.ags.tbe.signing.private.key",
+				EncodeToB64( signingKeyPair.getPrivate().getEncoded() ) );
+		}
+
+		if ( keyMaster != null ) {
+			props.setProperty( "tofer17.ags.tbe.key.master", EncodeToB64( keyMaster ) );
+		}
 
 		if ( keyPair != null ) {
 			props.setProperty( "tofer17.ags.tbe.public.key", EncodeToB64( keyPair.getPublic().getEncoded() ) );
@@ -256,90 +486,407 @@ public class TimeBasedEncrypter extends HttpServlet {
 		}
 	}
 
+	/**
+	 * @return {kid,k,a}: the id signed timestamps can carry, the public key it stands for and the signature algorithm
+	 */
+	private final CharSequence getSigningKeyJSON () {
+		if ( keyId == null ) {
+			errors.inc();
+			return signedTimestampError;
+		}
+		return String.format( "{\"kid\":\"%1$s\",\"k\":\"%2$s\",\"a\":\"%3$s\"}", keyId, pubKeyExport, signingAlgo );
+	}
+
 	private final CharSequence getSignedTimestampJSON ( int m ) {
+		return getSignedTimestampJSON( m, System.currentTimeMillis() );
+	}
 
-		final String timestamp = "" + System.currentTimeMillis();
+	private final CharSequence getSignedTimestampJSON ( int m, long now ) {
 
-		if ( pubKeyExport == null ) {
-			pubKeyExport = EncodeToB64( keyPair.getPublic().getEncoded() );
-		}
+		final String timestamp = "" + now;
 
+		final long start = System.nanoTime();
 		try {
-			final Signature sig = Signature.getInstance( signedTimestampAlgo );
-			sig.initSign( keyPair.getPrivate() );
-
 			final String dig = String.format( signedTimestampTSFormat, timestamp, m );
-			sig.update( dig.getBytes( StandardCharsets.UTF_8 ) );
 
-			final byte[] sigBytes = sig.sign();
+			final byte[] sigBytes = engines().sign( dig.getBytes( StandardCharsets.UTF_8 ) );
 			final String sigB64 = EncodeToB64( sigBytes );
+			signTime.recordSince( start );
 
-			return String.format( signedTimestampFormat, timestamp, m, sigB64, pubKeyExport );
-		} catch ( InvalidKeyException | SignatureException | NoSuchAlgorithmException e ) {
+			return String.format( signedTimestampFormat, timestamp, m, sigB64, pubKeyExport, keyId );
+		} catch ( GeneralSecurityException e ) {
 			e.printStackTrace();
+			errors.inc();
 			return signedTimestampError;
 		}
 	}
 
-	private final Key generateKeyForTime ( String t ) throws GeneralSecurityException {
+	/**
+	 * A signed query stamp rendered ahead of time.
+	 */
+	private static final class Stamp {
+
+		public final long at;
+
+		public final CharSequence json;
+
+		public Stamp ( long at, CharSequence json ) {
+			this.at = at;
+			this.json = json;
+		}
+	}
+
+	/**
+	 * TS_MODE_QUERY stamp: with the ticker on, the latest pre-signed one (at most a couple of ticks old) so the
+	 * signing cost stays flat however many clients ask.
+	 */
+	private final CharSequence getQueryTimestampJSON () {
+		if ( tickerMillis <= 0 || wheel == null ) {
+			return getSignedTimestampJSON( TS_MODE_QUERY );
+		}
+		if ( !stampWanted.get() ) {
+			stampWanted.set( true );
+		}
+		final Stamp s = latestStamp;
+		if ( s != null && System.currentTimeMillis() - s.at <= tickerMillis * 2 ) {
+			presigned.inc();
+			return s.json;
+		}
+		// Nobody asked for a while (so the ticker didn't bother); this one's signed here and shared from now on
+		return signQueryStamp();
+	}
+
+	private final CharSequence signQueryStamp () {
+		final long now = System.currentTimeMillis();
+		final CharSequence json = getSignedTimestampJSON( TS_MODE_QUERY, now );
+		if ( json != signedTimestampError ) {
+			latestStamp = new Stamp( now, json );
+		}
+		return json;
+	}
+
+	/**
+	 * Signs a fresh query stamp if anybody asked since the last tick; reschedules itself.
+	 */
+	private final void tick () {
+		final TimingWheel w = wheel;
+		if ( w == null ) {
+			return;
+		}
+		if ( stampWanted.getAndSet( false ) ) {
+			signQueryStamp();
+		}
+		w.schedule( this::tick, tickerMillis );
+	}
 
-		final Cipher cipher = Cipher.getInstance( embargoKeyTransformation );
+	private final CryptoEngines engines () throws GeneralSecurityException {
+		final CryptoEngines e = engines;
+		if ( e == null ) {
+			throw new GeneralSecurityException( "No keys" );
+		}
+		return e;
+	}
 
-		cipher.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+	private final Key generateKeyForTime ( KeyDerivation derivation, String t ) throws GeneralSecurityException {
 
-		final byte[] encr = cipher.doFinal( t.getBytes( StandardCharsets.UTF_8 ) );
+		final long start = System.nanoTime();
 
-		final byte[] trunc = new byte[ embargoKeySize ];
+		final byte[] material = derivation.derive( t, embargoKeySize );
 
-		System.arraycopy( encr, 0, trunc, 0, Math.min( trunc.length, encr.length ) );
+		deriveTime.recordSince( start );
 
-		return new SecretKeySpec( trunc, embargoKeyAlgo );
+		return new SecretKeySpec( material, embargoKeyAlgo );
 	}
 
-	private final Key getKeyForTime ( String t ) throws GeneralSecurityException {
+	/**
+	 * @return the key for t made with KeyDerivation version v
+	 */
+	private final Key getKeyForTime ( String t, int v ) throws GeneralSecurityException {
 
-		return generateKeyForTime( t );
+		final TimeKeyCache cache = v >= 0 && v < keyCaches.length ? keyCaches[ v ] : null;
+		if ( cache == null ) {
+			throw new GeneralSecurityException( "No key derivation v" + v );
+		}
+		return cache.get( t );
 	}
 
-	private final CharSequence getPastKeyJSON ( String t ) {
+	private final CharSequence getPastKeyJSON ( String t, int v ) {
 		try {
-			final String keyBase64 = EncodeToB64( getKeyForTime( t ).getEncoded() );
+			final String keyBase64 = EncodeToB64( getKeyForTime( t, v ).getEncoded() );
 			return String.format( embargoKeyFormat, keyBase64 );
 		} catch ( GeneralSecurityException e ) {
 			e.printStackTrace();
 		}
 
+		errors.inc();
 		return embargoKeyError;
 	}
 
 	private final CharSequence getEmbargoJSON ( String t, String o ) {
+		final long start = System.nanoTime();
+		try {
+			final String json = embargo( getKeyForTime( t, keyDerivation ), t, o,
+				getSignedTimestampJSON( TS_MODE_EMBARGO ) );
+			embargoTime.recordSince( start );
+			return json;
+
+		} catch ( GeneralSecurityException e ) {
+			e.printStackTrace();
+		}
+
+		errors.inc();
+		return embargoKeyError;
+	}
+
+	/**
+	 * Embargoes every o until t: the key is derived and the timestamp signed once for the lot (each still gets its own
+	 * IV). Answers a JSON array in the same order; an item that fails is an error in its slot, the rest stand.
+	 */
+	private final CharSequence getEmbargoBatchJSON ( String t, String[] os ) {
+		final long start = System.nanoTime();
+		final StringBuilder sb = new StringBuilder( "[" );
+
+		Key key = null;
+		CharSequence ts = null;
 		try {
-			final Key key = getKeyForTime( t );
+			key = getKeyForTime( t, keyDerivation );
+			ts = getSignedTimestampJSON( TS_MODE_EMBARGO );
+		} catch ( GeneralSecurityException e ) {
+			e.printStackTrace();
+		}
 
-			if ( o == null ) {
-				o = "";
+		for ( int i = 0; i < os.length; i++ ) {
+			if ( i > 0 ) {
+				sb.append( ',' );
 			}
+			try {
+				if ( key == null || ts == signedTimestampError ) {
+					throw new GeneralSecurityException( "No key or timestamp for " + t );
+				}
+				sb.append( embargo( key, t, os[ i ], ts ) );
+			} catch ( GeneralSecurityException e ) {
+				logger.warn( "Batch embargo item {} of {}: {}", i, os.length, e.toString() );
+				errors.inc();
+				sb.append( embargoKeyError );
+			}
+		}
 
-			// Wrap o -> embargo {t:123,o:"???",ts:{...}}"
-			final String embargoString = String.format( "{\"t\":%1$s,\"o\":\"%2$s\",\"ts\":%3$s}", t, o,
-				getSignedTimestampJSON( TS_MODE_EMBARGO ) );
+		batchItems.add( os.length );
+		embargoTime.recordSince( start );
+		return sb.append( ']' );
+	}
 
-			final Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
-			cipher.init( Cipher.ENCRYPT_MODE, key );
+	/**
+	 * @return o wrapped with t and ts and AES-GCM encrypted under key, as {t,v,iv,ct} (v: the KeyDerivation; absent on
+	 *         embargoes from before there was a choice, which are v1), or {t,b,v,iv,ct} when bucketing (b: the bucket)
+	 */
+	private final String embargo ( Key key, String t, String o, CharSequence ts ) throws GeneralSecurityException {
 
-			final byte[] encr = cipher.doFinal( embargoString.getBytes( StandardCharsets.UTF_8 ) );
-			final String encrBase64 = EncodeToB64( encr );
+		if ( o == null ) {
+			o = "";
+		}
+
+		// Wrap o -> embargo {t:123,o:"???",ts:{...}}"
+		final String embargoString = embargoPlainHead( t ) + o + embargoPlainTail( ts );
+
+		final Cipher cipher = engines().gcm( key );
+
+		final byte[] encr = cipher.doFinal( embargoString.getBytes( StandardCharsets.UTF_8 ) );
+		final String encrBase64 = EncodeToB64( encr );
+
+		final byte[] ivBytes = cipher.getIV();
+		final String ivBase64 = EncodeToB64( ivBytes );
+
+		return embargoHead( t, ivBase64 ) + encrBase64 + EMBARGO_TAIL;
+	}
 
-			final byte[] ivBytes = cipher.getIV();
-			final String ivBase64 = EncodeToB64( ivBytes );
+	private static final String EMBARGO_TAIL = "\"}";
 
-			return String.format( "{\"t\":%1$s,\"iv\":\"%2$s\",\"ct\":\"%3$s\"}", t, ivBase64, encrBase64 );
+	/**
+	 * @return the embargo up to the ciphertext: {"t":1,"v":1,"iv":"...","ct":"
+	 */
+	private final String embargoHead ( String t, String ivBase64 ) {
+		if ( embargoBucket > 0 ) {
+			return String.format( "{\"t\":%1$s,\"b\":%2$s,\"v\":%3$s,\"iv\":\"%4$s\",\"ct\":\"", t, embargoBucket,
+				keyDerivation, ivBase64 );
+		}
+		return String.format( "{\"t\":%1$s,\"v\":%2$s,\"iv\":\"%3$s\",\"ct\":\"", t, keyDerivation, ivBase64 );
+	}
+
+	private static final String embargoPlainHead ( String t ) {
+		return "{\"t\":" + t + ",\"o\":\"";
+	}
+
+	private static final String embargoPlainTail ( CharSequence ts ) {
+		return "\",\"ts\":" + ts + "}";
+	}
+
+	/**
+	 * Embargoes the raw body until t as it's read (see {@link EmbargoStream}): the same {t,v,iv,ct} as any other
+	 * embargo, but the object is never whole in memory, plain or encrypted.
+	 */
+	private final void streamEmbargo ( HttpServletRequest request, HttpServletResponse response, String t )
+		throws IOException {
+		final long start = System.nanoTime();
+		try {
+			final Key key = getKeyForTime( t, keyDerivation );
+			final CharSequence ts = getSignedTimestampJSON( TS_MODE_EMBARGO );
+			if ( ts == signedTimestampError ) {
+				throw new GeneralSecurityException( "No timestamp for " + t );
+			}
+			// Its own cipher: the reads (and so the updates) come on whatever container thread
+			final Cipher cipher = engines().newGcm( key );
+
+			EmbargoStream.start( request, response, cipher,
+				embargoHead( t, EncodeToB64( cipher.getIV() ) ).getBytes( StandardCharsets.UTF_8 ),
+				embargoPlainHead( t ).getBytes( StandardCharsets.UTF_8 ),
+				embargoPlainTail( ts ).getBytes( StandardCharsets.UTF_8 ),
+				EMBARGO_TAIL.getBytes( StandardCharsets.UTF_8 ), BufferPool.shared(), bodyMax, ( ok, length ) -> {
+					streamedBytes.add( length );
+					if ( ok ) {
+						embargoTime.recordSince( start );
+					} else {
+						errors.inc();
+					}
+				} );
+			return;
 
 		} catch ( GeneralSecurityException e ) {
 			e.printStackTrace();
 		}
 
-		return embargoKeyError;
+		errors.inc();
+		response.getWriter().append( embargoKeyError );
+	}
+
+	/**
+	 * Keys for each of ts, as a JSON array in the same order; a t that isn't (yet) past is an error in its slot.
+	 */
+	private final CharSequence getPastKeysJSON ( String[] ts, int v ) {
+		final StringBuilder sb = new StringBuilder( "[" );
+		final long now = System.currentTimeMillis();
+		for ( int i = 0; i < ts.length; i++ ) {
+			if ( i > 0 ) {
+				sb.append( ',' );
+			}
+			String t;
+			try {
+				t = bucket( ts[ i ] );
+			} catch ( NumberFormatException nfe ) {
+				// Never past
+				t = "";
+			}
+			if ( isPast( t, now ) ) {
+				sb.append( getPastKeyJSON( t, v ) );
+			} else {
+				errors.inc();
+				sb.append( signedTimestampError );
+			}
+		}
+		batchItems.add( ts.length );
+		return sb.append( ']' );
+	}
+
+	/**
+	 * @return t rounded up to the end of its bucket (never earlier, so nothing is released before it was asked to be);
+	 *         t itself if not bucketing or it isn't a number
+	 * @throws NumberFormatException if the end of t's bucket is past the largest t there can be
+	 */
+	private final String bucket ( String t ) {
+		if ( embargoBucket <= 0 ) {
+			return t;
+		}
+		final long l;
+		try {
+			l = Long.parseLong( t );
+		} catch ( NumberFormatException nfe ) {
+			return t;
+		}
+		if ( l < 0 ) {
+			return t;
+		}
+		final long rem = l % embargoBucket;
+		try {
+			return rem == 0 ? t : Long.toString( Math.addExact( l - rem, embargoBucket ) );
+		} catch ( ArithmeticException ae ) {
+			// Wrapping round to a negative t would make it past already
+			throw new NumberFormatException( "No bucket for " + t );
+		}
+	}
+
+	private static final boolean isPast ( String t, long now ) {
+		try {
+			return t.length() >= 13 && Long.parseLong( t ) < now;
+		} catch ( NumberFormatException nfe ) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return {"t":..,"v":..,"k":".."}, what subscribers get pushed at t
+	 */
+	private final String getReleaseJSON ( String t, int v ) throws GeneralSecurityException {
+		return String.format( "{\"t\":%1$s,\"v\":%2$s,\"k\":\"%3$s\"}", t, v,
+			EncodeToB64( getKeyForTime( t, v ).getEncoded() ) );
+	}
+
+	/**
+	 * @param sender who's asking, charged for every subscription until it's released
+	 * @return {"t":..,"v":..,"s":n}, n of them subscribed, or an error if t's no good (or already past) or too many
+	 *         are waiting
+	 */
+	private final CharSequence subscribe ( String t, int v, String[] to, String sender ) {
+		final KeyRelease r = release;
+		if ( r == null ) {
+			errors.inc();
+			return signedTimestampError;
+		}
+		try {
+			final long at = Long.parseLong( t );
+			if ( at <= System.currentTimeMillis() ) {
+				// Past keys are there for the asking; nothing to wait for
+				errors.inc();
+				return signedTimestampError;
+			}
+			int n = 0;
+			for ( String id : to ) {
+				if ( id != null && id.length() > 0 ) {
+					if ( !r.subscribe( t, at, v, id, sender ) ) {
+						logger.warn( "Too many waiting for keys; {} of {} subscribed to {} for {}", n, to.length, t,
+							sender );
+						break;
+					}
+					n++;
+				}
+			}
+			if ( n > 0 ) {
+				return String.format( "{\"t\":%1$s,\"v\":%2$s,\"s\":%3$s}", t, v, n );
+			}
+		} catch ( NumberFormatException nfe ) {
+			;
+		}
+		errors.inc();
+		return signedTimestampError;
+	}
+
+	/**
+	 * @return the KeyDerivation version asked for with "v"; 1 if none (embargoes from before there was a "v")
+	 * @throws IllegalArgumentException if "v" isn't a version there are keys for
+	 */
+	private final int getVersion ( HttpServletRequest request ) {
+		final String vParm = request.getParameter( "v" );
+		final int v = vParm == null ? 1 : Integer.parseInt( vParm );
+		if ( v < 0 || v >= keyCaches.length || keyCaches[ v ] == null ) {
+			throw new IllegalArgumentException( "No key derivation v" + vParm );
+		}
+		return v;
+	}
+
+	/**
+	 * A batch is asked for with "b", or by giving more than one value; it's answered with an array either way.
+	 */
+	private final boolean isBatch ( HttpServletRequest request, String[] values ) {
+		return values != null && ( values.length > 1 || request.getParameter( "b" ) != null );
 	}
 
 	public void init ( ServletConfig config ) throws ServletException {
@@ -348,16 +895,82 @@ public class TimeBasedEncrypter extends HttpServlet {
 
 		loadConfig();
 
+		if ( keyPair != null && signingKeyPair != null ) {
+			try {
+				engines = new CryptoEngines( signingKeyPair, signingAlgo, keyPair, embargoKeyTransformation );
+				derivations[ 1 ] = new KeyDerivation.Rsa( engines );
+
+				pubKeyExport = EncodeToB64( signingKeyPair.getPublic().getEncoded() );
+				keyId = keyIdOf( signingKeyPair.getPublic() );
+				logger.info( "Signing with {} key {}", signingAlgo, keyId );
+			} catch ( GeneralSecurityException e ) {
+				logger.error( "FATAL: cannot sign or derive with our keys: {}", e.toString() );
+			}
+		}
+
+		if ( keyMaster != null ) {
+			try {
+				derivations[ 2 ] = new KeyDerivation.Hkdf( keyMaster );
+			} catch ( GeneralSecurityException e ) {
+				logger.error( "Cannot derive v2 keys: {}", e.toString() );
+			}
+		}
+
+		for ( int v = 0; v < derivations.length; v++ ) {
+			final KeyDerivation derivation = derivations[ v ];
+			if ( derivation != null ) {
+				// v1's metrics keep their old names
+				keyCaches[ v ] = new TimeKeyCache( t -> generateKeyForTime( derivation, t ), keyCacheSize, keyCacheAge,
+					v == 1 ? "tbe_key_cache" : "tbe_key_cache_v" + v );
+			}
+		}
+
+		if ( keyDerivation < 0 || keyDerivation >= derivations.length || derivations[ keyDerivation ] == null ) {
+			logger.error( "No key derivation v{}; embargoes will fail", keyDerivation );
+		} else {
+			logger.info( "Embargoing with {}", derivations[ keyDerivation ] );
+		}
+
 		if ( keyPair == null ) {
 			logger.error( "FATAL: could not load or generate keys!" );
 		} else {
 			logger.info( "TBE initialized {}", getSignedTimestampJSON( TS_MODE_OTHER ) );
 		}
+
+		if ( engines != null ) {
+			wheel = new TimingWheel( "tbe-wheel", releaseTick, 512 ).start();
+			// Sent as the server: one release to a crowd mustn't run into a per-sender rate
+			release = new KeyRelease( wheel, this::getReleaseJSON,
+				( to, message ) -> Comms.sendInternal( "TBE", to, message ), releaseMax, releasePerSender );
+		}
+
+		if ( tickerMillis > 0 && wheel != null ) {
+			wheel.schedule( this::tick, tickerMillis );
+			logger.info( "Pre-signing query timestamps every {} ms", tickerMillis );
+		}
 	}
 
 	@Override
 	public void destroy () {
 
+		if ( release != null ) {
+			logger.info( "{}", release );
+			release.stop();
+		}
+
+		final TimingWheel w = wheel;
+		wheel = null;
+		if ( w != null ) {
+			w.stop();
+		}
+
+		for ( TimeKeyCache cache : keyCaches ) {
+			if ( cache != null ) {
+				logger.info( "{}", cache );
+				cache.clear();
+			}
+		}
+
 		saveConfig();
 
 		super.destroy();
@@ -366,20 +979,47 @@ public class TimeBasedEncrypter extends HttpServlet {
 	protected void doGet ( HttpServletRequest request, HttpServletResponse response )
 		throws ServletException, IOException {
 
+		// GET k -> the signing key, once, rather than in every signed timestamp
+		if ( request.getParameter( "k" ) != null ) {
+			response.getWriter().append( getSigningKeyJSON() );
+			return;
+		}
+
 		// GET nothing -> SignedTimeStamp
 		final String tParm = request.getParameter( "t" );
 
 		if ( tParm == null ) {
-			response.getWriter().append( getSignedTimestampJSON( TS_MODE_QUERY ) );
+			response.getWriter().append( getQueryTimestampJSON() );
 			return;
 		}
 
-		// GET t & t is in past -> Return key-for-t
-		if ( tParm.length() >= 13 ) {
+		// GET t & "v" that there are no keys for -> Return error
+		final int v;
+		try {
+			v = getVersion( request );
+		} catch ( IllegalArgumentException iae ) {
+			logger.warn( "Key asked for with {}", iae.getMessage() );
+			errors.inc();
+			response.getWriter().append( embargoKeyError );
+			return;
+		}
+
+		// GET many t (or "b") -> Return [key-for-t or error, ...]
+		final String[] tParms = request.getParameterValues( "t" );
+		if ( isBatch( request, tParms ) ) {
+			if ( tParms.length <= batchMax ) {
+				response.getWriter().append( getPastKeysJSON( tParms, v ) );
+				return;
+			}
+			logger.warn( "Batch of {} keys is over {}", tParms.length, batchMax );
+
+		} else if ( tParm.length() >= 13 ) {
+			// GET t & t('s bucket) is in past -> Return key-for-t
 			try {
 
-				if ( Long.parseLong( tParm ) < System.currentTimeMillis() ) {
-					response.getWriter().append( getPastKeyJSON( tParm ) );
+				final String tKey = bucket( tParm );
+				if ( Long.parseLong( tKey ) < System.currentTimeMillis() ) {
+					response.getWriter().append( getPastKeyJSON( tKey, v ) );
 					return;
 				}
 
@@ -389,6 +1029,7 @@ public class TimeBasedEncrypter extends HttpServlet {
 		}
 
 		// * -> Return error
+		errors.inc();
 		response.getWriter().append( signedTimestampError );
 
 	}
@@ -398,13 +1039,45 @@ public class TimeBasedEncrypter extends HttpServlet {
 
 		final String tParm = request.getParameter( "t" );
 
+		// POST t & "s" (Comms ids) -> each gets the key for t pushed once t's past
+		final String[] sParms = request.getParameterValues( "s" );
+		if ( sParms != null && tParm != null && tParm.length() >= 13 ) {
+			try {
+				response.getWriter().append(
+					subscribe( bucket( tParm ), getVersion( request ), sParms, request.getRemoteAddr() ) );
+			} catch ( IllegalArgumentException iae ) {
+				logger.warn( "Subscribed with {}", iae.getMessage() );
+				errors.inc();
+				response.getWriter().append( signedTimestampError );
+			}
+			return;
+		}
+
 		// POST t & t is in future -> embargo "o" (which could be null)
 		if ( tParm != null && tParm.length() >= 13 ) {
 			try {
 
 				if ( Long.parseLong( tParm ) >= System.currentTimeMillis() ) {
-					response.getWriter().append( getEmbargoJSON( tParm, request.getParameter( "o" ) ) );
-					return;
+					// Embargoed until the end of t's bucket (t itself if not bucketing)
+					final String tKey = bucket( tParm );
+					if ( BodyReader.isRaw( request ) ) {
+						// t on the query string, "o" is the body (escaped into a string, or Base64 if binary),
+						// encrypted as it's read
+						streamEmbargo( request, response, tKey );
+						return;
+					}
+					// POST t, many "o" (or "b") -> [embargo or error, ...]
+					final String[] oParms = request.getParameterValues( "o" );
+					if ( isBatch( request, oParms ) ) {
+						if ( oParms.length <= batchMax ) {
+							response.getWriter().append( getEmbargoBatchJSON( tKey, oParms ) );
+							return;
+						}
+						logger.warn( "Batch of {} objects is over {}", oParms.length, batchMax );
+					} else {
+						response.getWriter().append( getEmbargoJSON( tKey, request.getParameter( "o" ) ) );
+						return;
+					}
 				}
 			} catch ( NumberFormatException nfe ) {
 				;
@@ -413,6 +1086,7 @@ public class TimeBasedEncrypter extends HttpServlet {
 		}
 
 		// * -> Return error
+		errors.inc();
 		response.getWriter().append( signedTimestampError );
 
 	}
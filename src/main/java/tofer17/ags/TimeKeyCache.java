@@ -0,0 +1,195 @@
+package tofer17.ags;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keys derived for a t, kept in memory because deriving one costs a private key operation. Bounded by size and age;
+ * when over size, the keys whose release time is furthest from now (long past, or far off) go first so the ones about
+ * to be asked for by everyone at once stay. Lookups of the same t share one derivation: a hot t is never derived more
+ * than once at a time.
+ *
+ * @author cmetyko
+ *
+ */
+public final class TimeKeyCache {
+
+	/**
+	 * Derives the key for t (the expensive part).
+	 */
+	public interface Loader {
+		Key load ( String t ) throws GeneralSecurityException;
+	}
+
+	private static final class Entry {
+
+		public final CompletableFuture<Key> key = new CompletableFuture<Key>();
+
+		// Release time, for eviction order; Long.MAX_VALUE if t doesn't parse
+		public final long t;
+
+		public final long created;
+
+		public Entry ( long t, long created ) {
+			this.t = t;
+			this.created = created;
+		}
+	}
+
+	private final Map<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+
+	private final Loader loader;
+
+	private final int maxSize;
+
+	private final long maxAge;
+
+	private final AtomicBoolean evicting = new AtomicBoolean( false );
+
+	private final Metrics.Counter hits;
+
+	private final Metrics.Counter misses;
+
+	private final Metrics.Counter evictions;
+
+	/**
+	 * @param maxSize entries kept (it trims back to 90% once over)
+	 * @param maxAge ms an entry is kept after being derived
+	 * @param metrics name prefix for the hit/miss/eviction counters and size gauge, e.g. "tbe_key_cache"
+	 */
+	public TimeKeyCache ( Loader loader, int maxSize, long maxAge, String metrics ) {
+		if ( maxSize < 1 || maxAge < 1 ) {
+			throw new IllegalArgumentException( "maxSize " + maxSize + " maxAge " + maxAge );
+		}
+		this.loader = loader;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		this.hits = Metrics.counter( metrics + "_hits_total", "Keys found in the cache (or being derived)" );
+		this.misses = Metrics.counter( metrics + "_misses_total", "Keys derived" );
+		this.evictions = Metrics.counter( metrics + "_evictions_total", "Keys dropped for size or age" );
+		Metrics.gauge( metrics + "_size", "Keys cached", entries::size );
+	}
+
+	/**
+	 * @return the key for t, derived (once) if it isn't cached.
+	 */
+	public Key get ( String t ) throws GeneralSecurityException {
+		final long now = System.currentTimeMillis();
+
+		Entry e = entries.get( t );
+		if ( e != null && now - e.created < maxAge ) {
+			hits.inc();
+			return await( e );
+		}
+
+		final Entry fresh = new Entry( parse( t ), now );
+		e = entries.compute( t, ( k, old ) -> old != null && now - old.created < maxAge ? old : fresh );
+		if ( e != fresh ) {
+			// Somebody else got there first
+			hits.inc();
+			return await( e );
+		}
+
+		misses.inc();
+		try {
+			fresh.key.complete( loader.load( t ) );
+		} catch ( GeneralSecurityException | RuntimeException ex ) {
+			// Don't cache failures; whoever was waiting gets the same exception
+			entries.remove( t, fresh );
+			fresh.key.completeExceptionally( ex );
+			throw ex;
+		}
+
+		if ( entries.size() > maxSize ) {
+			evict( now );
+		}
+		return fresh.key.getNow( null );
+	}
+
+	private static Key await ( Entry e ) throws GeneralSecurityException {
+		try {
+			return e.key.get();
+		} catch ( InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+			throw new GeneralSecurityException( "Interrupted waiting for key", ie );
+		} catch ( ExecutionException ee ) {
+			final Throwable cause = ee.getCause();
+			if ( cause instanceof GeneralSecurityException ) {
+				throw (GeneralSecurityException) cause;
+			} else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			throw new GeneralSecurityException( cause );
+		}
+	}
+
+	private static long parse ( String t ) {
+		try {
+			return Long.parseLong( t );
+		} catch ( NumberFormatException nfe ) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Drops whatever aged out, then (if still over) the entries furthest in time from now down to 90% of maxSize. One
+	 * thread at a time; the others carry on (briefly over size).
+	 */
+	void evict ( long now ) {
+		if ( !evicting.compareAndSet( false, true ) ) {
+			return;
+		}
+		try {
+			final List<Map.Entry<String,Entry>> live = new ArrayList<Map.Entry<String,Entry>>( entries.size() );
+			for ( Map.Entry<String,Entry> me : entries.entrySet() ) {
+				final Entry e = me.getValue();
+				if ( now - e.created >= maxAge ) {
+					if ( entries.remove( me.getKey(), e ) ) {
+						evictions.inc();
+					}
+				} else if ( e.key.isDone() ) {
+					live.add( me );
+				}
+			}
+
+			final int excess = entries.size() - maxSize * 9 / 10;
+			if ( excess > 0 ) {
+				live.sort(
+					( a, b ) -> Long.compare( distance( b.getValue().t, now ), distance( a.getValue().t, now ) ) );
+				for ( int i = 0; i < excess && i < live.size(); i++ ) {
+					if ( entries.remove( live.get( i ).getKey(), live.get( i ).getValue() ) ) {
+						evictions.inc();
+					}
+				}
+			}
+		} finally {
+			evicting.set( false );
+		}
+	}
+
+	private static long distance ( long t, long now ) {
+		return t == Long.MAX_VALUE ? Long.MAX_VALUE : Math.abs( t - now );
+	}
+
+	public int size () {
+		return entries.size();
+	}
+
+	public void clear () {
+		entries.clear();
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "TimeKeyCache %s/%s keys, %s hits, %s misses, %s evicted", entries.size(), maxSize,
+			hits.get(), misses.get(), evictions.get() );
+	}
+
+}
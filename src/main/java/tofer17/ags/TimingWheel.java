@@ -0,0 +1,240 @@
+package tofer17.ags;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel (a la Varghese &amp; Lauck): scheduling and cancelling are O(1) and each tick only looks at
+ * the one bucket whose turn it is. Tasks run on the wheel's own thread so they must be short-- hand anything heavy
+ * off to some other thread.
+ *
+ * @author cmetyko
+ *
+ */
+public final class TimingWheel {
+
+	private static final Logger logger = LoggerFactory.getLogger( TimingWheel.class );
+
+	private final String name;
+
+	private final long tickNanos;
+
+	private final int mask;
+
+	private final Bucket[] wheel;
+
+	private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile long startNanos = 0L;
+
+	private Thread worker = null;
+
+	private volatile boolean running = false;
+
+	public TimingWheel ( String name, long tickMillis, int wheelSize ) {
+		if ( tickMillis < 1 ) {
+			throw new IllegalArgumentException( "tickMillis must be positive: " + tickMillis );
+		}
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos( tickMillis );
+
+		// Round up to a power of two so the bucket index is just a mask
+		int size = 1;
+		while ( size < wheelSize ) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.wheel = new Bucket[ size ];
+		for ( int i = 0; i < size; i++ ) {
+			wheel[ i ] = new Bucket();
+		}
+	}
+
+	public synchronized TimingWheel start () {
+		if ( worker == null ) {
+			startNanos = System.nanoTime();
+			running = true;
+			worker = new Thread( this::run, name );
+			worker.setDaemon( true );
+			worker.start();
+		}
+		return this;
+	}
+
+	public synchronized void stop () {
+		running = false;
+		if ( worker != null ) {
+			worker.interrupt();
+			try {
+				worker.join( 1000 );
+			} catch ( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+			}
+			worker = null;
+		}
+	}
+
+	/**
+	 * Runs task (on the wheel thread) no sooner than delayMillis from now, give or take a tick.
+	 */
+	public Timeout schedule ( Runnable task, long delayMillis ) {
+		if ( startNanos == 0L ) {
+			throw new IllegalStateException( name + " has not been started" );
+		}
+		final long deadline = System.nanoTime() - startNanos
+			+ TimeUnit.MILLISECONDS.toNanos( Math.max( 0, delayMillis ) );
+		final Timeout timeout = new Timeout( task, deadline );
+		pending.incrementAndGet();
+		incoming.add( timeout );
+		return timeout;
+	}
+
+	/**
+	 * How many timeouts are scheduled and not yet expired or cancelled.
+	 */
+	public int size () {
+		return pending.get();
+	}
+
+	private void run () {
+		long tick = 0L;
+		while ( running ) {
+			final long deadline = tickNanos * ( tick + 1 );
+			long sleepNanos = deadline - ( System.nanoTime() - startNanos );
+			try {
+				while ( sleepNanos > 0 ) {
+					TimeUnit.NANOSECONDS.sleep( sleepNanos );
+					sleepNanos = deadline - ( System.nanoTime() - startNanos );
+				}
+			} catch ( InterruptedException iex ) {
+				if ( !running ) {
+					break;
+				}
+			}
+
+			transfer( tick );
+			wheel[ (int) ( tick & mask ) ].expire();
+			tick++;
+		}
+	}
+
+	private void transfer ( long tick ) {
+		// Cap the per-tick work so a flood of schedules can't starve expiry
+		for ( int i = 0; i < 100000; i++ ) {
+			final Timeout timeout = incoming.poll();
+			if ( timeout == null ) {
+				return;
+			}
+			if ( timeout.state != Timeout.ST_INIT ) {
+				continue;
+			}
+			final long calculated = timeout.deadline / tickNanos;
+			timeout.rounds = ( calculated - tick ) / wheel.length;
+			// Anything already overdue lands in the current bucket
+			final long target = Math.max( calculated, tick );
+			wheel[ (int) ( target & mask ) ].add( timeout );
+		}
+	}
+
+	@Override
+	public String toString () {
+		return String.format( "%s (%s pending)", name, pending.get() );
+	}
+
+	/**
+	 * Handle returned from {@link TimingWheel#schedule(Runnable, long)}.
+	 */
+	public final class Timeout {
+
+		private static final int ST_INIT = 0;
+
+		private static final int ST_CANCELLED = 1;
+
+		private static final int ST_EXPIRED = 2;
+
+		private final Runnable task;
+
+		private final long deadline;
+
+		private long rounds = 0L;
+
+		private volatile int state = ST_INIT;
+
+		private Timeout ( Runnable task, long deadline ) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return true if this call cancelled the task, false if it already ran or was cancelled.
+		 */
+		public boolean cancel () {
+			synchronized ( this ) {
+				if ( state != ST_INIT ) {
+					return false;
+				}
+				state = ST_CANCELLED;
+			}
+			pending.decrementAndGet();
+			return true;
+		}
+
+		public boolean isCancelled () {
+			return state == ST_CANCELLED;
+		}
+
+		public boolean isExpired () {
+			return state == ST_EXPIRED;
+		}
+
+		private void expire () {
+			synchronized ( this ) {
+				if ( state != ST_INIT ) {
+					return;
+				}
+				state = ST_EXPIRED;
+			}
+			pending.decrementAndGet();
+			try {
+				task.run();
+			} catch ( RuntimeException rex ) {
+				logger.warn( "{} task failed: {}", name, rex.toString() );
+			}
+		}
+	}
+
+	// Only ever touched from the wheel thread
+	private static final class Bucket {
+
+		private final ArrayDeque<Timeout> timeouts = new ArrayDeque<Timeout>();
+
+		void add ( Timeout timeout ) {
+			timeouts.add( timeout );
+		}
+
+		void expire () {
+			final Iterator<Timeout> it = timeouts.iterator();
+			while ( it.hasNext() ) {
+				final Timeout timeout = it.next();
+				if ( timeout.state != Timeout.ST_INIT ) {
+					it.remove();
+				} else if ( timeout.rounds <= 0 ) {
+					it.remove();
+					timeout.expire();
+				} else {
+					timeout.rounds--;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package tofer17.ags;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic token bucket: holds up to burst tokens and refills at rate tokens per second. Refilling is done lazily on
+ * each call so an idle bucket costs nothing.
+ *
+ * @author cmetyko
+ *
+ */
+public final class TokenBucket {
+
+	private final double rate;
+
+	private final double burst;
+
+	private double tokens;
+
+	private long lastNanos;
+
+	/**
+	 * @param rate tokens added per second
+	 * @param burst most tokens it can hold (and what it starts with)
+	 */
+	public TokenBucket ( double rate, double burst ) {
+		if ( rate <= 0 || burst < 1 ) {
+			throw new IllegalArgumentException( "rate must be positive and burst at least 1: " + rate + "/" + burst );
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastNanos = System.nanoTime();
+	}
+
+	private void refill ( long now ) {
+		tokens = Math.min( burst, tokens + ( now - lastNanos ) * rate / TimeUnit.SECONDS.toNanos( 1 ) );
+		lastNanos = now;
+	}
+
+	/**
+	 * Takes n tokens if they're there (more than burst is treated as burst; a full bucket is as good as it gets).
+	 *
+	 * @return 0 if taken, otherwise roughly how many milliseconds until they would be.
+	 */
+	public synchronized long tryAcquire ( int n ) {
+		refill( System.nanoTime() );
+		final double needed = Math.min( n, burst );
+		if ( tokens >= needed ) {
+			tokens -= needed;
+			return 0L;
+		}
+		return Math.max( 1, (long) Math.ceil( ( needed - tokens ) * 1000 / rate ) );
+	}
+
+	/**
+	 * @return true once refilled to the brim, i.e. nobody has drawn on it lately.
+	 */
+	public synchronized boolean isFull () {
+		refill( System.nanoTime() );
+		return tokens >= burst;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return String.format( "%.1f/%.0f tokens at %.1f/s", tokens, burst, rate );
+	}
+
+}
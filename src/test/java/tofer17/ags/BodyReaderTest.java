@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+class BodyReaderTest {
+
+	/**
+	 * A body that arrives as the test says, the way a container would hand it to a ReadListener.
+	 */
+	private static final class Upload extends ServletInputStream {
+
+		private final byte[] data;
+
+		private int arrived = 0;
+
+		private int pos = 0;
+
+		public ReadListener listener = null;
+
+		public Upload ( byte[] data ) {
+			this.data = data;
+		}
+
+		/**
+		 * n more bytes come in; the listener reads what it can.
+		 */
+		public void arrive ( int n ) throws IOException {
+			arrived = Math.min( data.length, arrived + n );
+			listener.onDataAvailable();
+			if ( arrived == data.length && pos == data.length ) {
+				listener.onAllDataRead();
+			}
+		}
+
+		@Override
+		public boolean isFinished () {
+			return pos == data.length;
+		}
+
+		@Override
+		public boolean isReady () {
+			return pos < arrived;
+		}
+
+		@Override
+		public void setReadListener ( ReadListener listener ) {
+			this.listener = listener;
+		}
+
+		@Override
+		public int read () {
+			return pos < arrived ? data[ pos++ ] & 0xff : -1;
+		}
+
+		@Override
+		public int read ( byte[] b, int off, int len ) {
+			final int n = Math.min( len, arrived - pos );
+			System.arraycopy( data, pos, b, off, n );
+			pos += n;
+			return n;
+		}
+	}
+
+	/**
+	 * The request (and its response and async context), as far as BodyReader looks at them.
+	 */
+	private static final class Exchange {
+
+		public final Upload in;
+
+		public final AtomicInteger status = new AtomicInteger( 200 );
+
+		public final AtomicInteger completed = new AtomicInteger();
+
+		public volatile boolean async = false;
+
+		public final HttpServletRequest request;
+
+		public final HttpServletResponse response;
+
+		public Exchange ( String contentType, long contentLength, byte[] body ) {
+			in = new Upload( body );
+			response = (HttpServletResponse) Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, ( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "sendError":
+						status.set( (Integer) args[ 0 ] );
+						return null;
+					case "isCommitted":
+						return false;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+			final AtomicReference<HttpServletRequest> self = new AtomicReference<HttpServletRequest>();
+			final AsyncContext ac = (AsyncContext) Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class<?>[] { AsyncContext.class }, ( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "setTimeout":
+						return null;
+					case "getRequest":
+						return self.get();
+					case "getResponse":
+						return response;
+					case "complete":
+						completed.incrementAndGet();
+						return null;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+			request = (HttpServletRequest) Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, ( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "getContentType":
+						return contentType;
+					case "getContentLengthLong":
+						return contentLength;
+					case "startAsync":
+						async = true;
+						return ac;
+					case "getInputStream":
+						return in;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+			self.set( request );
+		}
+	}
+
+	private static byte[] body ( int length ) {
+		final byte[] b = new byte[ length ];
+		for ( int i = 0; i < length; i++ ) {
+			b[ i ] = (byte) ( 'a' + i % 26 );
+		}
+		return b;
+	}
+
+	@Test
+	void testContentTypes () {
+		assertTrue( BodyReader.isRaw( new Exchange( "application/json", -1, new byte[ 0 ] ).request ) );
+		assertTrue( BodyReader.isRaw( new Exchange( "application/json; charset=UTF-8", -1, new byte[ 0 ] ).request ) );
+		assertFalse( BodyReader.isBinary( new Exchange( "application/json", -1, new byte[ 0 ] ).request ) );
+
+		final HttpServletRequest binary = new Exchange( "application/octet-stream", -1, new byte[ 0 ] ).request;
+		assertTrue( BodyReader.isRaw( binary ) );
+		assertTrue( BodyReader.isBinary( binary ) );
+
+		assertFalse( BodyReader.isRaw(
+			new Exchange( "application/x-www-form-urlencoded", -1, new byte[ 0 ] ).request ) );
+		assertFalse( BodyReader.isRaw( new Exchange( null, -1, new byte[ 0 ] ).request ) );
+	}
+
+	@Test
+	void testReadInPieces () throws Exception {
+		// Bigger than the first buffer and with no length given, so it has to grow
+		final byte[] sent = body( 50000 );
+		final Exchange x = new Exchange( "application/json", -1, sent );
+		final BufferPool pool = new BufferPool( 1 << 20, 4 );
+		final AtomicReference<String> got = new AtomicReference<String>();
+
+		BodyReader.read( x.request, x.response, pool, 64 * 1024,
+			( req, resp, body, length ) -> got.set( BodyReader.toText( req, body, length ) ) );
+		assertTrue( x.async );
+		for ( int i = 777; i < sent.length; i += 777 ) {
+			x.in.arrive( 777 );
+			assertNull( got.get() );
+		}
+		x.in.arrive( 777 );
+
+		assertEquals( new String( sent, StandardCharsets.UTF_8 ), got.get() );
+		assertEquals( 200, x.status.get() );
+		assertEquals( 1, x.completed.get() );
+		// Every buffer it took went back
+		assertTrue( pool.idle() > 0 );
+	}
+
+	@Test
+	void testBinaryAsBase64 () throws Exception {
+		final Exchange x = new Exchange( "application/octet-stream", 3, new byte[] { 0, (byte) 0xff, 7 } );
+		final AtomicReference<String> got = new AtomicReference<String>();
+		BodyReader.read( x.request, x.response, BufferPool.shared(), 1024,
+			( req, resp, body, length ) -> got.set( BodyReader.toText( req, body, length ) ) );
+		x.in.arrive( 3 );
+		assertEquals( "AP8H", got.get() );
+	}
+
+	@Test
+	void testTooBigSaysSo () throws Exception {
+		final Exchange x = new Exchange( "application/json", 5000, body( 5000 ) );
+		BodyReader.read( x.request, x.response, BufferPool.shared(), 1024, ( req, resp, body, length ) -> {
+			fail( "Read it anyway" );
+		} );
+		assertEquals( 413, x.status.get() );
+		assertFalse( x.async );
+	}
+
+	@Test
+	void testTooBigUnannounced () throws Exception {
+		final Exchange x = new Exchange( "application/json", -1, body( 5000 ) );
+		BodyReader.read( x.request, x.response, BufferPool.shared(), 1024, ( req, resp, body, length ) -> {
+			fail( "Read it anyway" );
+		} );
+		x.in.arrive( 1000 );
+		assertEquals( 200, x.status.get() );
+		x.in.arrive( 4000 );
+		assertEquals( 413, x.status.get() );
+		assertEquals( 1, x.completed.get() );
+	}
+
+	@Test
+	void testError () throws Exception {
+		final Exchange x = new Exchange( "application/json", 100, body( 100 ) );
+		BodyReader.read( x.request, x.response, BufferPool.shared(), 1024, ( req, resp, body, length ) -> {
+			fail( "Half a body" );
+		} );
+		x.in.arrive( 50 );
+		x.in.listener.onError( new IOException( "reset" ) );
+		assertEquals( 400, x.status.get() );
+		assertEquals( 1, x.completed.get() );
+		// Anything after is ignored
+		x.in.arrive( 50 );
+		assertEquals( 1, x.completed.get() );
+	}
+
+}
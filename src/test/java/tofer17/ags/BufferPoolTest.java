@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+	@Test
+	void testSizeClasses () {
+		final BufferPool pool = new BufferPool( 64 * 1024, 4 );
+		assertEquals( 1024, pool.acquire( 1 ).length );
+		assertEquals( 1024, pool.acquire( 1024 ).length );
+		assertEquals( 2048, pool.acquire( 1025 ).length );
+		assertEquals( 64 * 1024, pool.acquire( 40000 ).length );
+		// Past the biggest class: exactly what was asked for
+		assertEquals( 64 * 1024 + 1, pool.acquire( 64 * 1024 + 1 ).length );
+	}
+
+	@Test
+	void testReuse () {
+		final BufferPool pool = new BufferPool( 64 * 1024, 4 );
+		final byte[] a = pool.acquire( 5000 );
+		pool.release( a );
+		assertEquals( 1, pool.idle() );
+		assertSame( a, pool.acquire( 7000 ) );
+		assertEquals( 0, pool.idle() );
+		// Different class
+		pool.release( a );
+		assertNotSame( a, pool.acquire( 9000 ) );
+	}
+
+	@Test
+	void testIdleCap () {
+		final BufferPool pool = new BufferPool( 64 * 1024, 2 );
+		for ( int i = 0; i < 5; i++ ) {
+			pool.release( new byte[ 4096 ] );
+		}
+		assertEquals( 2, pool.idle() );
+		// Not ours to keep
+		pool.release( new byte[ 3000 ] );
+		pool.release( new byte[ 128 * 1024 ] );
+		pool.release( null );
+		assertEquals( 2, pool.idle() );
+	}
+
+	@Test
+	void testOutputGrows () {
+		final BufferPool pool = new BufferPool( 64 * 1024, 4 );
+		final BufferPool.Output out = new BufferPool.Output( pool );
+		assertNull( out.take() );
+		for ( int i = 0; i < 3000; i++ ) {
+			out.write( i );
+		}
+		// The 1K and 2K arrays it outgrew went back
+		assertEquals( 2, pool.idle() );
+		assertEquals( 3000, out.size() );
+		final byte[] taken = out.take();
+		assertEquals( 4096, taken.length );
+		for ( int i = 0; i < 3000; i++ ) {
+			assertEquals( (byte) i, taken[ i ] );
+		}
+		assertEquals( 0, out.size() );
+		// Starts afresh from the pool
+		out.write( new byte[ 1500 ], 0, 1500 );
+		assertEquals( 1, pool.idle() );
+		assertNotSame( taken, out.take() );
+	}
+
+	@Test
+	void testBadArgs () {
+		assertThrows( IllegalArgumentException.class, () -> new BufferPool( 0, 1 ) );
+		assertThrows( IllegalArgumentException.class, () -> new BufferPool( 1024, -1 ) );
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ClusterLinkTest {
+
+	@SuppressWarnings ( "unused" )
+	private static final Logger logger = LoggerFactory.getLogger( ClusterLinkTest.class );
+
+	// Records whatever the link hands it
+	private static final class Recorder implements ClusterLink.Handler {
+
+		public final List<ClusterLink.Post> posts = new CopyOnWriteArrayList<ClusterLink.Post>();
+
+		public final List<String> members = new CopyOnWriteArrayList<String>();
+
+		public volatile Set<String> nodes = Collections.emptySet();
+
+		@Override
+		public void onPost ( ClusterLink.Post post ) {
+			posts.add( post );
+		}
+
+		@Override
+		public void onMember ( String room, String id, boolean joined ) {
+			members.add( ( joined ? "+" : "-" ) + id + "@" + room );
+		}
+
+		@Override
+		public void onMembership ( Set<String> nodes ) {
+			this.nodes = nodes;
+		}
+	}
+
+	private final Map<String,InetSocketAddress> nodes = new LinkedHashMap<String,InetSocketAddress>();
+
+	private final List<ClusterLink> links = new ArrayList<ClusterLink>();
+
+	@BeforeEach
+	void setUp () throws Exception {
+		nodes.put( "a", freePort() );
+		nodes.put( "b", freePort() );
+	}
+
+	@AfterEach
+	void tearDown () throws Exception {
+		for ( ClusterLink link : links ) {
+			link.close();
+		}
+	}
+
+	private static InetSocketAddress freePort () throws IOException {
+		try ( ServerSocket probe = new ServerSocket( 0 ) ) {
+			return new InetSocketAddress( InetAddress.getLoopbackAddress(), probe.getLocalPort() );
+		}
+	}
+
+	private ClusterLink start ( String self, Recorder recorder ) throws IOException {
+		final ClusterLink link = new ClusterLink( self, nodes, recorder, 50, 64 ).start();
+		links.add( link );
+		return link;
+	}
+
+	private static void await ( String what, BooleanSupplier condition ) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ( !condition.getAsBoolean() ) {
+			assertTrue( System.currentTimeMillis() < deadline, "Timed out waiting for " + what );
+			Thread.sleep( 10 );
+		}
+	}
+
+	/**
+	 * Odd ones are handed off with their sequence numbers, even ones are yet to get one.
+	 */
+	private static ClusterLink.Post post ( int n ) {
+		final String[] to = { "p" + n };
+		return new ClusterLink.Post( 1792233103308L + n, "a", null, "message " + n, to, to,
+			n % 2 == 1 ? new long[] { 1792233103308000L + n } : null, 0 );
+	}
+
+	@Test
+	void testForwardInOrder () throws Exception {
+		final Recorder ra = new Recorder(), rb = new Recorder();
+		final ClusterLink a = start( "a", ra );
+		final ClusterLink b = start( "b", rb );
+
+		// Each side's view of the ring changes when it hears from the other, not at the same instant
+		await( "a and b to see each other", () -> a.nodes().size() == 2 && b.nodes().size() == 2 );
+		// Both agree on who owns what
+		for ( int i = 0; i < 100; i++ ) {
+			assertEquals( a.owner( "p" + i ), b.owner( "p" + i ) );
+		}
+
+		for ( int i = 0; i < 2000; i++ ) {
+			assertTrue( a.forward( "b", post( i ) ) );
+		}
+		assertTrue( a.forward( "b", "game-1", "p7", true ) );
+
+		await( "everything to arrive", () -> rb.posts.size() == 2000 && rb.members.size() == 1 );
+		for ( int i = 0; i < 2000; i++ ) {
+			final ClusterLink.Post post = rb.posts.get( i );
+			assertEquals( "message " + i, post.message );
+			assertEquals( 1, post.hops );
+			assertNull( post.room );
+			if ( i % 2 == 1 ) {
+				assertArrayEquals( new long[] { 1792233103308000L + i }, post.seqs );
+			} else {
+				assertNull( post.seqs );
+			}
+		}
+		assertEquals( "+p7@game-1", rb.members.get( 0 ) );
+		assertTrue( ra.posts.isEmpty() );
+	}
+
+	@Test
+	void testPeerDownAndBack () throws Exception {
+		final Recorder ra = new Recorder(), rb = new Recorder();
+		final ClusterLink a = start( "a", ra );
+		ClusterLink b = start( "b", rb );
+
+		await( "a to see b", () -> ra.nodes.size() == 2 );
+		b.close();
+		links.remove( b );
+
+		// Noticed on the next ping at the latest
+		await( "a to drop b", () -> ra.nodes.size() == 1 );
+		assertEquals( "a", a.owner( "anybody" ) );
+		assertFalse( a.forward( "b", post( 1 ) ) );
+
+		b = start( "b", rb );
+		await( "a to see b again", () -> ra.nodes.size() == 2 );
+		assertTrue( a.forward( "b", post( 2 ) ) );
+		await( "post to arrive", () -> rb.posts.size() == 1 );
+	}
+
+	@Test
+	void testUnknownSelf () {
+		assertThrows( IllegalArgumentException.class, () -> new ClusterLink( "c", nodes, new Recorder(), 50, 8 ) );
+	}
+
+}
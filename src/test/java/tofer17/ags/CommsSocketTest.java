@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.jupiter.api.Test;
+
+class CommsSocketTest {
+
+	/**
+	 * A client that only takes a frame when told to: sends are recorded along with their handlers.
+	 */
+	private static final class SlowClient {
+
+		public final List<String> sent = new CopyOnWriteArrayList<String>();
+
+		public final List<SendHandler> handlers = new CopyOnWriteArrayList<SendHandler>();
+
+		public volatile boolean closed = false;
+
+		public final Session session;
+
+		public SlowClient () {
+			final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class }, ( proxy, method, args ) -> {
+					if ( "sendText".equals( method.getName() ) && args.length == 2 ) {
+						sent.add( (String) args[ 0 ] );
+						handlers.add( (SendHandler) args[ 1 ] );
+						return null;
+					}
+					throw new UnsupportedOperationException( method.getName() );
+				} );
+			session = (Session) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[] { Session.class },
+				( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "getAsyncRemote":
+						return remote;
+					case "getBasicRemote":
+						throw new AssertionError( "Blocking send" );
+					case "isOpen":
+						return !closed;
+					case "close":
+						closed = true;
+						return null;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+		}
+	}
+
+	private static List<Comms.Envelope> envelopes ( String to, String message ) {
+		final Comms.Envelope e = new Comms.Envelope( to,
+			new Comms.Payload( null, new String[] { to }, "Mr. X", message, 1792233103308L ) );
+		return Collections.singletonList( e );
+	}
+
+	@Test
+	void testOneSendAtATime () throws Exception {
+		final SlowClient client = new SlowClient();
+		final CommsSocket.SocketWaiter waiter = new CommsSocket.SocketWaiter( "a", client.session );
+
+		assertTrue( waiter.isWritable() );
+		waiter.write( envelopes( "a", "one" ) );
+		// Handed off without waiting for the client, which hasn't taken it yet
+		assertEquals( 1, client.sent.size() );
+		assertFalse( waiter.isWritable() );
+
+		waiter.error( 429, 1000 );
+		waiter.write( envelopes( "a", "two" ) );
+		assertEquals( 1, client.sent.size() );
+
+		client.handlers.get( 0 ).onResult( new SendResult() );
+		assertEquals( 2, client.sent.size() );
+		assertEquals( "{\"error\":429,\"retry\":1000}", client.sent.get( 1 ) );
+		assertFalse( waiter.isWritable() );
+
+		client.handlers.get( 1 ).onResult( new SendResult() );
+		assertTrue( client.sent.get( 2 ).contains( "\"m\":\"two\"" ), client.sent.get( 2 ) );
+		client.handlers.get( 2 ).onResult( new SendResult() );
+		assertTrue( waiter.isWritable() );
+		assertFalse( client.closed );
+	}
+
+	@Test
+	void testFailedSendCloses () throws Exception {
+		final SlowClient client = new SlowClient();
+		final CommsSocket.SocketWaiter waiter = new CommsSocket.SocketWaiter( "a", client.session );
+
+		waiter.write( envelopes( "a", "one" ) );
+		waiter.write( envelopes( "a", "two" ) );
+		client.handlers.get( 0 ).onResult( new SendResult( new IOException( "reset" ) ) );
+
+		assertTrue( client.closed );
+		assertEquals( 1, client.sent.size() );
+		assertThrows( IOException.class, () -> waiter.write( envelopes( "a", "three" ) ) );
+	}
+
+}
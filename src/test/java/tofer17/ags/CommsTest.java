@@ -5,6 +5,32 @@ package tofer17.ags;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -26,12 +52,253 @@ class CommsTest {
 	static void tearDownAfterClass () throws Exception {
 	}
 
+	/**
+	 * Init parameters, as web.xml would give them.
+	 */
+	private static final class Config implements ServletConfig {
+
+		private final Map<String,String> params = new HashMap<String,String>();
+
+		public Config ( String... nameValues ) {
+			for ( int i = 0; i + 1 < nameValues.length; i += 2 ) {
+				params.put( nameValues[ i ], nameValues[ i + 1 ] );
+			}
+		}
+
+		@Override
+		public String getServletName () {
+			return "comms";
+		}
+
+		@Override
+		public ServletContext getServletContext () {
+			return null;
+		}
+
+		@Override
+		public String getInitParameter ( String name ) {
+			return params.get( name );
+		}
+
+		@Override
+		public Enumeration<String> getInitParameterNames () {
+			return Collections.enumeration( params.keySet() );
+		}
+	}
+
+	/**
+	 * Stays connected and keeps whatever is written to it.
+	 */
+	private static final class Recorder extends Comms.Waiter {
+
+		public final List<Comms.Envelope> got = new CopyOnWriteArrayList<Comms.Envelope>();
+
+		// Gets them but the write fails anyway, as when the connection drops just after
+		public volatile boolean failing = false;
+
+		public Recorder ( String id ) {
+			super( id );
+		}
+
+		@Override
+		public void write ( List<Comms.Envelope> envelopes ) throws IOException {
+			got.addAll( envelopes );
+			if ( failing ) {
+				throw new IOException( "gone" );
+			}
+		}
+
+		@Override
+		public boolean isOneShot () {
+			return false;
+		}
+
+		@Override
+		public void complete () {
+			;
+		}
+	}
+
+	/**
+	 * A client that keeps up, unless told not to.
+	 */
+	private static final class Output extends ServletOutputStream {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		// False for a client that's stopped reading
+		public volatile boolean ready = true;
+
+		@Override
+		public boolean isReady () {
+			return ready;
+		}
+
+		@Override
+		public void setWriteListener ( WriteListener listener ) {
+			;
+		}
+
+		@Override
+		public synchronized void write ( int b ) {
+			bytes.write( b );
+		}
+
+		@Override
+		public synchronized void write ( byte[] b, int off, int len ) {
+			bytes.write( b, off, len );
+		}
+
+		@Override
+		public synchronized String toString () {
+			return new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+		}
+	}
+
+	/**
+	 * One request to the servlet, as far as Comms looks at it, and what it did with the response.
+	 */
+	private static final class Exchange {
+
+		public final Map<String,String[]> params = new HashMap<String,String[]>();
+
+		public final Map<String,String> headers = new HashMap<String,String>();
+
+		public final Map<String,String> responseHeaders = new ConcurrentHashMap<String,String>();
+
+		public final AtomicInteger status = new AtomicInteger( 200 );
+
+		public final Output out = new Output();
+
+		public final AtomicLong timeout = new AtomicLong( -1 );
+
+		public final AtomicInteger completed = new AtomicInteger();
+
+		public final List<AsyncListener> listeners = new CopyOnWriteArrayList<AsyncListener>();
+
+		public final AsyncContext ac;
+
+		public final HttpServletRequest request;
+
+		public final HttpServletResponse response;
+
+		/**
+		 * @param nameValues request parameters; a name given more than once has all its values
+		 */
+		public Exchange ( String... nameValues ) {
+			for ( int i = 0; i + 1 < nameValues.length; i += 2 ) {
+				final String[] was = params.get( nameValues[ i ] );
+				final String[] values = was == null ? new String[ 1 ] : Arrays.copyOf( was, was.length + 1 );
+				values[ values.length - 1 ] = nameValues[ i + 1 ];
+				params.put( nameValues[ i ], values );
+			}
+			response = (HttpServletResponse) Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, ( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "setHeader":
+						responseHeaders.put( (String) args[ 0 ], (String) args[ 1 ] );
+						return null;
+					case "setContentType":
+						responseHeaders.put( "Content-Type", (String) args[ 0 ] );
+						return null;
+					case "setStatus":
+					case "sendError":
+						status.set( (Integer) args[ 0 ] );
+						return null;
+					case "setCharacterEncoding":
+						return null;
+					case "getOutputStream":
+						return out;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+			ac = (AsyncContext) Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class<?>[] { AsyncContext.class }, ( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "setTimeout":
+						timeout.set( (Long) args[ 0 ] );
+						return null;
+					case "addListener":
+						listeners.add( (AsyncListener) args[ 0 ] );
+						return null;
+					case "getRequest":
+						return Exchange.this.request;
+					case "getResponse":
+						return response;
+					case "complete":
+						completed.incrementAndGet();
+						return null;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+			request = (HttpServletRequest) Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, ( proxy, method, args ) -> {
+					switch ( method.getName() ) {
+					case "getParameter":
+						final String[] values = params.get( args[ 0 ] );
+						return values != null ? values[ 0 ] : null;
+					case "getParameterValues":
+						return params.get( args[ 0 ] );
+					case "getHeader":
+						return headers.get( args[ 0 ] );
+					case "getQueryString":
+					case "getContentType":
+						return null;
+					case "getRemoteAddr":
+						return "1.2.3.4";
+					case "setCharacterEncoding":
+						return null;
+					case "startAsync":
+						return ac;
+					default:
+						throw new UnsupportedOperationException( method.getName() );
+					}
+				} );
+		}
+
+		public Exchange header ( String name, String value ) {
+			headers.put( name, value );
+			return this;
+		}
+	}
+
+	private static void await ( String what, BooleanSupplier condition ) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ( !condition.getAsBoolean() ) {
+			assertTrue( System.currentTimeMillis() < deadline, "Timed out waiting for " + what );
+			Thread.sleep( 10 );
+		}
+	}
+
+	/**
+	 * The dispatcher does its bookkeeping (history, putting back a failed batch) just after the write it's waited on.
+	 */
+	private static void settle () throws InterruptedException {
+		Thread.sleep( 100 );
+	}
+
+	private Comms comms = null;
+
+	/**
+	 * Starts Comms (it's all static) with these init parameters; stopped again after each test.
+	 */
+	private void start ( String... nameValues ) throws Exception {
+		comms = new Comms();
+		comms.init( new Config( nameValues ) );
+	}
+
 	@BeforeEach
 	void setUp () throws Exception {
 	}
 
 	@AfterEach
 	void tearDown () throws Exception {
+		if ( comms != null ) {
+			comms.destroy();
+			comms = null;
+		}
 	}
 
 	@Test
@@ -58,4 +325,247 @@ class CommsTest {
 		logger.trace( "Success" );
 	}
 
+	@Test
+	void testNotStarted () {
+		assertThrows( Comms.Overloaded.class, () -> Comms.sendInternal( "TBE", new String[] { "a" }, "k" ) );
+	}
+
+	@Test
+	void testInternalNotRateLimited () throws Exception {
+		start( "rate", "1", "burst", "1", "mailbox.max", "1" );
+
+		final String[] crowd = new String[ 300 ];
+		for ( int i = 0; i < crowd.length; i++ ) {
+			crowd[ i ] = "p" + i;
+		}
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "x" }, "hi" );
+		assertThrows( Comms.Overloaded.class, () -> Comms.send( "1.2.3.4", "Mr. X", crowd, "hi" ) );
+		// The server's own posts skip the per-sender rate...
+		Comms.sendInternal( "TBE", crowd, "k" );
+		// ...but not the room there is
+		final Comms.Overloaded o = assertThrows( Comms.Overloaded.class,
+			() -> Comms.sendInternal( "TBE", new String[] { "p0" }, "k" ) );
+		assertTrue( o.getMessage().contains( "full" ), o.getMessage() );
+	}
+
+	@Test
+	void testTooFastToldWhenToComeBack () throws Exception {
+		start( "rate", "1", "burst", "1" );
+
+		final Exchange first = new Exchange( "t", "a", "m", "hi" );
+		comms.doPost( first.request, first.response );
+		assertEquals( 200, first.status.get() );
+
+		final Exchange second = new Exchange( "t", "a", "m", "hi" );
+		comms.doPost( second.request, second.response );
+		assertEquals( 429, second.status.get() );
+		assertEquals( "1", second.responseHeaders.get( "Retry-After" ) );
+	}
+
+	@Test
+	void testMailboxFull () throws Exception {
+		start( "rate", "0", "mailbox.max", "2" );
+
+		for ( int i = 0; i < 2; i++ ) {
+			final Exchange x = new Exchange( "t", "full", "m", "m" + i );
+			comms.doPost( x.request, x.response );
+			assertEquals( 200, x.status.get() );
+		}
+		// One full mailbox turns away the whole post, other recipients included
+		final Exchange x = new Exchange( "t", "other", "t", "full", "m", "m2" );
+		comms.doPost( x.request, x.response );
+		assertEquals( 429, x.status.get() );
+		assertNotNull( x.responseHeaders.get( "Retry-After" ) );
+
+		final Recorder other = new Recorder( "other" );
+		Comms.connect( other );
+		final Recorder full = new Recorder( "full" );
+		Comms.connect( full );
+		await( "the first two", () -> full.got.size() == 2 );
+		Thread.sleep( 100 );
+		assertTrue( other.got.isEmpty() );
+		assertEquals( 2, full.got.size() );
+	}
+
+	@Test
+	void testTurnedAwayNotCharged () throws Exception {
+		start( "rate", "1", "burst", "1", "mailbox.max", "1" );
+		Comms.sendInternal( "TBE", new String[] { "busy" }, "k" );
+
+		final Comms.Overloaded o = assertThrows( Comms.Overloaded.class,
+			() -> Comms.send( "1.2.3.4", "Mr. X", new String[] { "busy" }, "hi" ) );
+		assertTrue( o.getMessage().contains( "full" ), o.getMessage() );
+		// Still has its one
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "idle" }, "hi" );
+	}
+
+	@Test
+	void testDropOldest () throws Exception {
+		start( "rate", "0", "mailbox.max", "2", "overflow", "drop-oldest" );
+
+		for ( int i = 0; i < 5; i++ ) {
+			final Exchange x = new Exchange( "t", "d", "m", "m" + i );
+			comms.doPost( x.request, x.response );
+			assertEquals( 200, x.status.get() );
+		}
+
+		final Recorder d = new Recorder( "d" );
+		Comms.connect( d );
+		await( "the newest two", () -> d.got.size() == 2 );
+		Thread.sleep( 100 );
+		assertEquals( 2, d.got.size() );
+		assertEquals( "m3", d.got.get( 0 ).payload.message );
+		assertEquals( "m4", d.got.get( 1 ).payload.message );
+		assertTrue( d.got.get( 0 ).seq < d.got.get( 1 ).seq );
+	}
+
+	@Test
+	void testSinceReplays () throws Exception {
+		start( "rate", "0" );
+		for ( int i = 0; i < 3; i++ ) {
+			Comms.send( "1.2.3.4", "Mr. X", new String[] { "r" }, "m" + i );
+		}
+		final Recorder first = new Recorder( "r" );
+		Comms.connect( first );
+		await( "all three", () -> first.got.size() == 3 );
+		settle();
+		Comms.disconnect( first );
+
+		// Back, having seen only the first
+		final Recorder again = new Recorder( "r" );
+		Comms.connect( again, first.got.get( 0 ).seq );
+		await( "the two missed", () -> again.got.size() == 2 );
+		settle();
+		assertEquals( "m1", again.got.get( 0 ).payload.message );
+		assertEquals( first.got.get( 1 ).seq, again.got.get( 0 ).seq );
+		assertEquals( "m2", again.got.get( 1 ).payload.message );
+		assertEquals( first.got.get( 2 ).seq, again.got.get( 1 ).seq );
+		Comms.disconnect( again );
+
+		// Back, having seen everything
+		final Recorder caughtUp = new Recorder( "r" );
+		Comms.connect( caughtUp, first.got.get( 2 ).seq );
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "r" }, "m3" );
+		await( "the new one", () -> caughtUp.got.size() == 1 );
+		Thread.sleep( 100 );
+		assertEquals( 1, caughtUp.got.size() );
+		assertEquals( "m3", caughtUp.got.get( 0 ).payload.message );
+	}
+
+	@Test
+	void testSinceAcksWhatArrivedAnyway () throws Exception {
+		start( "rate", "0", "mailbox.max", "1", "backoff", "60000" );
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "f" }, "m0" );
+
+		// The client got it, but the write failed; it's back in the mailbox to try again (much later)
+		final Recorder dropped = new Recorder( "f" );
+		dropped.failing = true;
+		Comms.connect( dropped );
+		await( "the failed write", () -> dropped.got.size() == 1 );
+		settle();
+		assertThrows( Comms.Overloaded.class,
+			() -> Comms.send( "1.2.3.4", "Mr. X", new String[] { "f" }, "m1" ) );
+
+		// Saying it's been seen takes it out, and frees its room
+		final Recorder back = new Recorder( "f" );
+		Comms.connect( back, dropped.got.get( 0 ).seq );
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "f" }, "m1" );
+		await( "the new one", () -> back.got.size() == 1 );
+		Thread.sleep( 100 );
+		assertEquals( 1, back.got.size() );
+		assertEquals( "m1", back.got.get( 0 ).payload.message );
+	}
+
+	@Test
+	void testStreamFraming () throws Exception {
+		start( "rate", "0" );
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "sse" }, "one\ntwo" );
+
+		final Exchange x = new Exchange( "w", "sse" ).header( "Accept", "text/event-stream" );
+		comms.doGet( x.request, x.response );
+		assertEquals( "text/event-stream", x.responseHeaders.get( "Content-Type" ) );
+		assertEquals( 0, x.timeout.get() );
+		await( "the first event", () -> x.out.toString().endsWith( "\n\n" ) && x.out.toString().contains( "id: " ) );
+
+		// Stays open for more
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "sse" }, "three" );
+		await( "the second event", () -> x.out.toString().split( "id: " ).length == 3 );
+		settle();
+		assertEquals( 0, x.completed.get() );
+
+		final String[] events = x.out.toString().split( "\n\n" );
+		assertEquals( "retry: 2000", events[ 0 ] );
+		assertEquals( 3, events.length );
+		final long[] ids = new long[ 2 ];
+		for ( int i = 0; i < 2; i++ ) {
+			// Exactly two lines: the id, and the envelope (newlines in the message escaped) as data
+			final String[] lines = events[ i + 1 ].split( "\n" );
+			assertEquals( 2, lines.length, events[ i + 1 ] );
+			assertTrue( lines[ 0 ].startsWith( "id: " ), lines[ 0 ] );
+			ids[ i ] = Long.parseLong( lines[ 0 ].substring( 4 ) );
+			assertTrue( lines[ 1 ].startsWith( "data: {" ), lines[ 1 ] );
+			assertTrue( lines[ 1 ].endsWith( "}" ), lines[ 1 ] );
+			assertTrue( lines[ 1 ].contains( "\"s\":" + ids[ i ] ), lines[ 1 ] );
+		}
+		assertTrue( x.out.toString().contains( "one\\ntwo" ) );
+		assertTrue( ids[ 0 ] < ids[ 1 ] );
+
+		// EventSource reconnecting says where it got to
+		final Exchange back = new Exchange( "w", "sse" ).header( "Accept", "text/event-stream" )
+			.header( "Last-Event-ID", Long.toString( ids[ 0 ] ) );
+		comms.doGet( back.request, back.response );
+		await( "the replay", () -> back.out.toString().contains( "id: " ) );
+		Thread.sleep( 100 );
+		assertEquals( "retry: 2000\n\nid: " + ids[ 1 ] + "\ndata: ", back.out.toString().substring( 0,
+			back.out.toString().indexOf( "{" ) ) );
+		assertFalse( back.out.toString().contains( "id: " + ids[ 0 ] ) );
+	}
+
+	@Test
+	void testLongPollFraming () throws Exception {
+		start( "rate", "0" );
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "lp" }, "hi" );
+
+		final Exchange x = new Exchange( "w", "lp" );
+		comms.doGet( x.request, x.response );
+		await( "the batch", () -> x.completed.get() == 1 );
+		final String body = x.out.toString();
+		assertTrue( body.startsWith( "\n\n[{" ), body );
+		assertTrue( body.endsWith( "}]\n" ), body );
+		assertFalse( body.contains( "id: " ) );
+	}
+
+	@Test
+	void testStalledLongPollTimesOut () throws Exception {
+		start( "rate", "0" );
+		final int stalled = AsyncOutput.stalledNow();
+
+		final Exchange x = new Exchange( "w", "slow" );
+		x.out.ready = false;
+		comms.doGet( x.request, x.response );
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "slow" }, "hi" );
+		await( "the stall", () -> AsyncOutput.stalledNow() == stalled + 1 );
+		assertEquals( 0, x.completed.get() );
+
+		for ( AsyncListener listener : x.listeners ) {
+			listener.onTimeout( new AsyncEvent( x.ac ) );
+		}
+		assertEquals( stalled, AsyncOutput.stalledNow() );
+		assertEquals( 1, x.completed.get() );
+	}
+
+	@Test
+	void testSeqFromElsewhere () throws Exception {
+		start();
+		// The last one the client saw, numbered by whichever node had it before
+		final long seen = System.currentTimeMillis() * 1000 - 1;
+		Comms.send( "1.2.3.4", "Mr. X", new String[] { "a" }, "hi" );
+
+		final Recorder a = new Recorder( "a" );
+		Comms.connect( a, seen );
+		await( "the post", () -> a.got.size() == 1 );
+		assertTrue( a.got.get( 0 ).seq > seen );
+		Comms.disconnect( a );
+	}
+
 }
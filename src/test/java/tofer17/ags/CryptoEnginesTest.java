@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class CryptoEnginesTest {
+
+	private static final Logger logger = LoggerFactory.getLogger( CryptoEnginesTest.class );
+
+	private static final String SIGN = "SHA256withRSA";
+
+	private static final String DERIVE = "RSA/ECB/PKCS1Padding";
+
+	private static final String EC_SIGN = "SHA256withECDSA";
+
+	private static KeyPair keyPair;
+
+	private static KeyPair ecKeyPair;
+
+	@BeforeAll
+	static void setUp () throws Exception {
+		final KeyPairGenerator kpg = KeyPairGenerator.getInstance( "RSA" );
+		kpg.initialize( 2048 );
+		keyPair = kpg.generateKeyPair();
+
+		final KeyPairGenerator ec = KeyPairGenerator.getInstance( "EC" );
+		ec.initialize( new ECGenParameterSpec( "secp256r1" ) );
+		ecKeyPair = ec.generateKeyPair();
+	}
+
+	private static byte[] bytes ( String s ) {
+		return s.getBytes( StandardCharsets.UTF_8 );
+	}
+
+	@Test
+	void testSignAcrossThreads () throws Exception {
+		final CryptoEngines engines = new CryptoEngines( keyPair, SIGN, DERIVE );
+		final ExecutorService pool = Executors.newFixedThreadPool( 4 );
+		try {
+			final List<Future<byte[]>> sigs = new ArrayList<Future<byte[]>>();
+			for ( int i = 0; i < 32; i++ ) {
+				final String ts = "1792233103308:" + i;
+				sigs.add( pool.submit( () -> engines.sign( bytes( ts ) ) ) );
+			}
+			final Signature verifier = Signature.getInstance( SIGN );
+			for ( int i = 0; i < sigs.size(); i++ ) {
+				verifier.initVerify( keyPair.getPublic() );
+				verifier.update( bytes( "1792233103308:" + i ) );
+				assertTrue( verifier.verify( sigs.get( i ).get() ), "signature " + i );
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	void testDeriveMatchesFreshCipher () throws Exception {
+		final CryptoEngines engines = new CryptoEngines( keyPair, SIGN, DERIVE );
+		for ( String t : new String[] { "1792233103308", "1792233104308", "1792233103308" } ) {
+			final Cipher fresh = Cipher.getInstance( DERIVE );
+			fresh.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+			// Reused engine, same answer as a brand new one every time
+			assertArrayEquals( fresh.doFinal( bytes( t ) ), engines.derive( bytes( t ) ) );
+		}
+	}
+
+	@Test
+	void testGcmFreshIvEachTime () throws Exception {
+		final CryptoEngines engines = new CryptoEngines( keyPair, SIGN, DERIVE );
+		final SecretKeySpec key = new SecretKeySpec( new byte[ 32 ], "AES" );
+
+		Cipher gcm = engines.gcm( key );
+		final byte[] ct1 = gcm.doFinal( bytes( "embargo" ) );
+		final byte[] iv1 = gcm.getIV();
+		gcm = engines.gcm( key );
+		final byte[] ct2 = gcm.doFinal( bytes( "embargo" ) );
+		final byte[] iv2 = gcm.getIV();
+		assertFalse( Arrays.equals( iv1, iv2 ) );
+		assertFalse( Arrays.equals( ct1, ct2 ) );
+
+		final Cipher dec = Cipher.getInstance( CryptoEngines.GCM );
+		dec.init( Cipher.DECRYPT_MODE, key, new GCMParameterSpec( 128, iv2 ) );
+		assertEquals( "embargo", new String( dec.doFinal( ct2 ), StandardCharsets.UTF_8 ) );
+	}
+
+	@Test
+	void testEcSigningRsaDeriving () throws Exception {
+		final CryptoEngines engines = new CryptoEngines( ecKeyPair, EC_SIGN, keyPair, DERIVE );
+		assertSame( ecKeyPair, engines.signingKeyPair() );
+		assertSame( keyPair, engines.keyPair() );
+
+		final byte[] sig = engines.sign( bytes( "1792233103308:0" ) );
+		final Signature verifier = Signature.getInstance( EC_SIGN );
+		verifier.initVerify( ecKeyPair.getPublic() );
+		verifier.update( bytes( "1792233103308:0" ) );
+		assertTrue( verifier.verify( sig ) );
+		// DER encoded P-256 signatures are about 70 bytes, against 256 for RSA 2048
+		assertTrue( sig.length < 80, "length " + sig.length );
+
+		final Cipher fresh = Cipher.getInstance( DERIVE );
+		fresh.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+		assertArrayEquals( fresh.doFinal( bytes( "1792233103308" ) ), engines.derive( bytes( "1792233103308" ) ) );
+	}
+
+	@Test
+	void testBadAlgorithm () {
+		assertThrows( GeneralSecurityException.class,
+			() -> new CryptoEngines( keyPair, "NoSuchWithNothing", DERIVE ) );
+	}
+
+	/**
+	 * What a TBE embargo does (sign a timestamp, derive the key for t, AES-GCM the result), the old way and with
+	 * reused engines, from many threads at once.
+	 */
+	@Test
+	@Tag ( "benchmark" )
+	void benchmarkAgainstGetInstance () throws Exception {
+		final CryptoEngines engines = new CryptoEngines( keyPair, SIGN, DERIVE );
+		final int threads = Runtime.getRuntime().availableProcessors() * 4;
+		final int perThread = 200;
+
+		final Callable<Void> perRequest = () -> {
+			for ( int i = 0; i < perThread; i++ ) {
+				final Signature sig = Signature.getInstance( SIGN );
+				sig.initSign( keyPair.getPrivate() );
+				sig.update( bytes( "1792233103308:1" ) );
+				sig.sign();
+				final Cipher rsa = Cipher.getInstance( DERIVE );
+				rsa.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+				final byte[] k = Arrays.copyOf( rsa.doFinal( bytes( "1792233103308" ) ), 32 );
+				final Cipher gcm = Cipher.getInstance( CryptoEngines.GCM );
+				gcm.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( k, "AES" ) );
+				gcm.doFinal( bytes( "{\"t\":1792233103308,\"o\":\"move e4\"}" ) );
+			}
+			return null;
+		};
+		final Callable<Void> reused = () -> {
+			for ( int i = 0; i < perThread; i++ ) {
+				engines.sign( bytes( "1792233103308:1" ) );
+				final byte[] k = Arrays.copyOf( engines.derive( bytes( "1792233103308" ) ), 32 );
+				engines.gcm( new SecretKeySpec( k, "AES" ) )
+					.doFinal( bytes( "{\"t\":1792233103308,\"o\":\"move e4\"}" ) );
+			}
+			return null;
+		};
+
+		final ExecutorService pool = Executors.newFixedThreadPool( threads );
+		try {
+			for ( int pass = 0; pass < 3; pass++ ) {
+				final long a = run( pool, threads, perRequest );
+				final long b = run( pool, threads, reused );
+				final double ops = (double) threads * perThread;
+				logger.info( "Pass {}: {} threads, getInstance per request {} ops/s, reused engines {} ops/s", pass,
+					threads, String.format( "%.0f", ops * 1e9 / a ), String.format( "%.0f", ops * 1e9 / b ) );
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Signing timestamps (what GET /tbe does) with the RSA pair and with a P-256 pair.
+	 */
+	@Test
+	@Tag ( "benchmark" )
+	void benchmarkRsaAgainstEcdsa () throws Exception {
+		final CryptoEngines rsa = new CryptoEngines( keyPair, SIGN, DERIVE );
+		final CryptoEngines ec = new CryptoEngines( ecKeyPair, EC_SIGN, keyPair, DERIVE );
+		final int n = 1000;
+		for ( int pass = 0; pass < 3; pass++ ) {
+			long start = System.nanoTime();
+			for ( int i = 0; i < n; i++ ) {
+				rsa.sign( bytes( "1792233103308:" + i ) );
+			}
+			final double a = ( System.nanoTime() - start ) / 1e3 / n;
+			start = System.nanoTime();
+			for ( int i = 0; i < n; i++ ) {
+				ec.sign( bytes( "1792233103308:" + i ) );
+			}
+			final double b = ( System.nanoTime() - start ) / 1e3 / n;
+			logger.info( "Pass {}: {} {} us/signature, {} {} us/signature", pass, SIGN, String.format( "%.0f", a ),
+				EC_SIGN, String.format( "%.0f", b ) );
+		}
+	}
+
+	private static long run ( ExecutorService pool, int threads, Callable<Void> work ) throws Exception {
+		final List<Callable<Void>> all = new ArrayList<Callable<Void>>();
+		for ( int i = 0; i < threads; i++ ) {
+			all.add( work );
+		}
+		final long start = System.nanoTime();
+		for ( Future<Void> f : pool.invokeAll( all ) ) {
+			f.get();
+		}
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class EmbargoStreamTest {
+
+	private static final SecretKeySpec KEY = new SecretKeySpec( new byte[ 32 ], "AES" );
+
+	private static byte[] bytes ( String s ) {
+		return s.getBytes( StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Streams o through in odd sized chunks; returns the decrypted plaintext after checking the wrapping.
+	 */
+	private static String roundTrip ( byte[] o, boolean binary, ByteArrayOutputStream out ) throws Exception {
+		final Cipher cipher = Cipher.getInstance( CryptoEngines.GCM );
+		cipher.init( Cipher.ENCRYPT_MODE, KEY );
+		final String iv = Base64.getEncoder().encodeToString( cipher.getIV() );
+
+		final EmbargoStream.Encrypter e = new EmbargoStream.Encrypter( out, cipher,
+			bytes( "{\"t\":1792233103308,\"v\":2,\"iv\":\"" + iv + "\",\"ct\":\"" ),
+			bytes( "{\"t\":1792233103308,\"o\":\"" ), bytes( "\",\"ts\":{\"t\":1}}" ), bytes( "\"}" ), binary );
+		for ( int off = 0; off < o.length; off += 1000 ) {
+			e.write( o, off, Math.min( 1000, o.length - off ) );
+		}
+		e.finish();
+
+		final String json = new String( out.toByteArray(), StandardCharsets.US_ASCII );
+		final String head = "{\"t\":1792233103308,\"v\":2,\"iv\":\"" + iv + "\",\"ct\":\"";
+		assertTrue( json.startsWith( head ) );
+		assertTrue( json.endsWith( "\"}" ) );
+		final byte[] ct = Base64.getDecoder().decode( json.substring( head.length(), json.length() - 2 ) );
+
+		final Cipher dec = Cipher.getInstance( CryptoEngines.GCM );
+		dec.init( Cipher.DECRYPT_MODE, KEY, new GCMParameterSpec( 128, Base64.getDecoder().decode( iv ) ) );
+		return new String( dec.doFinal( ct ), StandardCharsets.UTF_8 );
+	}
+
+	@Test
+	void testText () throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		final StringBuilder escaped = new StringBuilder();
+		for ( int i = 0; i < 5000; i++ ) {
+			sb.append( "{\"move\":" ).append( i ).append( ",\"say\":\"h\u00e9\\n\"}\n" );
+			escaped.append( "{\\\"move\\\":" ).append( i ).append( ",\\\"say\\\":\\\"h\u00e9\\\\n\\\"}\\n" );
+		}
+		assertEquals( "{\"t\":1792233103308,\"o\":\"" + escaped + "\",\"ts\":{\"t\":1}}",
+			roundTrip( bytes( sb.toString() ), false, new ByteArrayOutputStream() ) );
+	}
+
+	@Test
+	void testJsonBody () throws Exception {
+		// What TBE.js gets back once decrypted: valid JSON, the body a string in "o"
+		assertEquals( "{\"t\":1792233103308,\"o\":\"{\\\"a\\\":\\\"b\\\"}\",\"ts\":{\"t\":1}}",
+			roundTrip( bytes( "{\"a\":\"b\"}" ), false, new ByteArrayOutputStream() ) );
+	}
+
+	@Test
+	void testBinary () throws Exception {
+		for ( int length : new int[] { 0, 1, 2, 3, 4, 1000, 1001, 1002, 65537 } ) {
+			final byte[] o = new byte[ length ];
+			new Random( length ).nextBytes( o );
+			final String expect = "{\"t\":1792233103308,\"o\":\"" + Base64.getEncoder().encodeToString( o )
+				+ "\",\"ts\":{\"t\":1}}";
+			assertEquals( expect, roundTrip( o, true, new ByteArrayOutputStream() ), "length " + length );
+		}
+	}
+
+	@Test
+	void testOutputAsItGoes () throws Exception {
+		final Cipher cipher = Cipher.getInstance( CryptoEngines.GCM );
+		cipher.init( Cipher.ENCRYPT_MODE, KEY );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final EmbargoStream.Encrypter e = new EmbargoStream.Encrypter( out, cipher, bytes( "[" ), bytes( "" ),
+			bytes( "" ), bytes( "]" ), false );
+
+		final byte[] chunk = new byte[ 8192 ];
+		Arrays.fill( chunk, (byte) 'x' );
+		for ( int i = 1; i <= 64; i++ ) {
+			e.write( chunk, 0, chunk.length );
+			// Nothing held back beyond a block or so (and Base64's 3 byte groups)
+			assertTrue( out.size() >= 1 + ( i * chunk.length - 64 ) * 4 / 3, "after " + i + ": " + out.size() );
+		}
+		e.finish();
+		assertEquals( 1 + ( 64 * 8192 + 16 + 2 ) / 3 * 4 + 1, out.size() );
+	}
+
+	@Test
+	void testSameAsOneGo () throws Exception {
+		// Same IV and key, so the streamed ciphertext must be byte for byte the one-shot one
+		final Cipher one = Cipher.getInstance( CryptoEngines.GCM );
+		one.init( Cipher.ENCRYPT_MODE, KEY );
+		final byte[] iv = one.getIV();
+		final byte[] expect = one.doFinal( bytes( "{\"t\":1,\"o\":\"hello\",\"ts\":{}}" ) );
+
+		final Cipher streamed = Cipher.getInstance( CryptoEngines.GCM );
+		streamed.init( Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec( 128, iv ) );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final EmbargoStream.Encrypter e = new EmbargoStream.Encrypter( out, streamed, bytes( "" ),
+			bytes( "{\"t\":1,\"o\":\"" ), bytes( "\",\"ts\":{}}" ), bytes( "" ), false );
+		e.write( bytes( "hello" ), 0, 5 );
+		e.finish();
+		assertArrayEquals( expect, Base64.getDecoder().decode( out.toByteArray() ) );
+	}
+
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class HashRingTest {
+
+	private static final Logger logger = LoggerFactory.getLogger( HashRingTest.class );
+
+	private static final int KEYS = 20000;
+
+	@Test
+	void testEmpty () {
+		assertNull( new HashRing( 16 ).owner( "bob" ) );
+	}
+
+	@Test
+	void testSpread () {
+		final HashRing ring = new HashRing( 128 );
+		ring.add( "a" );
+		ring.add( "b" );
+		ring.add( "c" );
+		ring.add( "d" );
+
+		final Map<String,Integer> counts = new HashMap<String,Integer>();
+		for ( int i = 0; i < KEYS; i++ ) {
+			counts.merge( ring.owner( "player-" + i ), 1, Integer::sum );
+		}
+		logger.info( "Spread: {}", counts );
+		assertEquals( 4, counts.size() );
+		for ( int count : counts.values() ) {
+			// Fair share is 5000; virtual points keep everyone well within half again of it
+			assertTrue( count > KEYS / 4 / 2 && count < KEYS / 4 * 3 / 2, "count " + count );
+		}
+	}
+
+	@Test
+	void testMinimalMovement () {
+		final HashRing ring = new HashRing( 64 );
+		ring.add( "a" );
+		ring.add( "b" );
+		ring.add( "c" );
+
+		final String[] before = new String[ KEYS ];
+		for ( int i = 0; i < KEYS; i++ ) {
+			before[ i ] = ring.owner( "player-" + i );
+		}
+
+		ring.remove( "b" );
+		for ( int i = 0; i < KEYS; i++ ) {
+			final String after = ring.owner( "player-" + i );
+			if ( !"b".equals( before[ i ] ) ) {
+				// Only b's keys move
+				assertEquals( before[ i ], after );
+			} else {
+				assertNotEquals( "b", after );
+			}
+		}
+
+		ring.add( "b" );
+		for ( int i = 0; i < KEYS; i++ ) {
+			// And they all come back
+			assertEquals( before[ i ], ring.owner( "player-" + i ) );
+		}
+	}
+
+	@Test
+	void testSameEverywhere () {
+		// Two nodes building their rings in different orders still agree
+		final HashRing one = new HashRing( 32 );
+		one.add( "x" );
+		one.add( "y" );
+		one.add( "z" );
+		final HashRing two = new HashRing( 32 );
+		two.add( "z" );
+		two.add( "x" );
+		two.add( "y" );
+		for ( int i = 0; i < 1000; i++ ) {
+			assertEquals( one.owner( "k" + i ), two.owner( "k" + i ) );
+		}
+		assertFalse( one.add( "x" ) );
+		assertTrue( one.remove( "x" ) );
+		assertFalse( one.remove( "x" ) );
+	}
+
+}
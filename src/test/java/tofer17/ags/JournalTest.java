@@ -0,0 +1,211 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class JournalTest {
+
+	@SuppressWarnings ( "unused" )
+	private static final Logger logger = LoggerFactory.getLogger( JournalTest.class );
+
+	private File dir = null;
+
+	@BeforeEach
+	void setUp () throws Exception {
+		dir = Files.createTempDirectory( "journal" ).toFile();
+	}
+
+	@AfterEach
+	void tearDown () throws Exception {
+		final File[] files = dir.listFiles();
+		if ( files != null ) {
+			for ( File file : files ) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static Journal.Entry entry ( String message, long... seqs ) {
+		final String[] to = new String[ seqs.length ];
+		for ( int i = 0; i < to.length; i++ ) {
+			to[ i ] = "p" + seqs[ i ];
+		}
+		return new Journal.Entry( 1792233103308L, "Mr. X", message, to, to, seqs );
+	}
+
+	@Test
+	void testAppendAckReopen () throws Exception {
+		Journal journal = new Journal( dir, 1024 * 1024, Journal.Sync.ALWAYS, 100, 60000 );
+		assertTrue( journal.open().isEmpty() );
+
+		journal.append( entry( "one", 1 ) );
+		journal.append( entry( "two €", 2, 3 ) );
+		journal.append( entry( "three", 4 ) ).get( 2, TimeUnit.SECONDS );
+		journal.ack( 1, 3 );
+		journal.close();
+
+		journal = new Journal( dir, 1024 * 1024, Journal.Sync.ALWAYS, 100, 60000 );
+		final List<Journal.Entry> pending = journal.open();
+		journal.close();
+
+		assertEquals( 4, journal.maxSeq() );
+		assertEquals( 2, pending.size() );
+		assertEquals( "two €", pending.get( 0 ).message );
+		assertArrayEquals( new long[] { 2 }, pending.get( 0 ).seqs );
+		assertArrayEquals( new String[] { "p2" }, pending.get( 0 ).recipients );
+		assertArrayEquals( new String[] { "p2", "p3" }, pending.get( 0 ).toList );
+		assertEquals( "three", pending.get( 1 ).message );
+	}
+
+	@Test
+	void testRoom () throws Exception {
+		Journal journal = new Journal( dir, 1024 * 1024, Journal.Sync.ALWAYS, 100, 60000 );
+		journal.open();
+		final String[] members = { "al", "bob" };
+		journal.append( new Journal.Entry( 1792233103308L, "al", "hi room", members, members, new long[] { 1, 2 },
+			"game-1" ) );
+		journal.append( entry( "direct", 3 ) );
+		journal.close();
+
+		journal = new Journal( dir, 1024 * 1024, Journal.Sync.ALWAYS, 100, 60000 );
+		final List<Journal.Entry> pending = journal.open();
+		journal.close();
+
+		assertEquals( "game-1", pending.get( 0 ).room );
+		assertNull( pending.get( 1 ).room );
+	}
+
+	@Test
+	void testEarlyAck () throws Exception {
+		// Delivery can beat the post to the writer queue
+		Journal journal = new Journal( dir, 1024 * 1024, Journal.Sync.BATCH, 10, 60000 );
+		journal.open();
+		journal.ack( 7 );
+		journal.append( entry( "seven", 7 ) );
+		journal.append( entry( "eight", 8 ) );
+		journal.close();
+
+		journal = new Journal( dir, 1024 * 1024, Journal.Sync.BATCH, 10, 60000 );
+		final List<Journal.Entry> pending = journal.open();
+		journal.close();
+
+		assertEquals( 1, pending.size() );
+		assertEquals( "eight", pending.get( 0 ).message );
+	}
+
+	@Test
+	void testEarlyAckForgotten () throws Exception {
+		// Its post never made it to the journal, so it's not worth remembering for long
+		final Journal journal = new Journal( dir, 1024 * 1024, Journal.Sync.BATCH, 10, 200 );
+		journal.open();
+		try {
+			journal.ack( 99 );
+			final long deadline = System.currentTimeMillis() + 5000;
+			while ( journal.earlyAcks() == 0 && System.currentTimeMillis() < deadline ) {
+				Thread.sleep( 5 );
+			}
+			assertEquals( 1, journal.earlyAcks() );
+			while ( journal.earlyAcks() > 0 && System.currentTimeMillis() < deadline ) {
+				Thread.sleep( 10 );
+			}
+			assertEquals( 0, journal.earlyAcks() );
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	void testTornTail () throws Exception {
+		Journal journal = new Journal( dir, 1024 * 1024, Journal.Sync.NEVER, 100, 60000 );
+		journal.open();
+		journal.append( entry( "one", 1 ) );
+		journal.append( entry( "two", 2 ) );
+		journal.close();
+
+		final File[] files = dir.listFiles();
+		assertEquals( 1, files.length );
+		final long good = files[ 0 ].length();
+		// Half a record, as if the power went out mid-write
+		try ( FileOutputStream out = new FileOutputStream( files[ 0 ], true ) ) {
+			out.write( new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0 } );
+		}
+
+		journal = new Journal( dir, 1024 * 1024, Journal.Sync.NEVER, 100, 60000 );
+		List<Journal.Entry> pending = journal.open();
+		journal.append( entry( "three", 3 ) );
+		journal.close();
+
+		assertEquals( 2, pending.size() );
+		assertTrue( files[ 0 ].length() > good );
+
+		journal = new Journal( dir, 1024 * 1024, Journal.Sync.NEVER, 100, 60000 );
+		pending = journal.open();
+		journal.close();
+
+		assertEquals( 3, pending.size() );
+		assertEquals( "three", pending.get( 2 ).message );
+	}
+
+	@Test
+	void testCompaction () throws Exception {
+		// Tiny segments so a handful of posts roll over several times
+		Journal journal = new Journal( dir, 256, Journal.Sync.BATCH, 10, 20 );
+		journal.open();
+		for ( long seq = 1; seq <= 60; seq++ ) {
+			// One at a time; a single group commit would only roll once
+			journal.append( entry( "message number " + seq, seq ) ).get( 2, TimeUnit.SECONDS );
+		}
+		journal.append( entry( "last", 61 ) ).get( 2, TimeUnit.SECONDS );
+		final int before = journal.segments();
+		assertTrue( before > 5 );
+
+		// Everything but a straggler from early on and the very last
+		for ( long seq = 1; seq <= 61; seq++ ) {
+			if ( seq != 3 && seq != 61 ) {
+				journal.ack( seq );
+			}
+		}
+
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ( journal.segments() > 3 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep( 20 );
+		}
+		assertTrue( journal.segments() < before );
+		assertEquals( 2, journal.size() );
+		journal.close();
+
+		journal = new Journal( dir, 256, Journal.Sync.BATCH, 10, 20 );
+		final List<Journal.Entry> pending = journal.open();
+		journal.close();
+
+		assertEquals( 2, pending.size() );
+		assertEquals( "message number 3", pending.get( 0 ).message );
+		assertEquals( "last", pending.get( 1 ).message );
+		assertEquals( 61, journal.maxSeq() );
+	}
+
+	@Test
+	void testIOExceptionOnBadDir () throws IOException {
+		final File file = new File( dir, "not-a-dir" );
+		assertTrue( file.createNewFile() );
+		final Journal journal = new Journal( file, 1024, Journal.Sync.NEVER, 100, 60000 );
+		assertThrows( IOException.class, () -> journal.open() );
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class JsonEncoderTest {
+
+	private static final Logger logger = LoggerFactory.getLogger( JsonEncoderTest.class );
+
+	private static final String encode ( CharSequence s ) throws IOException {
+		final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		new JsonEncoder().reset( bout ).string( s ).flush();
+		return new String( bout.toByteArray(), StandardCharsets.UTF_8 );
+	}
+
+	// The slow, obvious way
+	private static final String reference ( CharSequence s ) {
+		final StringBuilder sb = new StringBuilder( "\"" );
+		for ( int i = 0; i < s.length(); i++ ) {
+			final char c = s.charAt( i );
+			if ( c == '"' || c == '\\' ) {
+				sb.append( '\\' ).append( c );
+			} else if ( c == '\n' ) {
+				sb.append( "\\n" );
+			} else if ( c == '\r' ) {
+				sb.append( "\\r" );
+			} else if ( c == '\t' ) {
+				sb.append( "\\t" );
+			} else if ( c == '\b' ) {
+				sb.append( "\\b" );
+			} else if ( c == '\f' ) {
+				sb.append( "\\f" );
+			} else if ( c < 0x20 || c == '\u2028' || c == '\u2029' ) {
+				sb.append( String.format( "\\u%04x", (int) c ) );
+			} else {
+				sb.append( c );
+			}
+		}
+		return sb.append( '"' ).toString();
+	}
+
+	// How Comms used to join the attempts
+	private static final String join ( ArrayList<Long> la ) {
+		final StringBuilder sb = new StringBuilder( "[" );
+		for ( int i = 0; i < la.size(); i++ ) {
+			sb.append( i > 0 ? "," : "" ).append( la.get( i ) );
+		}
+		return sb.append( "]" ).toString();
+	}
+
+	@Test
+	void testEscaping () throws IOException {
+		assertEquals( "\"plain\"", encode( "plain" ) );
+		assertEquals( "\"say \\\"hi\\\"\"", encode( "say \"hi\"" ) );
+		assertEquals( "\"back\\\\slash\"", encode( "back\\slash" ) );
+		assertEquals( "\"a\\nb\\tc\\r\\b\\f\"", encode( "a\nb\tc\r\b\f" ) );
+		assertEquals( "\"\\u0000\\u001f\"", encode( "\u0000\u001f" ) );
+		assertEquals( "\"\\u2028\"", encode( "\u2028" ) );
+	}
+
+	@Test
+	void testUnicode () throws IOException {
+		assertEquals( "\"caf\u00e9 \u20ac \u4e2d\"", encode( "caf\u00e9 \u20ac \u4e2d" ) );
+		// Supplementary (surrogate pair) comes out as one 4 byte sequence
+		final String emoji = new String( Character.toChars( 0x1f3b2 ) );
+		assertEquals( "\"" + emoji + "\"", encode( emoji ) );
+		assertArrayEquals( new byte[] { '"', (byte) 0xf0, (byte) 0x9f, (byte) 0x8e, (byte) 0xb2, '"' },
+			encode( emoji ).getBytes( StandardCharsets.UTF_8 ) );
+		// A lone surrogate is escaped instead of written as invalid UTF-8
+		assertEquals( "\"\\ud83c!\"", encode( "\ud83c!" ) );
+	}
+
+	@Test
+	void testMatchesReference () throws IOException {
+		final Random random = new Random( 17 );
+		for ( int n = 0; n < 200; n++ ) {
+			final StringBuilder sb = new StringBuilder();
+			// Long enough to cross buffer boundaries now and then
+			final int len = random.nextInt( n % 10 == 0 ? 20000 : 200 );
+			while ( sb.length() < len ) {
+				final int cp = random.nextInt( 4 ) == 0 ? random.nextInt( 0x20000 ) : random.nextInt( 0x80 );
+				if ( Character.isValidCodePoint( cp ) && ( cp < 0xd800 || cp > 0xdfff ) ) {
+					sb.appendCodePoint( cp );
+				}
+			}
+			assertEquals( reference( sb ), encode( sb ) );
+		}
+	}
+
+	@Test
+	void testEscapingStream () throws IOException {
+		final Random random = new Random( 17 );
+		for ( int n = 0; n < 200; n++ ) {
+			final StringBuilder sb = new StringBuilder();
+			final int len = random.nextInt( 2000 );
+			while ( sb.length() < len ) {
+				final int cp = random.nextInt( 4 ) == 0 ? random.nextInt( 0x20000 ) : random.nextInt( 0x80 );
+				// Those the encoder writes short (or escapes for JavaScript's sake) aside
+				if ( Character.isValidCodePoint( cp ) && ( cp < 0xd800 || cp > 0xdfff ) && cp != '\b' && cp != '\f'
+					&& cp != 0x2028 && cp != 0x2029 ) {
+					sb.appendCodePoint( cp );
+				}
+			}
+			final byte[] utf8 = sb.toString().getBytes( StandardCharsets.UTF_8 );
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			try ( OutputStream out = new JsonEncoder.Escaping( bout ) ) {
+				// Odd sized pieces, splitting characters now and then
+				for ( int off = 0; off < utf8.length; ) {
+					final int chunk = Math.min( utf8.length - off, 1 + random.nextInt( 50 ) );
+					out.write( utf8, off, chunk );
+					off += chunk;
+				}
+			}
+			final String expected = reference( sb );
+			assertEquals( expected.substring( 1, expected.length() - 1 ),
+				new String( bout.toByteArray(), StandardCharsets.UTF_8 ) );
+		}
+	}
+
+	@Test
+	void testNumbers () throws IOException {
+		final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		final long[] values = { 0, 7, 10, -1, 1792233103308L, Long.MAX_VALUE, Long.MIN_VALUE, 999 };
+		new JsonEncoder().reset( bout ).array( values, values.length ).flush();
+		assertEquals( "[0,7,10,-1,1792233103308,9223372036854775807,-9223372036854775808,999]",
+			new String( bout.toByteArray(), StandardCharsets.US_ASCII ) );
+	}
+
+	@Test
+	void testStringArrayToJSONArray () {
+		assertEquals( "[\"a\",\"b\\\"c\"]", Comms.stringArrayToJSONArray( new String[] { "a", "b\"c" } ) );
+	}
+
+	@Test
+	@Tag ( "benchmark" )
+	void benchmarkAgainstFormat () throws IOException {
+		final String toList = "[\"alice\",\"bob\",\"chris\",\"dave\",\"eve\",\"fran\"]";
+		final StringBuilder sb = new StringBuilder();
+		while ( sb.length() < 2000 ) {
+			sb.append( "Alice places an X in the upper-left-corner cell. " );
+		}
+		final String message = sb.toString();
+		final ArrayList<Long> boxed = new ArrayList<Long>();
+		final long[] attempts = { 1792233103308L, 1792233104308L };
+		boxed.add( attempts[ 0 ] );
+		boxed.add( attempts[ 1 ] );
+
+		final OutputStream sink = new OutputStream() {
+
+			@Override
+			public void write ( int b ) {
+				;
+			}
+
+			@Override
+			public void write ( byte[] b, int off, int len ) {
+				;
+			}
+		};
+
+		// What Comms keeps per payload: everything but the attempts, encoded once
+		final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		JsonEncoder.get( bout ).raw( "{\"t\":" ).raw( toList ).raw( ",\"f\":" ).string( "Mr. X" ).raw( ",\"r\":" )
+			.number( attempts[ 0 ] ).raw( ",\"a\":" ).flush();
+		final byte[] head = bout.toByteArray();
+		bout.reset();
+		JsonEncoder.get( bout ).raw( ",\"m\":" ).string( message ).raw( '}' ).flush();
+		final byte[] tail = bout.toByteArray();
+
+		final int rounds = 200000;
+		long formatNanos = 0, encodeNanos = 0, sendNanos = 0;
+		for ( int pass = 0; pass < 3; pass++ ) {
+			long start = System.nanoTime();
+			for ( int i = 0; i < rounds; i++ ) {
+				// What Envelope.toJSON() used to do for every send
+				final String json = String.format( "{\"t\":%s," + "\"f\":\"%s\"," + "\"r\":%s," + "\"a\":%s,"
+					+ "\"m\":\"%s\"}", toList, "Mr. X", attempts[ 0 ], join( boxed ), message );
+				sink.write( json.getBytes( StandardCharsets.UTF_8 ) );
+			}
+			formatNanos = System.nanoTime() - start;
+
+			// Encoding everything from scratch (and escaping, which format never did)
+			start = System.nanoTime();
+			for ( int i = 0; i < rounds; i++ ) {
+				final JsonEncoder enc = JsonEncoder.get( sink );
+				enc.raw( "{\"t\":" ).raw( toList ).raw( ",\"f\":" ).string( "Mr. X" ).raw( ",\"r\":" )
+					.number( attempts[ 0 ] ).raw( ",\"a\":" ).array( attempts, 2 ).raw( ",\"m\":" ).string( message )
+					.raw( '}' ).flush();
+			}
+			encodeNanos = System.nanoTime() - start;
+
+			// The send path: cached bytes with the attempts spliced in
+			start = System.nanoTime();
+			for ( int i = 0; i < rounds; i++ ) {
+				JsonEncoder.get( sink ).raw( head ).array( attempts, 2 ).raw( tail ).flush();
+			}
+			sendNanos = System.nanoTime() - start;
+		}
+
+		logger.info( "String.format: {} ns/envelope, JsonEncoder (full): {} ns/envelope, JsonEncoder (send): {} "
+			+ "ns/envelope", formatNanos / rounds, encodeNanos / rounds, sendNanos / rounds );
+		assertTrue( sendNanos < formatNanos );
+	}
+
+}
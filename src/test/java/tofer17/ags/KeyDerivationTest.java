@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class KeyDerivationTest {
+
+	private static final Logger logger = LoggerFactory.getLogger( KeyDerivationTest.class );
+
+	private static KeyPair keyPair;
+
+	@BeforeAll
+	static void setUp () throws Exception {
+		final KeyPairGenerator kpg = KeyPairGenerator.getInstance( "RSA" );
+		kpg.initialize( 2048 );
+		keyPair = kpg.generateKeyPair();
+	}
+
+	private static byte[] hex ( String s ) {
+		final byte[] b = new byte[ s.length() / 2 ];
+		for ( int i = 0; i < b.length; i++ ) {
+			b[ i ] = (byte) Integer.parseInt( s.substring( i * 2, i * 2 + 2 ), 16 );
+		}
+		return b;
+	}
+
+	private static byte[] hkdf ( byte[] salt, byte[] ikm, byte[] info, int length ) throws GeneralSecurityException {
+		final Mac mac = Mac.getInstance( KeyDerivation.Hkdf.HMAC );
+		mac.init( new SecretKeySpec( KeyDerivation.Hkdf.extract( salt, ikm ), KeyDerivation.Hkdf.HMAC ) );
+		return KeyDerivation.Hkdf.expand( mac, info, length );
+	}
+
+	@Test
+	void testRfc5869 () throws Exception {
+		// Test case 1
+		assertArrayEquals(
+			hex( "3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865" ),
+			hkdf( hex( "000102030405060708090a0b0c" ), hex( "0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b" ),
+				hex( "f0f1f2f3f4f5f6f7f8f9" ), 42 ) );
+		// Test case 2: long inputs, three blocks of output
+		final StringBuilder ikm = new StringBuilder();
+		final StringBuilder salt = new StringBuilder();
+		final StringBuilder info = new StringBuilder();
+		for ( int i = 0; i < 0x50; i++ ) {
+			ikm.append( String.format( "%02x", i ) );
+			salt.append( String.format( "%02x", 0x60 + i ) );
+			info.append( String.format( "%02x", 0xb0 + i ) );
+		}
+		assertArrayEquals(
+			hex( "b11e398dc80327a1c8e7f78c596a49344f012eda2d4efad8a050cc4c19afa97c59045a99cac7827271cb41c65e590e09"
+				+ "da3275600c2f09b8367793a9aca3db71cc30c58179ec3e87c14c01d5c1f3434f1d87" ),
+			hkdf( hex( salt.toString() ), hex( ikm.toString() ), hex( info.toString() ), 82 ) );
+	}
+
+	@Test
+	void testHkdfDeterministic () throws Exception {
+		final byte[] master = hex( "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff" );
+		final KeyDerivation a = new KeyDerivation.Hkdf( master );
+		final KeyDerivation b = new KeyDerivation.Hkdf( master.clone() );
+		assertEquals( 2, a.version() );
+
+		final byte[] k = a.derive( "1792233103308", 32 );
+		assertEquals( 32, k.length );
+		assertArrayEquals( k, b.derive( "1792233103308", 32 ) );
+		assertFalse( Arrays.equals( k, a.derive( "1792233103309", 32 ) ) );
+
+		// Same answer from any thread
+		final ExecutorService pool = Executors.newFixedThreadPool( 4 );
+		try {
+			final List<Future<byte[]>> keys = new ArrayList<Future<byte[]>>();
+			for ( int i = 0; i < 16; i++ ) {
+				keys.add( pool.submit( () -> a.derive( "1792233103308", 32 ) ) );
+			}
+			for ( Future<byte[]> f : keys ) {
+				assertArrayEquals( k, f.get() );
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		assertThrows( GeneralSecurityException.class, () -> new KeyDerivation.Hkdf( new byte[ 8 ] ) );
+	}
+
+	@Test
+	void testRsaIsTheOldScheme () throws Exception {
+		final KeyDerivation v1 = new KeyDerivation.Rsa(
+			new CryptoEngines( keyPair, "SHA256withRSA", "RSA/ECB/PKCS1Padding" ) );
+		assertEquals( 1, v1.version() );
+
+		// What TimeBasedEncrypter did before there was a choice
+		final Cipher cipher = Cipher.getInstance( "RSA/ECB/PKCS1Padding" );
+		cipher.init( Cipher.ENCRYPT_MODE, keyPair.getPrivate() );
+		final byte[] encr = cipher.doFinal( "1792233103308".getBytes( StandardCharsets.UTF_8 ) );
+		final byte[] trunc = new byte[ 32 ];
+		System.arraycopy( encr, 0, trunc, 0, 32 );
+
+		assertArrayEquals( trunc, v1.derive( "1792233103308", 32 ) );
+	}
+
+	/**
+	 * Deriving keys for distinct t (as a cold cache does), v1 against v2.
+	 */
+	@Test
+	@Tag ( "benchmark" )
+	void benchmarkRsaAgainstHkdf () throws Exception {
+		final KeyDerivation v1 = new KeyDerivation.Rsa(
+			new CryptoEngines( keyPair, "SHA256withRSA", "RSA/ECB/PKCS1Padding" ) );
+		final KeyDerivation v2 = new KeyDerivation.Hkdf( hex( "00112233445566778899aabbccddeeff" ) );
+		final long t0 = 1792233103308L;
+
+		for ( int pass = 0; pass < 3; pass++ ) {
+			final int n1 = 500;
+			long start = System.nanoTime();
+			for ( int i = 0; i < n1; i++ ) {
+				v1.derive( Long.toString( t0 + i ), 32 );
+			}
+			final double us1 = ( System.nanoTime() - start ) / 1e3 / n1;
+
+			final int n2 = 200000;
+			start = System.nanoTime();
+			for ( int i = 0; i < n2; i++ ) {
+				v2.derive( Long.toString( t0 + i ), 32 );
+			}
+			final double us2 = ( System.nanoTime() - start ) / 1e3 / n2;
+
+			logger.info( "Pass {}: v1 (RSA) {} us/key, v2 (HKDF) {} us/key, {}x", pass, String.format( "%.1f", us1 ),
+				String.format( "%.2f", us2 ), String.format( "%.0f", us1 / us2 ) );
+		}
+	}
+
+}
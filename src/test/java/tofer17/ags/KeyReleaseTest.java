@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class KeyReleaseTest {
+
+	private TimingWheel wheel;
+
+	@BeforeEach
+	void setUp () {
+		wheel = new TimingWheel( "test-release", 5, 64 ).start();
+	}
+
+	@AfterEach
+	void tearDown () {
+		wheel.stop();
+	}
+
+	@Test
+	void testOneDerivationForEveryone () throws Exception {
+		final AtomicInteger derived = new AtomicInteger();
+		final List<String> got = Collections.synchronizedList( new ArrayList<String>() );
+		final Map<String,Long> when = new ConcurrentHashMap<String,Long>();
+		final CountDownLatch all = new CountDownLatch( 1000 );
+
+		final KeyRelease release = new KeyRelease( wheel, ( t, v ) -> {
+			derived.incrementAndGet();
+			return "{\"t\":" + t + ",\"v\":" + v + "}";
+		}, ( to, message ) -> {
+			for ( String id : to ) {
+				got.add( id + "=" + message );
+				when.put( id, System.currentTimeMillis() );
+				all.countDown();
+			}
+		}, 10000, 10000 );
+		try {
+			final long at = System.currentTimeMillis() + 200;
+			for ( int i = 0; i < 1000; i++ ) {
+				assertTrue( release.subscribe( Long.toString( at ), at, 2, "p" + i, "me" ) );
+			}
+			// Twice is still once
+			release.subscribe( Long.toString( at ), at, 2, "p0", "me" );
+			assertEquals( 1, release.size() );
+
+			assertTrue( all.await( 5, TimeUnit.SECONDS ) );
+			Thread.sleep( 50 );
+			assertEquals( 1, derived.get() );
+			assertEquals( 1000, got.size() );
+			assertTrue( got.contains( "p999={\"t\":" + at + ",\"v\":2}" ) );
+			for ( long w : when.values() ) {
+				assertTrue( w > at, "released early" );
+			}
+			assertEquals( 0, release.size() );
+		} finally {
+			release.stop();
+		}
+	}
+
+	@Test
+	void testThousandsOfTimes () throws Exception {
+		final Map<String,Long> late = new ConcurrentHashMap<String,Long>();
+		final CountDownLatch all = new CountDownLatch( 5000 );
+		final KeyRelease release = new KeyRelease( wheel, ( t, v ) -> t, ( to, message ) -> {
+			late.put( message, System.currentTimeMillis() - Long.parseLong( message ) );
+			for ( int i = 0; i < to.length; i++ ) {
+				all.countDown();
+			}
+		}, 10000, 10000 );
+		try {
+			final long base = System.currentTimeMillis() + 100;
+			for ( int i = 0; i < 5000; i++ ) {
+				// Spread over a second and a half, every millisecond of it taken
+				final long at = base + ( i * 7919L ) % 1500;
+				release.subscribe( Long.toString( at ), at, 1, "p" + i, "me" );
+				release.subscribe( Long.toString( at + 100000 ), at + 100000, 1, "later" + i, "me" );
+			}
+			assertTrue( all.await( 10, TimeUnit.SECONDS ), "left " + all.getCount() );
+			long worst = 0;
+			for ( long l : late.values() ) {
+				assertTrue( l > 0, "released early" );
+				worst = Math.max( worst, l );
+			}
+			// A tick or two; generous for a busy build box
+			assertTrue( worst < 500, "worst " + worst );
+			assertEquals( 1500, late.size() );
+			// The far off ones are all still waiting
+			assertEquals( 1500, release.size() );
+		} finally {
+			release.stop();
+		}
+	}
+
+	@Test
+	void testOverloadedTriedAgain () throws Exception {
+		final AtomicInteger tries = new AtomicInteger();
+		final CountDownLatch sent = new CountDownLatch( 1 );
+		final KeyRelease release = new KeyRelease( wheel, ( t, v ) -> "k", ( to, message ) -> {
+			if ( tries.incrementAndGet() < 3 ) {
+				throw new Comms.Overloaded( "queue full", 20 );
+			}
+			sent.countDown();
+		}, 10, 10 );
+		try {
+			final long at = System.currentTimeMillis();
+			release.subscribe( Long.toString( at ), at, 1, "p", "me" );
+			assertTrue( sent.await( 5, TimeUnit.SECONDS ) );
+			assertEquals( 3, tries.get() );
+		} finally {
+			release.stop();
+		}
+	}
+
+	@Test
+	void testMax () {
+		final KeyRelease release = new KeyRelease( wheel, ( t, v ) -> "k", ( to, message ) -> {
+		}, 4, 2 );
+		try {
+			final long at = System.currentTimeMillis() + 60000;
+			assertTrue( release.subscribe( Long.toString( at ), at, 1, "a", "me" ) );
+			assertTrue( release.subscribe( Long.toString( at ), at, 1, "b", "me" ) );
+			// Over my share
+			assertFalse( release.subscribe( Long.toString( at ), at, 1, "c", "me" ) );
+			assertTrue( release.subscribe( Long.toString( at + 1 ), at + 1, 1, "c", "you" ) );
+			assertTrue( release.subscribe( Long.toString( at + 1 ), at + 1, 1, "d", "them" ) );
+			// Over max altogether
+			assertFalse( release.subscribe( Long.toString( at ), at, 1, "e", "others" ) );
+		} finally {
+			release.stop();
+		}
+	}
+
+	@Test
+	void testShareBackOnceReleased () throws Exception {
+		final CountDownLatch sent = new CountDownLatch( 1 );
+		final KeyRelease release = new KeyRelease( wheel, ( t, v ) -> "k", ( to, message ) -> sent.countDown(),
+			10, 1 );
+		try {
+			final long at = System.currentTimeMillis() + 50;
+			assertTrue( release.subscribe( Long.toString( at ), at, 1, "a", "me" ) );
+			assertFalse( release.subscribe( Long.toString( at + 1 ), at + 1, 1, "b", "me" ) );
+			assertTrue( sent.await( 5, TimeUnit.SECONDS ) );
+			assertTrue( release.subscribe( Long.toString( at + 60000 ), at + 60000, 1, "b", "me" ) );
+		} finally {
+			release.stop();
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+	@Test
+	void testBuckets () {
+		// Every value lands in the bucket whose range holds it, and buckets run on without gaps
+		for ( long v = 0; v < 1 << 20; v++ ) {
+			final int i = Metrics.Histogram.index( v );
+			assertTrue( Metrics.Histogram.lowest( i ) <= v && v < Metrics.Histogram.lowest( i + 1 ), "v " + v );
+		}
+		final int last = Metrics.Histogram.index( Metrics.Histogram.MAX );
+		assertEquals( Metrics.Histogram.MAX, Metrics.Histogram.lowest( last + 1 ) - 1 );
+	}
+
+	@Test
+	void testQuantiles () {
+		final Metrics.Histogram h = Metrics.histogram( "test_quantiles_seconds", "test" );
+		assertEquals( 0L, h.quantile( 0.5 ) );
+
+		// 1..10000us, shuffled
+		final long[] values = new long[ 10000 ];
+		for ( int i = 0; i < values.length; i++ ) {
+			values[ i ] = i + 1;
+		}
+		final Random random = new Random( 17 );
+		for ( int i = values.length - 1; i > 0; i-- ) {
+			final int j = random.nextInt( i + 1 );
+			final long t = values[ i ];
+			values[ i ] = values[ j ];
+			values[ j ] = t;
+		}
+		for ( long v : values ) {
+			h.record( v * 1000 );
+		}
+
+		assertEquals( 10000, h.count() );
+		for ( double q : new double[] { 0.5, 0.9, 0.99, 0.999 } ) {
+			final double exact = q * 10000;
+			final long got = h.quantile( q );
+			assertTrue( got >= exact && got <= exact * ( 1 + 1.0 / 16 ) + 1, "q " + q + " got " + got );
+		}
+		assertEquals( 10000, h.quantile( 1.0 ) );
+
+		// Same name, same histogram
+		assertSame( h, Metrics.histogram( "test_quantiles_seconds", "test" ) );
+	}
+
+	@Test
+	void testOutput () throws Exception {
+		final Metrics.Counter c = Metrics.counter( "test_output_total", "A counter" );
+		c.add( 41 );
+		c.inc();
+		Metrics.gauge( "test_output_gauge", "A gauge", () -> 7 );
+		Metrics.histogram( "test_output_seconds", "A histogram" ).record( 2500000000L );
+
+		final StringBuilder prom = new StringBuilder();
+		Metrics.writePrometheus( prom );
+		final String p = prom.toString();
+		assertTrue( p.contains( "# TYPE test_output_total counter\ntest_output_total 42\n" ), p );
+		assertTrue(
+			p.contains( "# HELP test_output_gauge A gauge\n# TYPE test_output_gauge gauge\ntest_output_gauge 7\n" ) );
+		assertTrue( p.contains( "# TYPE test_output_seconds summary\n" ) );
+		assertTrue( p.contains( "test_output_seconds{quantile=\"0.5\"} 2.5\n" ), p );
+		assertTrue( p.contains( "test_output_seconds_count 1\n" ) );
+
+		final StringBuilder json = new StringBuilder();
+		Metrics.writeJson( json );
+		final String j = json.toString();
+		assertTrue( j.contains( "\"test_output_total\":42" ), j );
+		assertTrue( j.contains( "\"test_output_seconds\":{\"count\":1,\"sum\":2.5,\"max\":2.5,\"p50\":2.5" ), j );
+
+		Metrics.unregister( "test_output_gauge" );
+		final StringBuilder after = new StringBuilder();
+		Metrics.writeJson( after );
+		assertFalse( after.toString().contains( "test_output_gauge" ) );
+	}
+
+}
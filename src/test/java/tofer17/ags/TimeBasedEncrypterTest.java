@@ -0,0 +1,374 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class TimeBasedEncrypterTest {
+
+	private static final Pattern KEY = Pattern.compile( "\\{\"k\":\"([^\"]+)\"\\}" );
+
+	private static final Pattern ERROR = Pattern.compile( "\\{\"error\":-1\\}" );
+
+	// Shared by every test so the keys are only generated once
+	private static File props;
+
+	@BeforeAll
+	static void setUpBeforeClass () throws Exception {
+		props = File.createTempFile( "tbe", ".properties" );
+		props.delete();
+		System.setProperty( "tofer17.ags.tbe.properties.file", props.getPath() );
+	}
+
+	@AfterAll
+	static void tearDownAfterClass () throws Exception {
+		System.clearProperty( "tofer17.ags.tbe.properties.file" );
+		props.delete();
+	}
+
+	private TimeBasedEncrypter tbe = null;
+
+	/**
+	 * Starts a TBE with these settings (tofer17.ags.tbe. left off the names) and whatever keys the last one saved.
+	 */
+	private void start ( String... nameValues ) throws Exception {
+		final Properties p = new Properties();
+		if ( props.exists() ) {
+			final Properties saved = new Properties();
+			try ( FileInputStream in = new FileInputStream( props ) ) {
+				saved.load( in );
+			}
+			for ( String name : saved.stringPropertyNames() ) {
+				if ( name.endsWith( ".key" ) || name.endsWith( ".master" ) ) {
+					p.setProperty( name, saved.getProperty( name ) );
+				}
+			}
+		}
+		for ( int i = 0; i + 1 < nameValues.length; i += 2 ) {
+			p.setProperty( "tofer17.ags.tbe." + nameValues[ i ], nameValues[ i + 1 ] );
+		}
+		try ( FileOutputStream out = new FileOutputStream( props ) ) {
+			p.store( out, "" );
+		}
+
+		tbe = new TimeBasedEncrypter();
+		tbe.init( (ServletConfig) Proxy.newProxyInstance( getClass().getClassLoader(),
+			new Class<?>[] { ServletConfig.class }, ( proxy, method, args ) -> {
+				return "getServletName".equals( method.getName() ) ? "tbe" : null;
+			} ) );
+	}
+
+	@AfterEach
+	void tearDown () {
+		if ( tbe != null ) {
+			tbe.destroy();
+			tbe = null;
+		}
+	}
+
+	private String get ( String... nameValues ) throws Exception {
+		return call( false, nameValues );
+	}
+
+	private String post ( String... nameValues ) throws Exception {
+		return call( true, nameValues );
+	}
+
+	/**
+	 * @param nameValues request parameters; a name given more than once has all its values
+	 * @return what was written back
+	 */
+	private String call ( boolean post, String... nameValues ) throws Exception {
+		final Map<String,String[]> params = new HashMap<String,String[]>();
+		for ( int i = 0; i + 1 < nameValues.length; i += 2 ) {
+			final String[] was = params.get( nameValues[ i ] );
+			final String[] values = was == null ? new String[ 1 ] : Arrays.copyOf( was, was.length + 1 );
+			values[ values.length - 1 ] = nameValues[ i + 1 ];
+			params.put( nameValues[ i ], values );
+		}
+		final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance( getClass().getClassLoader(),
+			new Class<?>[] { HttpServletRequest.class }, ( proxy, method, args ) -> {
+				switch ( method.getName() ) {
+				case "getParameter":
+					final String[] values = params.get( args[ 0 ] );
+					return values != null ? values[ 0 ] : null;
+				case "getParameterValues":
+					return params.get( args[ 0 ] );
+				case "getContentType":
+					return null;
+				case "getRemoteAddr":
+					return "1.2.3.4";
+				default:
+					throw new UnsupportedOperationException( method.getName() );
+				}
+			} );
+		final StringWriter body = new StringWriter();
+		final PrintWriter writer = new PrintWriter( body );
+		final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+			getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class }, ( proxy, method, args ) -> {
+				switch ( method.getName() ) {
+				case "getWriter":
+					return writer;
+				default:
+					throw new UnsupportedOperationException( method.getName() );
+				}
+			} );
+		if ( post ) {
+			tbe.doPost( request, response );
+		} else {
+			tbe.doGet( request, response );
+		}
+		writer.flush();
+		return body.toString();
+	}
+
+	/**
+	 * @return each key (or null for an error) in a batch answer, in order
+	 */
+	private static List<String> keys ( String json ) {
+		final List<String> keys = new ArrayList<String>();
+		final Matcher m = Pattern.compile( KEY.pattern() + "|" + ERROR.pattern() ).matcher( json );
+		while ( m.find() ) {
+			keys.add( m.group( 1 ) );
+		}
+		return keys;
+	}
+
+	private static String key ( String json ) {
+		final Matcher m = KEY.matcher( json );
+		assertTrue( m.matches(), json );
+		return m.group( 1 );
+	}
+
+	private static String field ( String json, String name ) {
+		final Matcher m = Pattern.compile( "\"" + name + "\":\"?([^\",}]+)" ).matcher( json );
+		assertTrue( m.find(), name + " in " + json );
+		return m.group( 1 );
+	}
+
+	/**
+	 * @return each {t,v,iv,ct} in a batch embargo answer, in order
+	 */
+	private static List<String> embargoes ( String json ) {
+		final List<String> embargoes = new ArrayList<String>();
+		final Matcher m = Pattern.compile( "\\{\"t\":[^}]*\\}" ).matcher( json );
+		while ( m.find() ) {
+			embargoes.add( m.group() );
+		}
+		return embargoes;
+	}
+
+	/**
+	 * @return the embargo's {t,o,ts}, decrypted with key
+	 */
+	private static String open ( String embargo, String key ) throws Exception {
+		final Cipher cipher = Cipher.getInstance( CryptoEngines.GCM );
+		cipher.init( Cipher.DECRYPT_MODE, new SecretKeySpec( Base64.getDecoder().decode( key ), "AES" ),
+			new GCMParameterSpec( 128, Base64.getDecoder().decode( field( embargo, "iv" ) ) ) );
+		return new String( cipher.doFinal( Base64.getDecoder().decode( field( embargo, "ct" ) ) ),
+			StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * @return true if stamp's signature checks out with the key GET ?k gives
+	 */
+	private boolean verify ( String stamp ) throws Exception {
+		final String k = get( "k", "" );
+		final String algo = field( k, "a" );
+		final PublicKey key = KeyFactory.getInstance( algo.endsWith( "ECDSA" ) ? "EC" : "RSA" )
+			.generatePublic( new X509EncodedKeySpec( Base64.getDecoder().decode( field( k, "k" ) ) ) );
+		final Signature verifier = Signature.getInstance( algo );
+		verifier.initVerify( key );
+		verifier.update( ( field( stamp, "t" ) + ":" + field( stamp, "m" ) ).getBytes( StandardCharsets.UTF_8 ) );
+		return verifier.verify( Base64.getDecoder().decode( field( stamp, "s" ) ) );
+	}
+
+	@Test
+	void testBucketRoundsUp () throws Exception {
+		start( "embargo.bucket", "1000" );
+		final long at = ( System.currentTimeMillis() / 1000 + 60 ) * 1000;
+
+		assertEquals( Long.toString( at ), field( post( "t", Long.toString( at - 999 ), "o", "x" ), "t" ) );
+		assertEquals( Long.toString( at ), field( post( "t", Long.toString( at - 1 ), "o", "x" ), "t" ) );
+		// Already on the end of a bucket
+		assertEquals( Long.toString( at ), field( post( "t", Long.toString( at ), "o", "x" ), "t" ) );
+		assertEquals( Long.toString( at + 1000 ), field( post( "t", Long.toString( at + 1 ), "o", "x" ), "t" ) );
+		assertEquals( "1000", field( post( "t", Long.toString( at ), "o", "x" ), "b" ) );
+	}
+
+	@Test
+	void testOneKeyPerBucket () throws Exception {
+		start( "embargo.bucket", "1000" );
+		final long end = ( System.currentTimeMillis() / 1000 - 60 ) * 1000;
+
+		final String k = key( get( "t", Long.toString( end ) ) );
+		assertEquals( k, key( get( "t", Long.toString( end - 999 ) ) ) );
+		assertEquals( k, key( get( "t", Long.toString( end - 500 ) ) ) );
+		assertNotEquals( k, key( get( "t", Long.toString( end + 1 ) ) ) );
+		assertNotEquals( k, key( get( "t", Long.toString( end - 1000 ) ) ) );
+		assertEquals( Arrays.asList( k, k ),
+			keys( get( "t", Long.toString( end - 999 ), "t", Long.toString( end ) ) ) );
+	}
+
+	@Test
+	void testNoKeyBeforeTheBucketEnds () throws Exception {
+		start( "embargo.bucket", "60000" );
+		long now = System.currentTimeMillis();
+		while ( now % 60000 < 2 || now % 60000 > 59000 ) {
+			Thread.sleep( 5 );
+			now = System.currentTimeMillis();
+		}
+		// Past, but its bucket isn't
+		final String t = Long.toString( now - 1 );
+		assertTrue( ERROR.matcher( get( "t", t ) ).matches() );
+		assertEquals( Arrays.asList( (String) null ), keys( get( "t", t, "b", "1" ) ) );
+	}
+
+	@Test
+	void testBucketOverflow () throws Exception {
+		start( "embargo.bucket", "1000" );
+		// Its bucket would end past Long.MAX_VALUE, and wrap round to long ago
+		final String t = Long.toString( Long.MAX_VALUE - 5 );
+		assertTrue( ERROR.matcher( post( "t", t, "o", "x" ) ).matches() );
+		assertTrue( ERROR.matcher( get( "t", t ) ).matches() );
+		assertEquals( Arrays.asList( (String) null ), keys( get( "t", t, "b", "1" ) ) );
+		// One that ends on a bucket is fine
+		final String fine = Long.toString( Long.MAX_VALUE / 1000 * 1000 );
+		assertEquals( fine, field( post( "t", fine, "o", "x" ), "t" ) );
+	}
+
+	@Test
+	void testKeyBatchInOrder () throws Exception {
+		start();
+		final long now = System.currentTimeMillis();
+		final String first = Long.toString( now - 60000 ), later = Long.toString( now + 60000 ),
+			last = Long.toString( now - 30000 );
+
+		final List<String> keys = keys( get( "t", first, "t", later, "t", last ) );
+		assertEquals( 3, keys.size() );
+		// Not yet past: an error in its slot, the rest stand
+		assertNull( keys.get( 1 ) );
+		assertEquals( key( get( "t", first ) ), keys.get( 0 ) );
+		assertEquals( key( get( "t", last ) ), keys.get( 2 ) );
+		assertNotEquals( keys.get( 0 ), keys.get( 2 ) );
+	}
+
+	@Test
+	void testEmbargoBatchInOrder () throws Exception {
+		start();
+		final String t = Long.toString( System.currentTimeMillis() + 300 );
+
+		final String batch = post( "t", t, "o", "one", "o", "two", "o", "three" );
+		assertTrue( batch.startsWith( "[" ) && batch.endsWith( "]" ), batch );
+		final List<String> embargoes = embargoes( batch );
+		assertEquals( 3, embargoes.size() );
+		// One key and timestamp for the lot, but never the same IV twice
+		assertEquals( 3, new HashSet<String>( Arrays.asList( field( embargoes.get( 0 ), "iv" ),
+			field( embargoes.get( 1 ), "iv" ), field( embargoes.get( 2 ), "iv" ) ) ).size() );
+
+		Thread.sleep( Math.max( 0, Long.parseLong( t ) - System.currentTimeMillis() + 5 ) );
+		final String key = key( get( "t", t ) );
+		final String[] expected = { "one", "two", "three" };
+		for ( int i = 0; i < 3; i++ ) {
+			final String plain = open( embargoes.get( i ), key );
+			assertTrue( plain.startsWith( "{\"t\":" + t + ",\"o\":\"" + expected[ i ] + "\",\"ts\":{" ), plain );
+		}
+	}
+
+	@Test
+	void testBatchMax () throws Exception {
+		start( "batch.max", "2" );
+		final String past = Long.toString( System.currentTimeMillis() - 60000 );
+		final String future = Long.toString( System.currentTimeMillis() + 60000 );
+
+		assertEquals( 2, keys( get( "t", past, "t", past ) ).size() );
+		assertTrue( ERROR.matcher( get( "t", past, "t", past, "t", past ) ).matches() );
+
+		assertEquals( 2, embargoes( post( "t", future, "o", "a", "o", "b" ) ).size() );
+		assertTrue( ERROR.matcher( post( "t", future, "o", "a", "o", "b", "o", "c" ) ).matches() );
+	}
+
+	@Test
+	void testBatchOfOne () throws Exception {
+		start();
+		final String past = Long.toString( System.currentTimeMillis() - 60000 );
+		final String future = Long.toString( System.currentTimeMillis() + 60000 );
+
+		// "b" asks for an array even for the one
+		final String key = get( "t", past, "b", "1" );
+		assertEquals( "[" + get( "t", past ) + "]", key );
+		final String embargo = post( "t", future, "o", "a", "b", "1" );
+		assertTrue( embargo.startsWith( "[{" ) && embargo.endsWith( "}]" ), embargo );
+		assertEquals( 1, embargoes( embargo ).size() );
+		// Without it, just the one
+		assertTrue( post( "t", future, "o", "a" ).startsWith( "{" ) );
+	}
+
+	@Test
+	void testTickerStamps () throws Exception {
+		start( "signed.timestamp.ticker", "50" );
+		final HashSet<String> stamps = new HashSet<String>();
+		for ( int i = 0; i < 40; i++ ) {
+			final long before = System.currentTimeMillis();
+			final String stamp = get();
+			final long t = Long.parseLong( field( stamp, "t" ) );
+			// No older than a couple of ticks
+			assertTrue( t >= before - 100 && t <= System.currentTimeMillis(), stamp );
+			assertEquals( "0", field( stamp, "m" ) );
+			stamps.add( stamp );
+			Thread.sleep( i % 10 == 0 ? 60 : 1 );
+		}
+		// Shared between queries, and fresh ones signed as time goes by
+		assertTrue( stamps.size() > 1 && stamps.size() < 40, stamps.size() + " different" );
+		for ( String stamp : stamps ) {
+			assertTrue( verify( stamp ), stamp );
+		}
+	}
+
+	@Test
+	void testStampsWithoutTicker () throws Exception {
+		start();
+		final long before = System.currentTimeMillis();
+		final String stamp = get();
+		assertTrue( Long.parseLong( field( stamp, "t" ) ) >= before );
+		assertTrue( verify( stamp ) );
+		// Tampered with
+		assertFalse( verify( stamp.replace( "\"m\":0", "\"m\":1" ) ) );
+	}
+
+}
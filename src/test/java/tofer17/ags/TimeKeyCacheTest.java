@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class TimeKeyCacheTest {
+
+	private static Key key ( String t ) {
+		final byte[] k = new byte[ 16 ];
+		k[ 0 ] = (byte) t.hashCode();
+		return new SecretKeySpec( k, "AES" );
+	}
+
+	@Test
+	void testSingleFlight () throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final TimeKeyCache cache = new TimeKeyCache( t -> {
+			loads.incrementAndGet();
+			try {
+				release.await( 5, TimeUnit.SECONDS );
+			} catch ( InterruptedException ie ) {
+				;
+			}
+			return key( t );
+		}, 100, 60000, "test_single_flight" );
+
+		final ExecutorService pool = Executors.newFixedThreadPool( 16 );
+		try {
+			final List<Future<Key>> keys = new ArrayList<Future<Key>>();
+			for ( int i = 0; i < 64; i++ ) {
+				keys.add( pool.submit( () -> cache.get( "1792233103308" ) ) );
+			}
+			Thread.sleep( 100 );
+			release.countDown();
+			final Key first = keys.get( 0 ).get( 5, TimeUnit.SECONDS );
+			for ( Future<Key> k : keys ) {
+				assertSame( first, k.get( 5, TimeUnit.SECONDS ) );
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		// The herd all waited on the one derivation
+		assertEquals( 1, loads.get() );
+		assertSame( cache.get( "1792233103308" ), cache.get( "1792233103308" ) );
+		assertEquals( 1, loads.get() );
+	}
+
+	@Test
+	void testFailureNotCached () throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		final TimeKeyCache cache = new TimeKeyCache( t -> {
+			if ( loads.incrementAndGet() == 1 ) {
+				throw new GeneralSecurityException( "first one fails" );
+			}
+			return key( t );
+		}, 100, 60000, "test_failure" );
+
+		assertThrows( GeneralSecurityException.class, () -> cache.get( "1" ) );
+		assertEquals( 0, cache.size() );
+		assertNotNull( cache.get( "1" ) );
+		assertEquals( 2, loads.get() );
+	}
+
+	@Test
+	void testEvictsFurthestFirst () throws Exception {
+		final TimeKeyCache cache = new TimeKeyCache( TimeKeyCacheTest::key, 100, 60000, "test_evict" );
+		final long now = System.currentTimeMillis();
+
+		// Ten about to be released...
+		for ( int i = 0; i < 10; i++ ) {
+			cache.get( Long.toString( now + i * 1000 ) );
+		}
+		// ...then a pile from long ago and far off
+		for ( int i = 0; i < 200; i++ ) {
+			cache.get( Long.toString( i % 2 == 0 ? now - 1000L * 60 * 60 * 24 * ( i + 1 )
+				: now + 1000L * 60 * 60 * 24 * ( i + 1 ) ) );
+			assertTrue( cache.size() <= 100 );
+		}
+
+		// The near ones survived every trim
+		final int before = cache.size();
+		for ( int i = 0; i < 10; i++ ) {
+			cache.get( Long.toString( now + i * 1000 ) );
+		}
+		assertEquals( before, cache.size() );
+		assertTrue( cache.toString().contains( " 10 hits" ), cache.toString() );
+	}
+
+	@Test
+	void testAge () throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		final TimeKeyCache cache = new TimeKeyCache( t -> {
+			loads.incrementAndGet();
+			return key( t );
+		}, 100, 50, "test_age" );
+		cache.get( "42" );
+		cache.get( "42" );
+		assertEquals( 1, loads.get() );
+		Thread.sleep( 80 );
+		cache.get( "42" );
+		assertEquals( 2, loads.get() );
+	}
+
+	@Test
+	void testBadArgs () {
+		assertThrows( IllegalArgumentException.class, () -> new TimeKeyCache( TimeKeyCacheTest::key, 0, 1, "x" ) );
+		assertThrows( IllegalArgumentException.class, () -> new TimeKeyCache( TimeKeyCacheTest::key, 1, 0, "x" ) );
+	}
+
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class TimingWheelTest {
+
+	@SuppressWarnings ( "unused" )
+	private static final Logger logger = LoggerFactory.getLogger( TimingWheelTest.class );
+
+	private TimingWheel wheel = null;
+
+	@BeforeEach
+	void setUp () throws Exception {
+		wheel = new TimingWheel( "test-wheel", 10, 8 ).start();
+	}
+
+	@AfterEach
+	void tearDown () throws Exception {
+		wheel.stop();
+	}
+
+	@Test
+	void testSchedule () throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch( 1 );
+		final long start = System.nanoTime();
+
+		wheel.schedule( latch::countDown, 50 );
+
+		assertTrue( latch.await( 2, TimeUnit.SECONDS ) );
+		assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 40 );
+		assertEquals( 0, wheel.size() );
+	}
+
+	@Test
+	void testScheduleBeyondOneRevolution () throws InterruptedException {
+		// 8 buckets of 10ms: 250ms needs a few rounds
+		final CountDownLatch latch = new CountDownLatch( 1 );
+		final long start = System.nanoTime();
+
+		wheel.schedule( latch::countDown, 250 );
+
+		assertTrue( latch.await( 2, TimeUnit.SECONDS ) );
+		assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 240 );
+	}
+
+	@Test
+	void testCancel () throws InterruptedException {
+		final AtomicInteger fired = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch( 1 );
+
+		final TimingWheel.Timeout timeout = wheel.schedule( fired::incrementAndGet, 30 );
+		wheel.schedule( latch::countDown, 80 );
+
+		assertTrue( timeout.cancel() );
+		assertFalse( timeout.cancel() );
+		assertTrue( latch.await( 2, TimeUnit.SECONDS ) );
+		assertEquals( 0, fired.get() );
+		assertTrue( timeout.isCancelled() );
+	}
+
+	@Test
+	void testManyTimeouts () throws InterruptedException {
+		final int count = 10000;
+		final CountDownLatch latch = new CountDownLatch( count );
+
+		for ( int i = 0; i < count; i++ ) {
+			wheel.schedule( latch::countDown, i % 200 );
+		}
+
+		assertTrue( latch.await( 5, TimeUnit.SECONDS ) );
+		assertEquals( 0, wheel.size() );
+	}
+
+}
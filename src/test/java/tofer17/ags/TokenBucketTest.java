@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package tofer17.ags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class TokenBucketTest {
+
+	@SuppressWarnings ( "unused" )
+	private static final Logger logger = LoggerFactory.getLogger( TokenBucketTest.class );
+
+	@Test
+	void testBurstThenRefuse () {
+		final TokenBucket bucket = new TokenBucket( 1, 5 );
+
+		for ( int i = 0; i < 5; i++ ) {
+			assertEquals( 0, bucket.tryAcquire( 1 ) );
+		}
+		final long wait = bucket.tryAcquire( 1 );
+		assertTrue( wait > 0 && wait <= 1000, "wait " + wait );
+		assertFalse( bucket.isFull() );
+	}
+
+	@Test
+	void testRefill () throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket( 100, 2 );
+
+		assertEquals( 0, bucket.tryAcquire( 2 ) );
+		assertTrue( bucket.tryAcquire( 2 ) > 0 );
+		// 100/s: back to two in ~20ms
+		Thread.sleep( 60 );
+		assertTrue( bucket.isFull() );
+		assertEquals( 0, bucket.tryAcquire( 2 ) );
+	}
+
+	@Test
+	void testMoreThanBurst () {
+		final TokenBucket bucket = new TokenBucket( 10, 3 );
+
+		// Can never have 10; a full bucket lets it through
+		assertEquals( 0, bucket.tryAcquire( 10 ) );
+		assertTrue( bucket.tryAcquire( 10 ) > 0 );
+	}
+
+	@Test
+	void testBadArguments () {
+		assertThrows( IllegalArgumentException.class, () -> new TokenBucket( 0, 5 ) );
+		assertThrows( IllegalArgumentException.class, () -> new TokenBucket( 1, 0 ) );
+	}
+
+}
@@ -18,7 +18,14 @@ function hookup () {
 	el = document.getElementById( "hkup" );
 	el.innerHTML = "...abort..";
 
-	if ( xhr ) {
+	if ( es ) {
+		es.close();
+		es = null;
+		el.innerHTML = "Connect";
+		el = document.getElementById( "hkupstatus" );
+		el.innerHTML = "Not connected";
+		el.style.color = "red";
+	} else if ( xhr ) {
 		abort = true;
 		xhr.abort();
 		el.innerHTML = "Connect";
@@ -26,18 +33,38 @@ function hookup () {
 		el.innerHTML = "Not connected";
 		el.style.color = "red";
 		xhr = null;
+	} else if ( document.getElementById( "stream" ).checked ) {
+		stream();
 	} else {
 		connect();
 	}
 }
 
-var xhr, wid;
+var xhr, es, wid;
+
+// Sequence number of the last envelope seen; reconnects ask for anything after it
+var since = -1;
+
+function stream () {
+	wid = document.getElementById( "wid" ).value;
+	// EventSource reconnects by itself (sending Last-Event-ID)
+	es = new EventSource( "com?s=1&w=" + wid );
+	es.onopen = () => {
+		let el = document.getElementById( "hkupstatus" );
+		el.innerHTML = "Streaming";
+		el.style.color = "green";
+		el = document.getElementById( "hkup" );
+		el.innerHTML = "Disconnect";
+	};
+	es.onmessage = ( evt ) => displayMessage( JSON.parse( evt.data ) );
+	es.onerror = ( evt ) => console.error( "stream", evt );
+}
 
 function connect () {
 	wid = document.getElementById( "wid" ).value;
 	xhr = new XMLHttpRequest();
 	xhr.onreadystatechange = conn;
-	xhr.open( "GET", "com?w=" + wid );
+	xhr.open( "GET", "com?w=" + wid + ( since >= 0 ? "&since=" + since : "" ) );
 	xhr.onload = connected;
 	xhr.send();
 }
@@ -64,7 +91,8 @@ function conn () {
 		case XMLHttpRequest.DONE : // 4
 			console.error( "DONE" );
 			if ( !abort ) {
-				displayMessage( JSON.parse( this.response ) );
+				// Each response is a batch: an array of envelopes
+				JSON.parse( this.response ).forEach( displayMessage );
 				connect();
 			} else {
 				abort = false;
@@ -77,6 +105,10 @@ function conn () {
 }
 
 function displayMessage ( msg ) {
+	if ( msg.s <= since ) {
+		return;
+	}
+	since = msg.s;
 	let recip = document.createElement( "span" );
 	recip.className = "recip";
 	recip.innerHTML = msg.r;
@@ -98,12 +130,16 @@ function connected () {
 	console.error( this );
 }
 
-function sendMsg () {
+function sendMsg ( toRoom ) {
 	let s = "f=" + wid;
-	let tolist = document.getElementById( "tolist" ).value.split(",");
-	console.log(tolist);
-	for ( let i = 0; i < tolist.length; i++ ) {
-		s += "&t=" + tolist[i];
+	if ( toRoom ) {
+		s += "&g=" + encodeURIComponent( document.getElementById( "room" ).value );
+	} else {
+		let tolist = document.getElementById( "tolist" ).value.split(",");
+		console.log(tolist);
+		for ( let i = 0; i < tolist.length; i++ ) {
+			s += "&t=" + tolist[i];
+		}
 	}
 	s += "&m=" + document.getElementById( "sendmsg" ).value;
 	console.log(s);
@@ -113,6 +149,16 @@ function sendMsg () {
 	post.send( s );
 }
 
+// Join ('j') or leave ('l') the room as the hooked up id
+function room ( action ) {
+	let post = new XMLHttpRequest();
+	post.open( "POST", "com" );
+	post.setRequestHeader("Content-Type", "application/x-www-form-urlencoded");
+	post.onload = () => console.log( "room members", post.response );
+	post.send( "w=" + ( wid || document.getElementById( "wid" ).value ) + "&" + action + "="
+		+ encodeURIComponent( document.getElementById( "room" ).value ) );
+}
+
 /**************************************************** */
 window.addEventListener( "load", () => {
 	setup();
@@ -128,7 +128,8 @@ function getAboveTime () {
 
 function requestKey () {
 	let req = new XMLHttpRequest();
-	req.open( "GET", "tbe?"+"t=" + document.getElementById( "k4tim" ).value);
+	req.open( "GET", "tbe?"+"t=" + document.getElementById( "k4tim" ).value
+		+ ( emb && emb.v !== undefined ? "&v=" + emb.v : "" ) );
 	req.onload = recieveKeyResponse;
 	req.send();
 }